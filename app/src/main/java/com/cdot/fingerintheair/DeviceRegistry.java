@@ -0,0 +1,65 @@
+package com.cdot.fingerintheair;
+
+import android.content.SharedPreferences;
+import android.hardware.usb.UsbDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers the ROM ids found on the bus behind each USB adapter, so that on reconnect the
+ * known devices can be verified and sampled straight away, without waiting for a full search.
+ * Adapters are identified by USB vendor, product and serial number.
+ */
+class DeviceRegistry {
+
+    private static final String PREFIX = "busDevices.";
+
+    private final SharedPreferences mPrefs;
+
+    DeviceRegistry(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    /**
+     * Get the registry key for an adapter
+     */
+    static String keyFor(UsbDevice device) {
+        String serial = device.getSerialNumber();
+        return String.format("%04X:%04X:%s", device.getVendorId(), device.getProductId(),
+                serial == null ? "" : serial);
+    }
+
+    /**
+     * Get the ROM ids last seen on an adapter's bus
+     *
+     * @return the ids, empty if the adapter hasn't been seen before
+     */
+    List<Long> get(String key) {
+        List<Long> roms = new ArrayList<>();
+        String s = mPrefs.getString(PREFIX + key, "");
+        for (String rom : s.split(",")) {
+            if (rom.isEmpty())
+                continue;
+            try {
+                roms.add(SampleLog.parseSerno(rom));
+            } catch (NumberFormatException nfe) {
+                // Corrupt entry; the next search will rewrite it
+            }
+        }
+        return roms;
+    }
+
+    /**
+     * Record the ROM ids found on an adapter's bus
+     */
+    void put(String key, List<Long> roms) {
+        StringBuilder sb = new StringBuilder();
+        for (long rom : roms) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(String.format("%X", rom));
+        }
+        mPrefs.edit().putString(PREFIX + key, sb.toString()).apply();
+    }
+}
@@ -1,14 +1,15 @@
 package com.cdot.fingerintheair;
 
 import android.Manifest;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.hardware.usb.UsbManager;
+import android.graphics.Typeface;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 
 import android.util.Log;
 import android.view.Menu;
@@ -18,13 +19,25 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 
-import java.util.HashMap;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.appcompat.widget.LinearLayoutCompat;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -32,60 +45,168 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int REQUEST_WRITE_STORAGE = 112;
 
-    // Map from sensor id to text view showing value
-    private HashMap<Long,TextView> mSensorViews = new HashMap<>();
+    // Sample batches queued for the UI before they are coalesced
+    private static final int SAMPLE_QUEUE_SIZE = 4;
 
-    // Container for sensor text views
-    private LinearLayoutCompat mSensorLayout;
+    // Rows for the sensors
+    private SensorListAdapter mSensorAdapter;
+    // Builds sparklines for mSensorAdapter
+    private ExecutorService mSparklineWorker;
     private TextView mLogView = null;
+    // Shows buses that are still connecting, or failed to
+    private TextView mBusStatusView = null;
+
+    // Map from USB device name to the connect stage it has reached, unless it is sampling
+    private final Map<String, String> mBusStatus = new TreeMap<>();
+
+    // Maximum number of log lines shown
+    private static final int LOG_LINES = 50;
+    // Minimum time between log view redraws
+    private static final long LOG_FRAME_TIME = 100; // ms
+
+    // Log version last drawn in mLogView
+    private long mLogVersion = -1;
 
     private void log(String s) {
-        if (mLogView != null) {
-            mLogView.append("\n" + s);
-        } else {
-            Log.d(TAG, s);
-        }
+        log(LogRing.Level.INFO, s);
     }
 
-    private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
+    private void log(LogRing.Level level, String s) {
+        Log.d(TAG, s);
+        LogRing.APP.log(level, TAG + ": " + s);
+    }
+
+    private void log(LogRing.Level level, String format, Object... args) {
+        Log.d(TAG, String.format(Locale.US, format, args));
+        LogRing.APP.log(level, TAG + ": " + format, args);
+    }
+
+    // Redraws the tail of the log, at most once per LOG_FRAME_TIME, and only when it has changed
+    private final Runnable mLogRenderer = new Runnable() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            switch (intent.getAction()) {
-                case SensorService.ACTION_SENSOR_LOST:
-                    Long sid = intent.getLongExtra(SensorService.EXTRA_SENSOR_ID, 0);
-                    TextView tv = mSensorViews.get(sid);
-                    if (tv != null) {
-                        tv.setText("");
-                        mSensorViews.remove(sid);
-                        mSensorLayout.removeView(tv);
-                        log(String.format("Sensor %X removed (USB detached)", sid));
-                    }
-                    break;
-                case SensorService.ACTION_SENSOR_UPDATE:
-                    long sensor = intent.getLongExtra(SensorService.EXTRA_SENSOR_ID, 0);
-                    double temp = intent.getDoubleExtra(SensorService.EXTRA_SENSOR_VALUE, 0);
-                    long timestamp = intent.getLongExtra(SensorService.EXTRA_SENSOR_TIMESTAMP, 0);
-                    log(String.format("Sensor update at %d for %X = %g", timestamp, sensor, temp));
-                    MainActivity.this.reportTemperature(sensor, temp, timestamp);
-                    break;
-                case SensorService.ACTION_LOG:
-                    if (mLogView != null)
-                        mLogView.append("\n" + intent.getStringExtra(SensorService.EXTRA_LOG_MSG));
-                    break;
+        public void run() {
+            long version = LogRing.APP.getVersion();
+            if (version != mLogVersion && mLogView != null) {
+                mLogVersion = version;
+                StringBuilder sb = new StringBuilder();
+                for (LogRing.Entry e : LogRing.APP.tail(LOG_LINES))
+                    sb.append(e).append('\n');
+                mLogView.setText(sb);
             }
+            mHandler.postDelayed(this, LOG_FRAME_TIME);
         }
     };
 
-    public void reportTemperature(long sensor, double temp, long timestamp) {
-        TextView tv = mSensorViews.get(sensor);
-        if (tv == null) {
-            tv = new TextView(MainActivity.this);
-            MainActivity.this.mSensorLayout.addView(tv);
-            mSensorViews.put(sensor, tv);
+    /**
+     * Dump the whole log to a file, off the main thread
+     */
+    private void dumpLog() {
+        final File file = new File(getExternalFilesDir(null), "log-" + System.currentTimeMillis() + ".txt");
+        new Thread(() -> {
+            try (Writer out = new BufferedWriter(new FileWriter(file))) {
+                LogRing.APP.dump(out);
+                log("Log dumped to " + file);
+            } catch (IOException ioe) {
+                log(LogRing.Level.ERROR, file + " log dump failed " + ioe);
+            }
+        }, "Dump log").start();
+    }
+
+    /**
+     * Show a snapshot of the service's metrics, with the option of saving it to a file so it
+     * can be sent off for diagnosis
+     */
+    private void showMetrics() {
+        if (mService == null)
+            return;
+        final StringWriter snapshot = new StringWriter();
+        try {
+            mService.dumpMetrics(snapshot);
+        } catch (IOException ioe) {
+            // Not from a StringWriter
         }
-        tv.setText(String.format("%X: %g @ %d", sensor, temp, timestamp));
+        TextView tv = new TextView(this);
+        tv.setTypeface(Typeface.MONOSPACE);
+        tv.setTextIsSelectable(true);
+        tv.setText(snapshot.toString());
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.metrics)
+                .setView(tv)
+                .setPositiveButton(R.string.metrics_export, (dialog, which) -> exportMetrics(snapshot.toString()))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void exportMetrics(final String snapshot) {
+        final File file = new File(getExternalFilesDir(null), "metrics-" + System.currentTimeMillis() + ".txt");
+        new Thread(() -> {
+            try (Writer out = new BufferedWriter(new FileWriter(file))) {
+                out.write(snapshot);
+                log("Metrics saved to " + file);
+            } catch (IOException ioe) {
+                log(LogRing.Level.ERROR, file + " metrics export failed " + ioe);
+            }
+        }, "Export metrics").start();
     }
 
+    // Samples from the service, delivered on the main thread
+    private final SampleSubscription.Listener mSampleListener = new SampleSubscription.Listener() {
+        @Override
+        public void onSamples(SampleBatch batch) {
+            for (int i = 0; i < batch.size(); i++)
+                mSensorAdapter.update(batch.getSerno(i), batch.getTimestamp(i), batch.getValue(i));
+        }
+
+        @Override
+        public void onSensorLost(long sid) {
+            mSensorAdapter.remove(sid);
+            log(LogRing.Level.INFO, "Sensor %X removed", sid);
+        }
+    };
+
+    // Connect progress from the service, delivered on the main thread
+    private final SensorService.ProgressListener mProgressListener = new SensorService.ProgressListener() {
+        @Override
+        public void onBusProgress(String port, BusStage stage, String detail) {
+            if (stage == BusStage.SAMPLING || stage == BusStage.DISCONNECTED)
+                mBusStatus.remove(port);
+            else
+                mBusStatus.put(port, detail != null ? stage + ": " + detail : stage + "\u2026");
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> e : mBusStatus.entrySet()) {
+                if (sb.length() > 0)
+                    sb.append('\n');
+                sb.append(e.getKey()).append(' ').append(e.getValue());
+            }
+            mBusStatusView.setText(sb);
+            mBusStatusView.setVisibility(mBusStatus.isEmpty() ? View.GONE : View.VISIBLE);
+        }
+    };
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Also read by the sparkline worker
+    private volatile SensorService mService = null;
+    private SampleSubscription mSubscription = null;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((SensorService.LocalBinder) binder).getService();
+            // The UI only ever needs the latest value of each sensor
+            mSubscription = mService.subscribe(mSampleListener, mHandler::post,
+                    SAMPLE_QUEUE_SIZE, SampleSubscription.Overflow.COALESCE_LATEST);
+            mService.addProgressListener(mProgressListener);
+            // Show last-known values until the buses are sampling again
+            mSampleListener.onSamples(mService.getLatest());
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+            mSubscription = null;
+        }
+    };
+
     /**
      * See https://stackoverflow.com/questions/23523806/how-do-you-create-preference-activity-and-preference-fragment-on-android
      * @param menu
@@ -117,6 +238,15 @@ public class MainActivity extends AppCompatActivity {
             case R.id.menu_stopService:
                 stopService(new Intent(MainActivity.this, SensorService.class));
                 return true;
+            case R.id.menu_dumpLog:
+                dumpLog();
+                return true;
+            case R.id.menu_metrics:
+                showMetrics();
+                return true;
+            case R.id.menu_exportCSV:
+                startService(new Intent(SensorService.ACTION_EXPORT_CSV, null, this, SensorService.class));
+                return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -128,8 +258,17 @@ public class MainActivity extends AppCompatActivity {
 
         setContentView(R.layout.activity_main);
 
-        mSensorLayout = findViewById(R.id.sensorLayout);
+        mSparklineWorker = Executors.newSingleThreadExecutor();
+        // The service is only there while bound
+        mSensorAdapter = new SensorListAdapter(mSparklineWorker, serno -> {
+            SensorService service = mService;
+            return service != null ? service.getHistory(serno) : null;
+        });
+        RecyclerView sensorList = findViewById(R.id.sensorList);
+        sensorList.setLayoutManager(new LinearLayoutManager(this));
+        sensorList.setAdapter(mSensorAdapter);
         mLogView = findViewById(R.id.showLog);
+        mBusStatusView = findViewById(R.id.busStatus);
 
         PreferenceManager.setDefaultValues(this, R.xml.prefs_frag, false);
 
@@ -148,20 +287,39 @@ public class MainActivity extends AppCompatActivity {
             log("Failed to start service");
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        bindService(new Intent(this, SensorService.class), mServiceConnection, 0);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        if (mService != null && mSubscription != null)
+            mService.unsubscribe(mSubscription);
+        if (mService != null)
+            mService.removeProgressListener(mProgressListener);
+        mService = null;
+        mSubscription = null;
+        unbindService(mServiceConnection);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSparklineWorker.shutdownNow();
+    }
+
     @Override
     public void onResume() {
         super.onResume();
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
-        filter.addAction(SensorService.ACTION_LOG);
-        filter.addAction(SensorService.ACTION_SENSOR_UPDATE);
-        filter.addAction(SensorService.ACTION_SENSOR_LOST);
-        registerReceiver(mBroadcastReceiver, filter);
+        mHandler.post(mLogRenderer);
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        unregisterReceiver(mBroadcastReceiver);
+        mHandler.removeCallbacks(mLogRenderer);
     }
 }
@@ -0,0 +1,234 @@
+package com.cdot.fingerintheair;
+
+import android.database.AbstractWindowedCursor;
+import android.database.CursorWindow;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Cursor over a range of the SampleLog that is never held in memory beyond one CursorWindow.
+ * Rows are decoded from the log into the window as the cursor moves, a window at a time, as
+ * SQLiteCursor does. Filling a window further on continues the read, and filling one further
+ * back restarts it. The window is shared with the other process when the cursor is sent to
+ * one, so nothing is copied again.
+ *
+ * The first window is filled when the count is first asked for, and the rows that don't fit
+ * in it are counted in the same pass, so a read that fits in one window decodes each row once.
+ *
+ * If a bucket is given, each row summarises a sensor's samples in one bucket of time:
+ * the timestamp is the start of the bucket, the value is the mean, and the min, max and count
+ * are over the bucket. Otherwise each row is one sample, with min and max equal to the value
+ * and a count of 1. When reading all sensors, a bucket that straddles a segment boundary comes
+ * back as two rows with the same timestamp; use buckets that divide the segment span to avoid
+ * this.
+ */
+class SampleCursor extends AbstractWindowedCursor {
+
+    private static final String TAG = "SampleCursor";
+
+    static final String COLUMN_SERNO = "serno";
+    static final String COLUMN_TIMESTAMP = "timestamp";
+    static final String COLUMN_VALUE = "value";
+    static final String COLUMN_MIN = "min";
+    static final String COLUMN_MAX = "max";
+    static final String COLUMN_COUNT = "count";
+
+    static final String[] COLUMNS = {
+            COLUMN_SERNO, COLUMN_TIMESTAMP, COLUMN_VALUE, COLUMN_MIN, COLUMN_MAX, COLUMN_COUNT
+    };
+
+    /**
+     * Produces rows from a reader, folding samples into buckets if asked to
+     */
+    private class Rows {
+        final SampleLog.Reader reader = mLog.reader(mSerno, mFrom, mTo);
+        // Set when the reader is on a sample that isn't in a row yet
+        boolean pending = false;
+        long serno, timestamp;
+        double value, min, max;
+        int count;
+
+        boolean next() {
+            try {
+                if (mBucket <= 0) {
+                    if (!reader.next())
+                        return false;
+                    serno = reader.getSerno();
+                    timestamp = reader.getTimestamp();
+                    value = min = max = reader.getValue();
+                    count = 1;
+                    return true;
+                }
+                if (!pending && !reader.next())
+                    return false;
+                serno = reader.getSerno();
+                timestamp = reader.getTimestamp() - reader.getTimestamp() % mBucket;
+                double sum = min = max = reader.getValue();
+                count = 1;
+                pending = false;
+                while (reader.next()) {
+                    if (reader.getSerno() != serno || reader.getTimestamp() >= timestamp + mBucket) {
+                        pending = true;
+                        break;
+                    }
+                    double v = reader.getValue();
+                    sum += v;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                    count++;
+                }
+                value = sum / count;
+                return true;
+            } catch (IOException ioe) {
+                // Ends the cursor early; there's no way to report it through the Cursor API
+                Log.e(TAG, mLog.getDirectory() + " read failed " + ioe);
+                return false;
+            }
+        }
+    }
+
+    private final SampleLog mLog;
+    private final Long mSerno;
+    private final long mFrom, mTo, mBucket;
+    // Map from projection column to index in COLUMNS
+    private final String[] mProjection;
+    private final int[] mColumnMap;
+
+    private Rows mRows;
+    // Position of the row held in mRows, -1 if none
+    private int mRowPosition = -1;
+    private int mCount = -1;
+    // Rows that fitted in the first window, to place later windows around the one wanted
+    private int mWindowRows = 0;
+
+    /**
+     * @param log        log to read
+     * @param serno      sensor to read, or null for all
+     * @param from       start of the time range, inclusive
+     * @param to         end of the time range, exclusive
+     * @param bucket     ms to summarise samples over, or 0 for raw samples
+     * @param projection columns wanted, null for all
+     * @throws IllegalArgumentException if the projection names an unknown column
+     */
+    SampleCursor(SampleLog log, Long serno, long from, long to, long bucket, String[] projection) {
+        mLog = log;
+        mSerno = serno;
+        mFrom = from;
+        mTo = to;
+        mBucket = bucket;
+        mProjection = projection != null ? projection : COLUMNS;
+        mColumnMap = new int[mProjection.length];
+        for (int i = 0; i < mProjection.length; i++) {
+            mColumnMap[i] = -1;
+            for (int j = 0; j < COLUMNS.length; j++) {
+                if (COLUMNS[j].equals(mProjection[i]))
+                    mColumnMap[i] = j;
+            }
+            if (mColumnMap[i] < 0)
+                throw new IllegalArgumentException("Unknown column " + mProjection[i]);
+        }
+        mRows = new Rows();
+    }
+
+    @Override
+    public int getCount() {
+        if (mCount < 0)
+            fillWindow(0);
+        return mCount;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (mWindow == null || newPosition < mWindow.getStartPosition()
+                || newPosition >= mWindow.getStartPosition() + mWindow.getNumRows())
+            fillWindow(Math.max(0, newPosition - mWindowRows / 3));
+        // Only short if the log couldn't be read
+        return newPosition < mWindow.getStartPosition() + mWindow.getNumRows();
+    }
+
+    private boolean nextRow() {
+        if (!mRows.next())
+            return false;
+        mRowPosition++;
+        return true;
+    }
+
+    /**
+     * Fill the window with as many rows as fit, starting at a position. If the rows haven't
+     * been counted yet, the rest are counted.
+     */
+    private void fillWindow(int start) {
+        if (mWindow == null)
+            setWindow(new CursorWindow(TAG));
+        else
+            mWindow.clear();
+        mWindow.setStartPosition(start);
+        mWindow.setNumColumns(mProjection.length);
+
+        if (start < mRowPosition) {
+            mRows = new Rows();
+            mRowPosition = -1;
+        }
+        while (mRowPosition < start) {
+            if (!nextRow())
+                break;
+        }
+        if (mRowPosition == start) {
+            // Stops with mRows on the first row that didn't fit, or the last row
+            while (putRow(mRowPosition)) {
+                if (!nextRow())
+                    break;
+            }
+        }
+        if (mCount < 0) {
+            while (nextRow())
+                continue;
+            mCount = mRowPosition + 1;
+            mWindowRows = mWindow.getNumRows();
+        }
+    }
+
+    /**
+     * Put the row held in mRows into the window
+     *
+     * @return false if the window is full
+     */
+    private boolean putRow(int position) {
+        if (!mWindow.allocRow())
+            return false;
+        for (int i = 0; i < mColumnMap.length; i++) {
+            boolean put;
+            switch (mColumnMap[i]) {
+                case 0:
+                    put = mWindow.putLong(mRows.serno, position, i);
+                    break;
+                case 1:
+                    put = mWindow.putLong(mRows.timestamp, position, i);
+                    break;
+                case 2:
+                    put = mWindow.putDouble(mRows.value, position, i);
+                    break;
+                case 3:
+                    put = mWindow.putDouble(mRows.min, position, i);
+                    break;
+                case 4:
+                    put = mWindow.putDouble(mRows.max, position, i);
+                    break;
+                default:
+                    put = mWindow.putLong(mRows.count, position, i);
+                    break;
+            }
+            if (!put) {
+                mWindow.freeLastRow();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mProjection;
+    }
+}
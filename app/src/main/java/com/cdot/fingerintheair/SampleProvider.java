@@ -0,0 +1,125 @@
+package com.cdot.fingerintheair;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.io.File;
+
+import androidx.preference.PreferenceManager;
+
+/**
+ * Serves range queries over the sample log to other apps. Query
+ * content://com.cdot.fingerintheair.samples/samples with any of these parameters:
+ * <ul>
+ * <li>serno - sensor serial number in hex; all sensors if omitted</li>
+ * <li>from - start of the range, ms since the epoch, inclusive; the start of the log if omitted</li>
+ * <li>to - end of the range, exclusive; the end of the log if omitted</li>
+ * <li>bucket - ms to summarise samples over; raw samples if omitted</li>
+ * </ul>
+ * Rows have the columns in SampleCursor. To pull everything new since the last pull, query
+ * from one ms after the latest timestamp seen.
+ *
+ * Only committed samples are visible. Reading needs the READ_SAMPLES permission, which is
+ * only granted to apps signed with the same key.
+ */
+public class SampleProvider extends ContentProvider {
+
+    static final String AUTHORITY = "com.cdot.fingerintheair.samples";
+    static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/samples");
+
+    static final String PARAMETER_SERNO = "serno";
+    static final String PARAMETER_FROM = "from";
+    static final String PARAMETER_TO = "to";
+    static final String PARAMETER_BUCKET = "bucket";
+
+    private static final String MIME_TYPE = "vnd.android.cursor.dir/vnd." + AUTHORITY;
+
+    // Opened on the first query, and again after the settings change, as the sample file
+    // may have. Only ever read, so it is shared by queries on all threads.
+    private SampleLog mLog = null;
+    // A field, as preferences only hold their listeners weakly
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsListener = (prefs, key) -> {
+        synchronized (SampleProvider.this) {
+            mLog = null;
+        }
+    };
+
+    @Override
+    public boolean onCreate() {
+        PreferenceManager.getDefaultSharedPreferences(getContext())
+                .registerOnSharedPreferenceChangeListener(mSettingsListener);
+        return true;
+    }
+
+    /**
+     * Opening the log only names its directory; segments are listed by each reader, so a
+     * cached log still sees samples written since.
+     */
+    private synchronized SampleLog openLog() {
+        if (mLog == null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+            File sampleFile = SensorService.getSampleFile(new SamplingConfig(prefs.getAll()));
+            mLog = new SampleLog(SampleLog.directoryFor(sampleFile), SampleLog.DEFAULT_SEGMENT_SPAN);
+        }
+        return mLog;
+    }
+
+    private static long getLong(Uri uri, String parameter, long dflt) {
+        String s = uri.getQueryParameter(parameter);
+        if (s == null)
+            return dflt;
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Bad " + parameter + " " + s);
+        }
+    }
+
+    /**
+     * Selection and sort order are not supported; rows come in the order given by
+     * SampleLog.Reader.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (!CONTENT_URI.getPath().equals(uri.getPath()))
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        Long serno = null;
+        String s = uri.getQueryParameter(PARAMETER_SERNO);
+        if (s != null) {
+            try {
+                serno = SampleLog.parseSerno(s);
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Bad " + PARAMETER_SERNO + " " + s);
+            }
+        }
+        long from = getLong(uri, PARAMETER_FROM, Long.MIN_VALUE);
+        long to = getLong(uri, PARAMETER_TO, Long.MAX_VALUE);
+        long bucket = getLong(uri, PARAMETER_BUCKET, 0);
+        SampleCursor cursor = new SampleCursor(openLog(), serno, from, to, bucket, projection);
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Samples are read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Samples are read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Samples are read-only");
+    }
+}
@@ -0,0 +1,262 @@
+package com.cdot.fingerintheair;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * One row per sensor, in serial number order, each with the latest value and a sparkline of
+ * recent history. Must only be used on the main thread.
+ *
+ * Updates are collected as they arrive and applied once per display frame, and only rows whose
+ * value changed are rebound, with a payload so only the changed views are touched. Sparklines
+ * are downsampled from the history with LTTB on the worker, and handed back to the main thread.
+ */
+class SensorListAdapter extends RecyclerView.Adapter<SensorListAdapter.Holder> {
+
+    // Payloads for partial rebinds
+    private static final Object PAYLOAD_VALUE = new Object();
+    private static final Object PAYLOAD_SPARKLINE = new Object();
+
+    // Span of history shown in a sparkline
+    static final long SPARKLINE_WINDOW = SampleHistory.HOUR;
+    // Points plotted in a sparkline
+    static final int SPARKLINE_POINTS = 60;
+
+    /**
+     * Where sparklines get their data
+     */
+    interface HistorySource {
+        /**
+         * @return the history for a sensor, or null if there is none
+         */
+        SampleHistory getHistory(long serno);
+    }
+
+    private static class Row {
+        final long serno;
+        final String name;
+        double value;
+        long timestamp;
+        float[] sparkX = new float[0], sparkY = new float[0];
+        int sparkCount = 0;
+
+        Row(long serno) {
+            this.serno = serno;
+            name = String.format("%X", serno);
+        }
+    }
+
+    static class Holder extends RecyclerView.ViewHolder {
+        final TextView name, value, time;
+        final SparklineView sparkline;
+
+        Holder(View v) {
+            super(v);
+            name = v.findViewById(R.id.sensorName);
+            value = v.findViewById(R.id.sensorValue);
+            time = v.findViewById(R.id.sensorTime);
+            sparkline = v.findViewById(R.id.sensorSparkline);
+        }
+    }
+
+    private final List<Row> mRows = new ArrayList<>();
+    // Latest sample for each sensor since the last frame
+    private final Map<Long, double[]> mPending = new HashMap<>();
+    private final Set<Long> mPendingLost = new HashSet<>();
+    private boolean mFrameScheduled = false;
+
+    private final Executor mWorker;
+    private final HistorySource mSource;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Formatting is only done for rows being bound
+    private final DecimalFormat mValueFormat = new DecimalFormat("0.00\u00B0C");
+    private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+
+    // Only used on the worker; grown to hold all of a sensor's raw history
+    private long[] mSparkTimes = new long[SampleHistory.DEFAULT_RAW_SIZE];
+    private float[] mSparkValues = new float[SampleHistory.DEFAULT_RAW_SIZE];
+
+    private final Choreographer.FrameCallback mFrame = frameTime -> applyPending();
+
+    /**
+     * @param worker runs sparkline downsampling, off the main thread. Must run one task at a
+     *               time, as they share buffers.
+     * @param source history for sparklines
+     */
+    SensorListAdapter(Executor worker, HistorySource source) {
+        mWorker = worker;
+        mSource = source;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Note a new value for a sensor. Shown at the next frame.
+     */
+    void update(long serno, long timestamp, double value) {
+        mPendingLost.remove(serno);
+        mPending.put(serno, new double[]{timestamp, value});
+        scheduleFrame();
+    }
+
+    /**
+     * Note a sensor has gone. Its row is removed at the next frame.
+     */
+    void remove(long serno) {
+        mPending.remove(serno);
+        mPendingLost.add(serno);
+        scheduleFrame();
+    }
+
+    private void scheduleFrame() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mFrame);
+        }
+    }
+
+    private int find(long serno) {
+        int lo = 0, hi = mRows.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long s = mRows.get(mid).serno;
+            if (s == serno)
+                return mid;
+            if (s < serno)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        return -(lo + 1);
+    }
+
+    private void applyPending() {
+        mFrameScheduled = false;
+        for (long serno : mPendingLost) {
+            int pos = find(serno);
+            if (pos >= 0) {
+                mRows.remove(pos);
+                notifyItemRemoved(pos);
+            }
+        }
+        mPendingLost.clear();
+
+        final List<Long> spark = new ArrayList<>(mPending.size());
+        for (Map.Entry<Long, double[]> e : mPending.entrySet()) {
+            long serno = e.getKey();
+            long timestamp = (long) e.getValue()[0];
+            double value = e.getValue()[1];
+            int pos = find(serno);
+            if (pos < 0) {
+                pos = -(pos + 1);
+                Row row = new Row(serno);
+                row.timestamp = timestamp;
+                row.value = value;
+                mRows.add(pos, row);
+                notifyItemInserted(pos);
+            } else {
+                Row row = mRows.get(pos);
+                if (timestamp <= row.timestamp)
+                    continue;
+                row.timestamp = timestamp;
+                row.value = value;
+                notifyItemChanged(pos, PAYLOAD_VALUE);
+            }
+            spark.add(serno);
+        }
+        mPending.clear();
+        if (!spark.isEmpty())
+            mWorker.execute(() -> buildSparklines(spark));
+    }
+
+    /**
+     * Downsample recent history for some sensors, on the worker
+     */
+    private void buildSparklines(List<Long> sernos) {
+        long now = System.currentTimeMillis();
+        for (final long serno : sernos) {
+            SampleHistory history = mSource.getHistory(serno);
+            if (history == null)
+                continue;
+            if (history.getCapacity() > mSparkTimes.length) {
+                mSparkTimes = new long[history.getCapacity()];
+                mSparkValues = new float[history.getCapacity()];
+            }
+            int n = history.getSamples(now - SPARKLINE_WINDOW, Long.MAX_VALUE, mSparkTimes, mSparkValues);
+            final float[] x = new float[SPARKLINE_POINTS], y = new float[SPARKLINE_POINTS];
+            final int count = Lttb.downsample(mSparkTimes, mSparkValues, n, SPARKLINE_POINTS, x, y);
+            mHandler.post(() -> {
+                int pos = find(serno);
+                if (pos < 0)
+                    return;
+                Row row = mRows.get(pos);
+                row.sparkX = x;
+                row.sparkY = y;
+                row.sparkCount = count;
+                notifyItemChanged(pos, PAYLOAD_SPARKLINE);
+            });
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mRows.get(position).serno;
+    }
+
+    @NonNull
+    @Override
+    public Holder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new Holder(LayoutInflater.from(parent.getContext()).inflate(R.layout.sensor_row, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull Holder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        Row row = mRows.get(position);
+        if (payloads.contains(PAYLOAD_VALUE))
+            bindValue(holder, row);
+        if (payloads.contains(PAYLOAD_SPARKLINE))
+            holder.sparkline.setPoints(row.sparkX, row.sparkY, row.sparkCount);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull Holder holder, int position) {
+        Row row = mRows.get(position);
+        holder.name.setText(row.name);
+        bindValue(holder, row);
+        holder.sparkline.setPoints(row.sparkX, row.sparkY, row.sparkCount);
+    }
+
+    private void bindValue(Holder holder, Row row) {
+        holder.value.setText(mValueFormat.format(row.value));
+        holder.time.setText(mTimeFormat.format(new Date(row.timestamp)));
+    }
+}
@@ -13,31 +13,44 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.os.Binder;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
-import android.text.TextUtils;
+import android.os.Looper;
 import android.util.Log;
 
 import com.cdot.onewire.OneWireError;
-import com.cdot.onewire.OneWireSearch;
-import com.cdot.onewire.OneWireDriver;
-import com.cdot.onewire.OneWireThermometer;
 import com.felhr.usbserial.UsbSerialDevice;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import androidx.preference.PreferenceManager;
 
 public class SensorService extends Service {
 
     private static final String TAG = "SensorService";
 
-    public static final String ACTION_LOG = "com.cdot.fingerintheair.LOG";
-    public static final String EXTRA_LOG_MSG = "com.cdot.fingerintheair.LOG_MSG";
-
     public static final String ACTION_SENSOR_UPDATE = "com.cdot.fingerintheair.SENSOR_UPDATE";
     public static final String EXTRA_SENSOR_ID = "com.cdot.fingerintheair.SENSOR_ID";
     public static final String EXTRA_SENSOR_VALUE = "com.cdot.fingerintheair.SENSOR_VALUE";
@@ -45,29 +58,81 @@ public class SensorService extends Service {
 
     public static final String ACTION_SENSOR_LOST = "com.cdot.fingerintheair.SENSOR_LOST";
 
+    // Sent to the service to export all samples to CSV
+    public static final String ACTION_EXPORT_CSV = "com.cdot.fingerintheair.EXPORT_CSV";
+
+    // Private state, such as the devices last seen on each bus. The user's settings are in the
+    // default shared preferences, where the preferences screen puts them.
     public static final String PREFERENCES = "FingerInTheAirPrefs" ;
 
     private static final String ACTION_USB_PERMISSION = "com.cdot.fingerintheair.USB_PERMISSION";
 
-    // PREFERENCE_ must match android:key in prefs_frag,xml
-    static final String PREFERENCE_SAMPLE_FREQUENCY = "sampleFrequency";
-    static final int DEFAULT_SAMPLE_FREQUENCY = 20; // seconds
-    static final String PREFERENCE_SAMPLE_FILE = "sampleFile";
+    // Used when the sample file preference is not set
     static final String DEFAULT_SAMPLE_FILE = new File(Environment.getExternalStoragePublicDirectory("fingerintheair"), "data.csv").toString();
-    static final int DEFAULT_SAMPLE_LIFE = 60 * 60 * 24; // 1 day
-    static final String PREFERENCE_SAMPLE_LIFE = "sampleCount";
 
-    private SharedPreferences mSharedPreferences;
+    // Limits on the stages of the connect pipeline
+    static final long OPEN_TIMEOUT = 5000; // ms
+    static final long RESET_TIMEOUT = 2000; // ms
+    static final long DISCOVERY_TIMEOUT = 60000; // ms, verification and the first search
+    // Longest onDestroy waits for the connect pipelines and bus schedulers to stop
+    static final long STOP_TIMEOUT = 3000; // ms
+
+    /**
+     * Told about buses moving through the connect pipeline. Called on the main thread.
+     */
+    interface ProgressListener {
+        /**
+         * @param port   USB device name
+         * @param stage  stage the bus has reached
+         * @param detail why it failed, or null
+         */
+        void onBusProgress(String port, BusStage stage, String detail);
+    }
 
-    // Map from sensor ID to thread
-    private HashMap<Long, SensorThread> mSensorThreads = new HashMap<Long, SensorThread>();
+    private SharedPreferences mSharedPreferences;
+    private SharedPreferences mSettings;
+    // Replaced, never changed, when the settings change
+    private volatile SamplingConfig mConfig;
+    // Held here because SharedPreferences only keeps a weak reference to its listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsListener =
+            (prefs, key) -> publishConfig();
+
+    // Connect pipelines, and other slow work that must stay off the main thread
+    private final ExecutorService mWorker = Executors.newCachedThreadPool();
+    // Map from USB device name to its connect pipeline, while it is running
+    private final ConcurrentHashMap<String, Future<?>> mConnecting = new ConcurrentHashMap<>();
+    // Map from USB device name to the last stage it reached, so new listeners can catch up
+    private final ConcurrentHashMap<String, BusStage> mBusStages = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<ProgressListener> mProgressListeners = new CopyOnWriteArrayList<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Map from USB device name to the scheduler for the bus on that device. Each bus is
+    // sampled by its own thread.
+    private final ConcurrentHashMap<String, BusScheduler> mBusSchedulers = new ConcurrentHashMap<>();
+
+    // Map from USB device name to the metrics for the bus on it. Kept across reconnects.
+    private final ConcurrentHashMap<String, BusMetrics> mBusMetrics = new ConcurrentHashMap<>();
+
+    // All the sensors being sampled, on all buses
+    private final SensorRegistry mSensorRegistry = new SensorRegistry();
     private UsbManager mUSBManager;
+    private DeviceRegistry mDeviceRegistry;
+
+    // Histories, storage, HTTP and subscribers; everything after the bus schedulers
+    private SamplePipeline mPipeline;
 
     private void log(String s) {
+        log(LogRing.Level.INFO, s);
+    }
+
+    private void log(LogRing.Level level, String s) {
         Log.d(TAG, s);
-        Intent intent = new Intent(ACTION_LOG);
-        intent.putExtra(EXTRA_LOG_MSG, TAG + ": " + s);
-        sendBroadcast(intent);
+        LogRing.APP.log(level, TAG + ": " + s);
+    }
+
+    private void log(LogRing.Level level, String format, Object... args) {
+        Log.d(TAG, String.format(Locale.US, format, args));
+        LogRing.APP.log(level, TAG + ": " + format, args);
     }
 
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
@@ -79,7 +144,7 @@ public class SensorService extends Service {
                     boolean granted = intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false);
                     device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
                     if (!granted) {
-                        log(String.format("Permission to access %s not granted", device.getDeviceName()));
+                        log(LogRing.Level.WARN, "Permission to access %s not granted", device.getDeviceName());
                         return;
                     }
                     connectUSBDevice(device);
@@ -91,49 +156,206 @@ public class SensorService extends Service {
                     break;
                 case UsbManager.ACTION_USB_DEVICE_DETACHED:
                     device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-                    for (Map.Entry<Long, SensorThread> entry : mSensorThreads.entrySet()) {
-                        if (entry.getValue().isOnDevice(device)) {
-                            // Interrupt the SensorThread
-                            entry.getValue().interrupt();
-                            mSensorThreads.remove(entry.getKey());
-                            // Pass on the news to MainActivity
-                            intent = new Intent(ACTION_SENSOR_LOST);
-                            intent.putExtra(EXTRA_SENSOR_ID, entry.getKey());
-                            sendBroadcast(intent);
-                        }
-                    }
+                    disconnectUSBDevice(device.getDeviceName());
                     break;
             }
         }
     };
 
-    private void connectUSBDevice(UsbDevice device) {
+    /**
+     * Start the connect pipeline for a device. Opening the port, resetting the bus and
+     * discovering the devices on it all block on USB, so they run on the worker rather than the
+     * main thread, and each stage is bounded by a timeout.
+     */
+    private void connectUSBDevice(final UsbDevice device) {
         if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_USB_HOST)) {
             log( "FEATURE_USB_HOST MISSING");
             return;
         }
-        //log( "connecting " + device.getDeviceName());
-        UsbDeviceConnection connection = mUSBManager.openDevice(device);
-        if (connection == null) {
-            log( "Connection to " + device.getDeviceName() + " failed. No idea why.");
+        final String name = device.getDeviceName();
+        if (mBusSchedulers.containsKey(name)) {
+            log(name + " is already connected");
             return;
         }
+        FutureTask<Void> pipeline = new FutureTask<Void>(() -> connect(device), null) {
+            @Override
+            protected void done() {
+                mConnecting.remove(name, this);
+            }
+        };
+        if (mConnecting.putIfAbsent(name, pipeline) != null) {
+            log(name + " is already connecting");
+            return;
+        }
+        mWorker.execute(pipeline);
+    }
+
+    /**
+     * Cleans up after a stage the pipeline gave up waiting for
+     */
+    private interface Orphans<T> {
+        /**
+         * Called once the stage's work is no longer running
+         *
+         * @param result what the work returned, or null if it threw or never ran
+         */
+        void discard(T result);
+    }
+
+    // How far a stage of the connect pipeline has got
+    private enum StageState {
+        PENDING, RUNNING, DONE, ABANDONED
+    }
+
+    /**
+     * Run a stage of the connect pipeline on the worker, and wait for it
+     *
+     * @param orphans called exactly once if the stage's result isn't returned, after its work
+     *                has stopped, which may be well after this returns. Null if the stage
+     *                needs no cleaning up.
+     * @throws TimeoutException if the stage took longer than timeout. It is cancelled.
+     * @throws InterruptedException if the pipeline was cancelled
+     * @throws Exception whatever the stage threw
+     */
+    private <T> T runStage(String port, BusStage stage, long timeout, final Callable<T> work,
+                           final Orphans<T> orphans) throws Exception {
+        progress(port, stage, null);
+        // Whichever of the work and the pipeline finds the other has gone calls the orphans.
+        // Cancelling may not stop the work, as bus I/O ignores interrupts.
+        final AtomicReference<StageState> state = new AtomicReference<>(StageState.PENDING);
+        final AtomicReference<T> made = new AtomicReference<>();
+        FutureTask<T> f = new FutureTask<>(() -> {
+            if (!state.compareAndSet(StageState.PENDING, StageState.RUNNING))
+                return null;
+            try {
+                made.set(work.call());
+                return made.get();
+            } finally {
+                if (!state.compareAndSet(StageState.RUNNING, StageState.DONE) && orphans != null)
+                    orphans.discard(made.get());
+            }
+        });
+        mWorker.execute(f);
+        boolean taken = false;
+        try {
+            T result = f.get(timeout, TimeUnit.MILLISECONDS);
+            taken = true;
+            return result;
+        } catch (TimeoutException te) {
+            throw new TimeoutException(stage + " timed out after " + timeout + "ms");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+        } finally {
+            if (!taken) {
+                f.cancel(true);
+                // Work still running calls the orphans itself when it stops. Otherwise it has
+                // either finished, or never started and now never will.
+                if (state.getAndSet(StageState.ABANDONED) != StageState.RUNNING && orphans != null)
+                    orphans.discard(made.get());
+            }
+        }
+    }
 
-        log( String.format("%s connected. Scanning 1-wire bus", device.getDeviceName()));
-
-        OneWireDriver driver = new AndroidSerial1WireDriver(device, connection);
-        OneWireSearch scanner = new OneWireSearch(driver);
-        class MyHandler implements OneWireSearch.Device {
-            public OneWireError device(long serno) {
-                log( String.format("1-wire device %X found on %s", serno, device.getDeviceName()));
-                SensorThread st = new SensorThread(new OneWireThermometer(serno, driver));
-                mSensorThreads.put(serno, st);
-                st.start();
-                return OneWireError.NO_ERROR_SET;
+    /**
+     * The connect pipeline for a device. Cancelled, by interrupting it, if the device is
+     * detached before it finishes. Once the scheduler has been started it owns the driver.
+     */
+    private void connect(final UsbDevice device) {
+        final String name = device.getDeviceName();
+        Serial1WireDriver driver = null;
+        BusScheduler scheduler = null;
+        try {
+            driver = runStage(name, BusStage.OPENING, OPEN_TIMEOUT, () -> {
+                UsbDeviceConnection connection = mUSBManager.openDevice(device);
+                if (connection == null)
+                    throw new IOException("Connection to " + name + " failed. No idea why.");
+                BusMetrics metrics = mBusMetrics.get(name);
+                if (metrics == null) {
+                    mBusMetrics.putIfAbsent(name, new BusMetrics());
+                    metrics = mBusMetrics.get(name);
+                }
+                return new Serial1WireDriver(new UsbSerialPort(device, connection), metrics);
+            }, late -> {
+                if (late != null) {
+                    log(name + " opened too late, closing it");
+                    late.close();
+                }
+            });
+
+            // A reset that times out may still be using the port, so if the stage is given up
+            // the port is closed when the reset returns, not here
+            final Serial1WireDriver bus = driver;
+            driver = null;
+            OneWireError err = runStage(name, BusStage.RESETTING, RESET_TIMEOUT, bus::reset,
+                    late -> bus.close());
+            driver = bus;
+            if (err != OneWireError.NO_ERROR_SET)
+                throw new IOException("bus reset failed " + err);
+
+            List<Long> known = mDeviceRegistry.get(DeviceRegistry.keyFor(device));
+            log(LogRing.Level.INFO, "%s connected. %d known 1-wire devices", name, known.size());
+            scheduler = new BusScheduler(driver, name, mBusListener, mConfig);
+            for (long serno : known)
+                scheduler.addKnownSensor(serno);
+            mBusSchedulers.put(name, scheduler);
+            // In case the settings changed before the scheduler could be found
+            scheduler.setConfig(mConfig);
+            // A detach cancels the pipeline before it looks for a scheduler to stop, so if it
+            // missed this one the interrupt is already pending
+            if (Thread.interrupted()) {
+                mBusSchedulers.remove(name, scheduler);
+                throw new InterruptedException();
+            }
+            scheduler.start();
+            driver = null;
+
+            // SAMPLING is reported by the scheduler
+            if (!scheduler.awaitSampling(DISCOVERY_TIMEOUT)) {
+                mBusSchedulers.remove(name, scheduler);
+                scheduler.interrupt();
+                throw new TimeoutException("discovery timed out after " + DISCOVERY_TIMEOUT + "ms");
             }
+        } catch (InterruptedException | CancellationException ie) {
+            progress(name, BusStage.DISCONNECTED, "while connecting");
+        } catch (Exception e) {
+            progress(name, BusStage.FAILED, e.getMessage() != null ? e.getMessage() : e.toString());
+        } finally {
+            // Not yet handed over to a scheduler
+            if (driver != null)
+                driver.close();
         }
+    }
 
-        scanner.scan(new MyHandler());
+    /**
+     * Stop sampling the bus on a device, or stop connecting to it. The scheduler reports its
+     * sensors lost and closes the port on its way out, so this never waits on the bus.
+     */
+    private void disconnectUSBDevice(String name) {
+        Future<?> pipeline = mConnecting.remove(name);
+        if (pipeline != null)
+            pipeline.cancel(true);
+        BusScheduler bs = mBusSchedulers.remove(name);
+        if (bs != null) {
+            bs.interrupt();
+            progress(name, BusStage.DISCONNECTED, null);
+        }
+    }
+
+    /**
+     * Record the stage a bus has reached, and tell the progress listeners
+     */
+    private void progress(final String port, final BusStage stage, final String detail) {
+        if (stage == BusStage.FAILED)
+            log(LogRing.Level.WARN, port + " " + stage + ": " + detail);
+        else
+            log(port + " " + stage + (detail != null ? " " + detail : ""));
+        if (stage == BusStage.DISCONNECTED)
+            mBusStages.remove(port);
+        else
+            mBusStages.put(port, stage);
+        for (final ProgressListener l : mProgressListeners)
+            mHandler.post(() -> l.onBusProgress(port, stage, detail));
     }
 
     private void requestPermission(UsbDevice device) {
@@ -147,81 +369,117 @@ public class SensorService extends Service {
         }
     }
 
-    private class SensorThread extends Thread {
-        OneWireThermometer thermometer;
-
-        SensorThread(OneWireThermometer t) {
-            thermometer = t;
+    /**
+     * Handles samples from all the bus schedulers
+     */
+    private final BusScheduler.Listener mBusListener = new BusScheduler.Listener() {
+        @Override
+        public void onSamples(SampleBatch batch) {
+            mPipeline.publish(batch);
+            // Tell anyone outside the app about it, if they want to know
+            if (mConfig.isBroadcast()) {
+                for (int i = 0; i < batch.size(); i++) {
+                    Intent intent = new Intent(ACTION_SENSOR_UPDATE);
+                    intent.putExtra(EXTRA_SENSOR_ID, batch.getSerno(i));
+                    intent.putExtra(EXTRA_SENSOR_VALUE, batch.getValue(i));
+                    intent.putExtra(EXTRA_SENSOR_TIMESTAMP, batch.getTimestamp(i));
+                    sendBroadcast(intent);
+                }
+            }
         }
 
-        boolean isOnDevice(UsbDevice d) {
-            return thermometer.getDriver().isUsingPort(d.getDeviceName());
+        @Override
+        public void onSensorAdded(BusScheduler bus, long serno) {
+            mSensorRegistry.add(bus, serno);
         }
 
         @Override
-        public void run() {
-            // Interrupting this thread kills it
-            while (!isInterrupted()) {
-                thermometer.update();
-                long timestamp = System.currentTimeMillis();
-
-                long keep = System.currentTimeMillis() - mSharedPreferences.getInt(SensorService.PREFERENCE_SAMPLE_LIFE, SensorService.DEFAULT_SAMPLE_LIFE) * 1000;
-                File fn = new File(mSharedPreferences.getString(SensorService.PREFERENCE_SAMPLE_FILE, SensorService.DEFAULT_SAMPLE_FILE));
-
-                Vector<String> lines = new Vector<>();
-                try {
-                    FileInputStream fi = new FileInputStream(fn);
-                    StringBuilder fileContent = new StringBuilder();
-
-                    byte[] buffer = new byte[1024];
-                    int n;
-                    while ((n = fi.read(buffer)) != -1) {
-                        fileContent.append(new String(buffer, 0, n));
-                    }
-                    fi.close();
-                    for (String str : fileContent.toString().split("\n")) {
-                        String[] row = str.split(",");
-                        try {
-                            if (Long.parseLong(row[1]) > keep)
-                                lines.add(str);
-                        } catch (NumberFormatException nfe) {
-                            log("Bad time in " + str);
-                        }
-                    }
-                } catch (IOException ioe) {
-                    log( fn + " read failed " + ioe);
-                }
-                lines.insertElementAt(String.format("%X,%d,%g", thermometer.serialNumber, timestamp, thermometer.temperature), 0);
-                try {
-                    FileOutputStream fo = new FileOutputStream(fn);
-                    fo.write(TextUtils.join("\n", lines).getBytes());
-                    fo.close();
-                } catch (IOException ioe) {
-                    log( fn + " write failed " + ioe);
-                }
-
-                // Tell MainActivity about it
-                Intent intent = new Intent(ACTION_SENSOR_UPDATE);
-                intent.putExtra(EXTRA_SENSOR_ID, thermometer.serialNumber);
-                intent.putExtra(EXTRA_SENSOR_VALUE, thermometer.temperature);
-                intent.putExtra(EXTRA_SENSOR_TIMESTAMP, timestamp);
-                sendBroadcast(intent);
-
-                long snooze = (long) mSharedPreferences.getInt(PREFERENCE_SAMPLE_FREQUENCY, DEFAULT_SAMPLE_FREQUENCY) * 1000;
-                try {
-                    Thread.sleep(snooze);
-                } catch (InterruptedException ie) {
-                    break;
-                }
-            }
+        public void onSensorLost(BusScheduler bus, long serno) {
+            mSensorRegistry.remove(bus.getPort(), serno);
+            mPipeline.sensorLost(serno);
             Intent intent = new Intent(ACTION_SENSOR_LOST);
-            intent.putExtra(EXTRA_SENSOR_ID, thermometer.serialNumber);
+            intent.putExtra(EXTRA_SENSOR_ID, serno);
             sendBroadcast(intent);
         }
+
+        @Override
+        public void onSensorsFound(BusScheduler bus, List<Long> sensors) {
+            String port = bus.getPort();
+            UsbDevice device = mUSBManager.getDeviceList().get(port);
+            if (device == null)
+                return; // detached while searching
+            String key = DeviceRegistry.keyFor(device);
+            List<Long> known = mDeviceRegistry.get(key);
+            for (long serno : sensors) {
+                if (!known.contains(serno))
+                    log(LogRing.Level.INFO, "1-wire device %X found on %s", serno, port);
+            }
+            if (!known.equals(sensors))
+                mDeviceRegistry.put(key, sensors);
+        }
+
+        @Override
+        public void onError(String message) {
+            log(LogRing.Level.WARN, message);
+        }
+
+        @Override
+        public void onProgress(BusScheduler bus, BusStage stage) {
+            progress(bus.getPort(), stage, null);
+        }
+    };
+
+    /**
+     * Get the sample file a configuration asks for
+     */
+    static File getSampleFile(SamplingConfig config) {
+        return new File(config.getSampleFile() != null ? config.getSampleFile() : DEFAULT_SAMPLE_FILE);
+    }
+
+    private SamplingConfig loadConfig() {
+        SamplingConfig config = new SamplingConfig(mSettings.getAll());
+        for (String error : config.getErrors())
+            log(LogRing.Level.WARN, "Setting " + error);
+        return config;
+    }
+
+    /**
+     * Build a new configuration from the settings, and hand it to everything that samples or
+     * stores. The sample file and HTTP server are only set up when the service starts.
+     */
+    private void publishConfig() {
+        SamplingConfig config = loadConfig();
+        // A preference written with the value it had, or in another form, changes nothing
+        if (config.equals(mConfig))
+            return;
+        mConfig = config;
+        for (BusScheduler bs : mBusSchedulers.values())
+            bs.setConfig(config);
+        mPipeline.setConfig(config);
     }
+
     @Override
     public void onCreate() {
         mSharedPreferences = getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        mDeviceRegistry = new DeviceRegistry(mSharedPreferences);
+        mSettings = PreferenceManager.getDefaultSharedPreferences(this);
+        SamplingConfig config = mConfig = loadConfig();
+
+        final File sampleFile = getSampleFile(config);
+        mPipeline = new SamplePipeline(sampleFile, config, this::log);
+        mSettings.registerOnSharedPreferenceChangeListener(mSettingsListener);
+
+        if (config.isHttpServer()) {
+            String address = config.getHttpAddress();
+            int port = config.getHttpPort();
+            try {
+                mPipeline.startServer(address, port);
+                log(LogRing.Level.INFO, "Serving samples on http://%s:%d/", address, port);
+            } catch (IOException ioe) {
+                log(LogRing.Level.ERROR, "HTTP server could not bind %s:%d %s", address, port, ioe);
+            }
+        }
+        mWorker.execute(() -> mPipeline.loadRecent(sampleFile));
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
@@ -239,11 +497,11 @@ public class SensorService extends Service {
             // first, dump the hashmap for diagnostic purposes
             for (Map.Entry<String, UsbDevice> entry : usbDevices.entrySet()) {
                 device = entry.getValue();
-                log( String.format("USBDevice %s: %X:%X class:%X:%X is%s supported",
+                log(LogRing.Level.INFO, "USBDevice %s: %X:%X class:%X:%X is%s supported",
                         device.getDeviceName(),
                         device.getVendorId(), device.getProductId(),
                         device.getDeviceClass(), device.getDeviceSubclass(),
-                        UsbSerialDevice.isSupported(device) ? "" : " not"));
+                        UsbSerialDevice.isSupported(device) ? "" : " not");
 
                 if (UsbSerialDevice.isSupported(device)) {
                     foundDevice = true;
@@ -258,17 +516,132 @@ public class SensorService extends Service {
 
     @Override
     public void onDestroy() {
-        // Kill the running sensor threads
-        for (Map.Entry<Long, SensorThread> entry : mSensorThreads.entrySet()) {
-            entry.getValue().interrupt();
-            mSensorThreads.remove(entry.getKey());
+        mSettings.unregisterOnSharedPreferenceChangeListener(mSettingsListener);
+        // Kill the running bus schedulers, and any that are still connecting. Cancelling a
+        // pipeline stops the scheduler it started, so hold on to them to wait for.
+        long end = System.currentTimeMillis() + STOP_TIMEOUT;
+        List<BusScheduler> stopping = new ArrayList<>(mBusSchedulers.values());
+        for (String name : mConnecting.keySet())
+            disconnectUSBDevice(name);
+        mWorker.shutdownNow();
+        try {
+            // Once the pipelines have stopped, no more schedulers can be started
+            mWorker.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            stopping.addAll(mBusSchedulers.values());
+            for (String name : mBusSchedulers.keySet())
+                disconnectUSBDevice(name);
+            // They report their last samples and close their ports on the way out, and the
+            // pipeline has to be open for that
+            for (BusScheduler bs : stopping)
+                bs.join(Math.max(1, end - System.currentTimeMillis()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        for (BusScheduler bs : stopping) {
+            if (bs.isAlive())
+                log(LogRing.Level.WARN, bs.getName() + " did not stop in time");
         }
         unregisterReceiver(mBroadcastReceiver);
-        // Free the ports
+        // Writes out anything still queued, and closes the log
+        mPipeline.close();
 
         super.onDestroy();
     }
 
+    /**
+     * Export all samples to a CSV file alongside the sample store, off the main thread
+     */
+    private void exportCSV() {
+        final File dir = mPipeline.getDirectory();
+        final File csv = new File(dir.getParentFile(), dir.getName() + "-export.csv");
+        new Thread(() -> {
+            try (Writer out = new BufferedWriter(new FileWriter(csv))) {
+                mPipeline.exportCSV(out, 0, Long.MAX_VALUE);
+                log("Exported samples to " + csv);
+            } catch (IOException ioe) {
+                log(LogRing.Level.ERROR, csv + " export failed " + ioe);
+            }
+        }, "Export CSV").start();
+    }
+
+    /**
+     * Get all the sensors currently being sampled, on all buses
+     */
+    List<SensorRegistry.Key> getSensors() {
+        return mSensorRegistry.getAll();
+    }
+
+    /**
+     * Get the writer, for its queue depth and commit latency
+     */
+    SampleWriter getSampleWriter() {
+        return mPipeline.getSampleWriter();
+    }
+
+    /**
+     * Write a snapshot of the metrics for every bus seen since the service started, and
+     * for storage
+     */
+    void dumpMetrics(Writer out) throws IOException {
+        out.write(String.format("Metrics at %tF %<tT, latencies in \u00B5s\n", System.currentTimeMillis()));
+        for (Map.Entry<String, BusMetrics> e : mBusMetrics.entrySet()) {
+            out.write(e.getKey() + (mBusSchedulers.containsKey(e.getKey()) ? "\n" : " (disconnected)\n"));
+            e.getValue().dump(out);
+        }
+        mPipeline.dumpMetrics(out);
+    }
+
+    /**
+     * Get the in-memory history for a sensor
+     *
+     * @return the history, or null if the sensor has never been sampled
+     */
+    SampleHistory getHistory(long serno) {
+        return mPipeline.getHistory(serno);
+    }
+
+    /**
+     * Get the latest value of every sensor with a history, including those loaded from the
+     * sample log that haven't been sampled yet this session
+     */
+    SampleBatch getLatest() {
+        return mPipeline.getLatest();
+    }
+
+    /**
+     * Listen for buses moving through the connect pipeline. The stage each bus has reached
+     * so far is replayed to the listener straight away.
+     */
+    void addProgressListener(final ProgressListener listener) {
+        mProgressListeners.add(listener);
+        for (final Map.Entry<String, BusStage> e : mBusStages.entrySet())
+            mHandler.post(() -> listener.onBusProgress(e.getKey(), e.getValue(), null));
+    }
+
+    void removeProgressListener(ProgressListener listener) {
+        mProgressListeners.remove(listener);
+    }
+
+    /**
+     * Subscribe to sample batches. This is the way for clients in the same process to get
+     * samples; ACTION_SENSOR_UPDATE broadcasts are only sent if
+     * SamplingConfig.PREFERENCE_BROADCAST_SAMPLES is set, for consumers outside the app.
+     *
+     * @param listener told about samples
+     * @param executor to deliver on
+     * @param capacity maximum number of batches queued before overflow kicks in
+     * @param overflow what to do when the queue is full
+     * @return the subscription, to pass to unsubscribe
+     */
+    SampleSubscription subscribe(SampleSubscription.Listener listener, Executor executor,
+                                 int capacity, SampleSubscription.Overflow overflow) {
+        return mPipeline.subscribe(listener, executor, capacity, overflow);
+    }
+
+    void unsubscribe(SampleSubscription sub) {
+        mPipeline.unsubscribe(sub);
+    }
+
     public class LocalBinder extends Binder {
         SensorService getService() {
             return SensorService.this;
@@ -283,6 +656,8 @@ public class SensorService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_EXPORT_CSV.equals(intent.getAction()))
+            exportCSV();
         return Service.START_STICKY;
     }
 }
@@ -0,0 +1,64 @@
+package com.cdot.fingerintheair;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Small line plot with no axes, scaled to fit. Points are expected to be downsampled already;
+ * drawing reuses one Path and allocates nothing.
+ */
+class SparklineView extends View {
+
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path mPath = new Path();
+    private float[] mX = new float[0], mY = new float[0];
+    private int mCount = 0;
+
+    public SparklineView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeWidth(2 * getResources().getDisplayMetrics().density);
+        mPaint.setColor(0xFF3F51B5);
+    }
+
+    /**
+     * Set the points to plot. The arrays are kept, not copied, so must not be changed after.
+     */
+    void setPoints(float[] x, float[] y, int count) {
+        mX = x;
+        mY = y;
+        mCount = count;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mCount < 2)
+            return;
+        float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            minY = Math.min(minY, mY[i]);
+            maxY = Math.max(maxY, mY[i]);
+        }
+        float pad = mPaint.getStrokeWidth();
+        float w = getWidth() - 2 * pad, h = getHeight() - 2 * pad;
+        float spanX = Math.max(mX[mCount - 1] - mX[0], 1);
+        // A flat line is drawn across the middle
+        float spanY = maxY > minY ? maxY - minY : 1;
+        float offY = maxY > minY ? 0 : h / 2;
+        mPath.rewind();
+        for (int i = 0; i < mCount; i++) {
+            float px = pad + (mX[i] - mX[0]) / spanX * w;
+            float py = pad + h - offY - (mY[i] - minY) / spanY * h;
+            if (i == 0)
+                mPath.moveTo(px, py);
+            else
+                mPath.lineTo(px, py);
+        }
+        canvas.drawPath(mPath, mPaint);
+    }
+}
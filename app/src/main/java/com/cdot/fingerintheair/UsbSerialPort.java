@@ -0,0 +1,61 @@
+package com.cdot.fingerintheair;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+
+import com.felhr.usbserial.UsbSerialDevice;
+import com.felhr.usbserial.UsbSerialInterface;
+
+import java.io.IOException;
+
+/**
+ * Serial port using the UsbSerial android usb serial port library
+ */
+class UsbSerialPort implements SerialPort {
+
+    private UsbSerialDevice serialPort;
+    private UsbDeviceConnection mConnection;
+
+    /**
+     * Open the port. This blocks on the USB device, so keep it off the main thread.
+     *
+     * @throws IOException if the device isn't a supported serial adapter, or won't open. The
+     * connection is closed.
+     */
+    UsbSerialPort(UsbDevice device, UsbDeviceConnection connection) throws IOException {
+        mConnection = connection;
+        serialPort = UsbSerialDevice.createUsbSerialDevice(device, connection);
+        if (serialPort == null || !serialPort.syncOpen()) {
+            connection.close();
+            throw new IOException(device.getDeviceName() + " could not be opened as a serial port");
+        }
+    }
+
+    public void configureLine() {
+        serialPort.setDataBits(UsbSerialInterface.DATA_BITS_8);
+        serialPort.setStopBits(UsbSerialInterface.STOP_BITS_1);
+        serialPort.setParity(UsbSerialInterface.PARITY_NONE);
+        serialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
+    }
+
+    public void setBaudRate(int baud) {
+        serialPort.setBaudRate(baud);
+    }
+
+    public int write(byte[] buffer, int offset, int length, int timeout) {
+        return serialPort.syncWrite(buffer, offset, length, timeout);
+    }
+
+    public int read(byte[] buffer, int offset, int length, int timeout) {
+        return serialPort.syncRead(buffer, offset, length, timeout);
+    }
+
+    public String getPortName() {
+        return serialPort.getPortName();
+    }
+
+    public void close() {
+        serialPort.syncClose();
+        mConnection.close();
+    }
+}
@@ -0,0 +1,76 @@
+package com.cdot.fingerintheair;
+
+import com.cdot.onewire.OneWireError;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bus operations through Serial1WireDriver against a simulated bus
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DriverBenchmark {
+
+    // Number of devices on the bus
+    @Param({"1", "12", "50"})
+    int devices;
+
+    // Simulated USB round trip, in microseconds
+    @Param({"0", "125"})
+    long latency;
+
+    private Serial1WireDriver driver;
+    private final byte[] block = new byte[1 + 8 + 1 + BusScheduler.SCRATCHPAD_SIZE];
+    private final byte[] rx = new byte[block.length];
+    private final List<Long> found = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        SimulatedSerialPort port = new SimulatedSerialPort(devices, latency, 1);
+        driver = new Serial1WireDriver(port);
+
+        // Match ROM + Read Scratchpad for the first device
+        long rom = port.getDevices().get(0).rom;
+        block[0] = BusScheduler.MATCH_ROM;
+        for (int i = 0; i < 8; i++)
+            block[1 + i] = (byte) (rom >> (8 * i));
+        block[9] = BusScheduler.READ_SCRATCHPAD;
+        for (int i = 10; i < block.length; i++)
+            block[i] = (byte) 0xFF;
+    }
+
+    @Benchmark
+    public OneWireError reset() {
+        return driver.reset();
+    }
+
+    @Benchmark
+    public byte touchByte() {
+        return driver.touchByte((byte) 0xFF);
+    }
+
+    @Benchmark
+    public boolean touchBlock() {
+        driver.reset();
+        return driver.touchBlock(block, block.length, rx);
+    }
+
+    @Benchmark
+    public int search() {
+        found.clear();
+        RomSearch.search(driver, RomSearch.SEARCH_ROM, found);
+        return found.size();
+    }
+}
@@ -0,0 +1,81 @@
+package com.cdot.fingerintheair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persisting one tick's worth of samples from a bus
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StorageBenchmark {
+
+    // Number of sensors sampled per tick
+    @Param({"1", "12", "50"})
+    int sensors;
+
+    private File directory;
+    private SampleLog log;
+    private long[] sernos;
+    private long timestamp = 0;
+    // Archive after a day, for every sensor
+    private final SampleLog.Retention retention = serno -> 24 * 60 * 60 * 1000L;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("samplelog").toFile();
+        log = new SampleLog(directory, SampleLog.DEFAULT_SEGMENT_SPAN);
+        sernos = new long[sensors];
+        for (int i = 0; i < sensors; i++)
+            sernos[i] = 0x28L | ((long) i << 8);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        directory.delete();
+    }
+
+    private void append() throws IOException {
+        // 20s between ticks
+        timestamp += 20000;
+        for (long serno : sernos)
+            log.append(serno, timestamp, 20.0625);
+        log.expire(timestamp, retention);
+    }
+
+    /**
+     * A tick group committed without a sync, as SampleWriter does with OS_BUFFERED
+     */
+    @Benchmark
+    public void tick() throws IOException {
+        append();
+        log.commit(false);
+    }
+
+    /**
+     * A tick group committed with a sync, as SampleWriter does with SYNC_EACH_COMMIT
+     */
+    @Benchmark
+    public void tickSynced() throws IOException {
+        append();
+        log.commit(true);
+    }
+}
@@ -0,0 +1,142 @@
+package com.cdot.fingerintheair;
+
+/**
+ * Decides when a sensor should next be read, and whether a reading is worth storing.
+ *
+ * A reading that is within the deadband of the last stored value only refreshes the heartbeat,
+ * and the interval backs off towards the maximum. A reading outside the deadband is stored,
+ * and the interval ramps up towards the minimum. Even a stable sensor gets one stored point
+ * per maximum interval, so history has no long gaps.
+ *
+ * A sampler with a negative deadband and equal minimum and maximum intervals samples at a
+ * fixed rate and stores every reading.
+ *
+ * Intervals are always a whole number of bus ticks, and the next read is due that many ticks
+ * after the tick the last was taken in, however late in the tick the read happened. Every
+ * sensor on a bus is due on the same grid, so the sensors due together share a conversion.
+ *
+ * The sampler also keeps the sensor's health. Each read that fails in a row doubles the time
+ * until the next try, up to MAX_BACKOFF, so a bad probe costs the bus less and less time.
+ */
+class AdaptiveSampler {
+
+    // Longest a failing sensor is left before it is tried again
+    static final long MAX_BACKOFF = 10 * 60 * 1000; // ms
+
+    private final double mDeadband;
+    private final long mTick;
+    private final long mMinInterval, mMaxInterval;
+
+    private long mInterval;
+    private long mNextDue = 0;
+    private double mLastStored = Double.NaN;
+    // Tick the last stored reading was taken in
+    private long mLastStoredTick = 0;
+    private volatile long mHeartbeat = 0;
+    // Latest reading, stored or not
+    private double mLastValue = Double.NaN;
+    // Reads that have failed in a row
+    private int mFailures = 0;
+
+    /**
+     * @param deadband    change in value, in degrees, that is worth storing
+     * @param minInterval shortest time between reads, in ms
+     * @param maxInterval longest time between reads, in ms
+     * @param tick        the bus tick, in ms. Both intervals should be a whole number of ticks;
+     *                    they are rounded to one if not.
+     */
+    AdaptiveSampler(double deadband, long minInterval, long maxInterval, long tick) {
+        mDeadband = deadband;
+        mTick = tick;
+        mMinInterval = align(minInterval);
+        mMaxInterval = Math.max(mMinInterval, align(maxInterval));
+        mInterval = mMinInterval;
+    }
+
+    /**
+     * A sampler that reads at a fixed interval and stores everything
+     */
+    static AdaptiveSampler fixed(long interval, long tick) {
+        return new AdaptiveSampler(-1, interval, interval, tick);
+    }
+
+    /**
+     * Round a time to the nearest whole number of ticks, and at least one
+     */
+    private long align(long ms) {
+        return Math.max(1, (ms + mTick / 2) / mTick) * mTick;
+    }
+
+    /**
+     * @return time the sensor should next be read
+     */
+    long getNextDue() {
+        return mNextDue;
+    }
+
+    /**
+     * @return time the sensor was last read successfully, whether or not it was stored
+     */
+    long getHeartbeat() {
+        return mHeartbeat;
+    }
+
+    long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * Take a reading, and schedule the next one
+     *
+     * @param tick      start of the tick the reading was taken in
+     * @param timestamp time of the reading
+     * @return true if the reading should be stored
+     */
+    boolean accept(long tick, long timestamp, double value) {
+        mHeartbeat = timestamp;
+        mLastValue = value;
+        mFailures = 0;
+        boolean changed = Double.isNaN(mLastStored) || Math.abs(value - mLastStored) > mDeadband;
+        if (changed)
+            mInterval = Math.max(mMinInterval, align(mInterval / 2));
+        else
+            mInterval = Math.min(mMaxInterval, align(mInterval + mInterval / 2));
+        boolean store = changed || tick - mLastStoredTick >= mMaxInterval;
+        if (store) {
+            mLastStored = value;
+            mLastStoredTick = tick;
+        }
+        // While backing off, the next read may overshoot the heartbeat; don't let it
+        mNextDue = Math.min(tick + mInterval, mLastStoredTick + mMaxInterval);
+        return store;
+    }
+
+    /**
+     * A read failed; try again after the minimum interval, doubled for each earlier failure
+     * in a row
+     *
+     * @param tick start of the tick the read failed in
+     * @return ms until the next try
+     */
+    long failed(long tick) {
+        long backoff = Math.min(mMinInterval << Math.min(mFailures, 20),
+                Math.max(MAX_BACKOFF - MAX_BACKOFF % mTick, mMinInterval));
+        mFailures++;
+        mNextDue = tick + backoff;
+        return backoff;
+    }
+
+    /**
+     * @return the number of reads that have failed in a row
+     */
+    int getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return the latest reading, or NaN if there hasn't been one
+     */
+    double getLastValue() {
+        return mLastValue;
+    }
+}
@@ -0,0 +1,69 @@
+package com.cdot.fingerintheair;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and error counters for one bus, recorded by its driver and scheduler.
+ * Outlives the driver, so a bus that keeps dropping off can be diagnosed across reconnects.
+ */
+class BusMetrics {
+
+    enum Timer {
+        RESET, TOUCH_BYTE, TOUCH_BLOCK,
+        // Convert T until every thermometer has finished, or the conversion time is up
+        CONVERSION
+    }
+
+    enum Counter {
+        RESET_FAILED, NO_DEVICES_ON_NET,
+        // Reads from the UART that came back short
+        TIMEOUT,
+        // Scratchpads that failed the CRC check
+        CRC_FAILURE,
+        // Times a bus has dropped from overdrive to standard speed because it misbehaved
+        OVERDRIVE_FALLBACK,
+        // Fast reads whose value looked wrong, and were checked against the full scratchpad
+        IMPLAUSIBLE,
+        // Reads retried after failing
+        READ_RETRY
+    }
+
+    private final LatencyHistogram[] mTimers = new LatencyHistogram[Timer.values().length];
+    private final AtomicLongArray mCounters = new AtomicLongArray(Counter.values().length);
+
+    BusMetrics() {
+        for (int i = 0; i < mTimers.length; i++)
+            mTimers[i] = new LatencyHistogram();
+    }
+
+    /**
+     * @param started System.nanoTime() at the start of the operation
+     */
+    void record(Timer timer, long started) {
+        mTimers[timer.ordinal()].record(System.nanoTime() - started);
+    }
+
+    void count(Counter counter) {
+        mCounters.incrementAndGet(counter.ordinal());
+    }
+
+    LatencyHistogram get(Timer timer) {
+        return mTimers[timer.ordinal()];
+    }
+
+    long get(Counter counter) {
+        return mCounters.get(counter.ordinal());
+    }
+
+    /**
+     * Write a snapshot, one line per timer (in us) and counter
+     */
+    void dump(Writer out) throws IOException {
+        for (Timer t : Timer.values())
+            out.write("  " + t + " " + get(t) + "\n");
+        for (Counter c : Counter.values())
+            out.write("  " + c + " " + get(c) + "\n");
+    }
+}
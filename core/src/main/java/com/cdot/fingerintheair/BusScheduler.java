@@ -0,0 +1,932 @@
+package com.cdot.fingerintheair;
+
+import com.cdot.onewire.OneWireError;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples all the thermometers on a single 1-wire bus. There is exactly one scheduler for each
+ * bus, and it is the only thing that talks to the driver. Schedulers for different buses run
+ * fully in parallel.
+ *
+ * Devices known from an earlier session are verified with Match ROM and a CRC-checked
+ * scratchpad read, and sampling starts as soon as they have been. A full search only runs
+ * straight away if there were no known devices or some failed to verify; otherwise it runs
+ * after the first tick, to pick up any new devices.
+ *
+ * Each sensor has an AdaptiveSampler that decides when it is next due and whether a reading
+ * is stored. A tick only happens when some sensor is due, and only due sensors are read.
+ * Ticks are on a grid of the bus tick, the shortest interval of any sensor, and every
+ * sensor's interval is a whole number of ticks, so all the sensors due in a tick share a
+ * single conversion however long reading them takes.
+ *
+ * DS18B20s are configured to their resolution the first time they are sampled, and
+ * conversion completion is polled rather than waited out, unless a device on the bus is
+ * parasite powered and so can't signal it.
+ *
+ * Intervals, resolutions and the alarm margin all come from a SamplingConfig snapshot. A new
+ * snapshot can be set at any time, and is applied between ticks; only the sensors whose
+ * settings it changes get a new sampler or are configured again.
+ *
+ * Progress through verification and search is reported to the listener, and anyone waiting
+ * for the bus to come up can awaitSampling() with a timeout.
+ *
+ * On each tick a single Skip ROM + Convert T starts a conversion on every thermometer at once,
+ * so a full-bus sample costs one conversion time rather than one per sensor. The temperatures
+ * are then read one by one using Match ROM, reading just the two temperature bytes of each
+ * scratchpad. Only a value that looks wrong is read again in full and checked against the
+ * scratchpad CRC. A sensor whose read fails is retried once the others have been read, and one
+ * that keeps failing is backed off by its sampler, so a bad probe doesn't hold up the rest of
+ * the bus. A UART that stops responding is backed off too, rather than killing the scheduler.
+ *
+ * When the configuration has an alarm margin, each thermometer's TH and TL are programmed to a band around its
+ * last reading. Each tick is one broadcast conversion followed by an Alarm Search, and only
+ * the sensors that answer it - those that have moved out of their band - are read and
+ * re-banded. Other sensors are only read on a slower heartbeat, so on a large, mostly stable
+ * bus a tick costs time in proportion to the number of sensors that have changed. The bands
+ * are written to the scratchpad only, never copied to EEPROM.
+ *
+ * When the configuration asks for overdrive, the scheduler puts the bus into it with Overdrive
+ * Skip ROM, and keeps it there only if every sensor answers at overdrive speed. A bus that
+ * keeps failing in overdrive drops back to standard speed, and stays there until overdrive is
+ * configured again. Searches are always done at standard speed, so devices that can't do
+ * overdrive are still found, and the bus is then negotiated again unless overdrive has been
+ * given up on.
+ *
+ * ROM ids are packed into a long with the family code in the least significant byte, the
+ * order in which they come off the wire.
+ */
+class BusScheduler extends Thread {
+
+    interface Listener {
+        /**
+         * The samples read in a tick. Called once per tick, even if no samples were read.
+         */
+        void onSamples(SampleBatch batch);
+
+        /**
+         * A sensor has been added to the schedule, either because it was verified or
+         * because a search found it
+         */
+        void onSensorAdded(BusScheduler bus, long serno);
+
+        /**
+         * A sensor is no longer being sampled, because it has gone from the bus or because
+         * the scheduler has stopped
+         */
+        void onSensorLost(BusScheduler bus, long serno);
+
+        /**
+         * A search has completed
+         *
+         * @param sensors all the devices found on the bus
+         */
+        void onSensorsFound(BusScheduler bus, List<Long> sensors);
+
+        /**
+         * Something went wrong that the user should know about
+         */
+        void onError(String message);
+
+        /**
+         * The scheduler has moved on to a new stage: VERIFYING, SEARCHING or SAMPLING
+         */
+        void onProgress(BusScheduler bus, BusStage stage);
+    }
+
+    // 1-wire ROM commands
+    static final byte SKIP_ROM = (byte) 0xCC;
+    static final byte MATCH_ROM = (byte) 0x55;
+    static final byte OVERDRIVE_SKIP_ROM = (byte) 0x3C;
+
+    // DS18x20 function commands
+    static final byte CONVERT_T = (byte) 0x44;
+    static final byte READ_SCRATCHPAD = (byte) 0xBE;
+    static final byte WRITE_SCRATCHPAD = (byte) 0x4E;
+    static final byte READ_POWER_SUPPLY = (byte) 0xB4;
+
+    // DS18x20 family codes
+    static final int FAMILY_DS18S20 = 0x10;
+    static final int FAMILY_DS18B20 = 0x28;
+
+    static final int SCRATCHPAD_SIZE = 9;
+
+    // Worst case (12 bit) conversion time
+    static final int CONVERSION_TIME = 750; // ms
+
+    // DS18B20 resolutions, in bits
+    static final int MIN_RESOLUTION = 9;
+    static final int MAX_RESOLUTION = 12;
+
+    // Time between polls for conversion complete
+    static final int POLL_INTERVAL = 10; // ms
+
+    // Time to wait when there is nothing to sample
+    static final long IDLE_TIME = 1000; // ms
+
+    // Failures in a row in overdrive before the bus falls back to standard speed
+    static final int OVERDRIVE_MAX_FAILURES = 3;
+
+    // Scratchpad bytes in a fast read: the temperature
+    static final int FAST_READ_SIZE = 2;
+    // DS18x20 measurement range, and the value they power up with before any conversion
+    static final double MIN_TEMPERATURE = -55;
+    static final double MAX_TEMPERATURE = 125;
+    static final double POWER_ON_TEMPERATURE = 85;
+    // A change bigger than this since the last reading is checked against the CRC
+    static final double MAX_JUMP = 10; // degrees
+
+    // Retries of a failed read in a tick, and the delay before the first, doubled each time
+    static final int READ_RETRIES = 2;
+    static final int RETRY_DELAY = 5; // ms
+
+    // Longest wait before trying again after the UART stops responding
+    static final long MAX_BUS_BACKOFF = 30000; // ms
+
+    private final Serial1WireDriver mDriver;
+    private final String mPort;
+    private final Listener mListener;
+    // Devices known from an earlier session, to be verified before sampling starts
+    private final List<Long> mKnown = new ArrayList<>();
+    // Devices being sampled. Only changed by the scheduler thread.
+    private final List<Long> mSensors = new CopyOnWriteArrayList<>();
+    private volatile boolean mSearchRequested = false;
+    // Map from sensor to its sampler. Only used by the scheduler thread.
+    private final Map<Long, AdaptiveSampler> mSamplers = new HashMap<>();
+    // Sensors whose resolution has been set. Only used by the scheduler thread.
+    private final Set<Long> mConfigured = new HashSet<>();
+    // The latest snapshot, and the one the schedule is currently following
+    private volatile SamplingConfig mConfig;
+    private SamplingConfig mApplied;
+    // Released when sampling starts
+    private final CountDownLatch mSampling = new CountDownLatch(1);
+
+    // When each sensor was last read, and which have a band programmed around that reading.
+    // Only used by the scheduler thread.
+    private final Map<Long, Long> mLastRead = new HashMap<>();
+    private final Set<Long> mBanded = new HashSet<>();
+    private final List<Long> mAlarmed = new ArrayList<>();
+    private long mNextAlarmTick = 0;
+
+    // Failures in a row at overdrive speed, and whether overdrive has been given up on.
+    // Only used by the scheduler thread.
+    private int mOverdriveFailures = 0;
+    private boolean mOverdriveRefused = false;
+
+    // Start of the current tick, on the grid of the bus tick. Only used by the scheduler
+    // thread.
+    private long mTick = 0;
+
+    // Whether any device on the bus is parasite powered, and whether that is known since the
+    // last search. Only used by the scheduler thread.
+    private boolean mParasite = false;
+    private boolean mPowerKnown = false;
+
+    // Ticks in a row that the UART has stopped responding in
+    private int mBusFailures = 0;
+
+    // Sensors to read in a tick, those to retry, and what was read. Only used by the
+    // scheduler thread.
+    private final List<Long> mToRead = new ArrayList<>();
+    private final List<Long> mRetry = new ArrayList<>();
+    private final Map<Long, Double> mReadings = new HashMap<>();
+
+    // Match ROM + Write Scratchpad (TH, TL, config)
+    private final byte[] mWriteTx = new byte[1 + 8 + 1 + 3];
+
+    // Match ROM + Read Scratchpad for just the temperature
+    private final byte[] mFastTx = new byte[1 + 8 + 1 + FAST_READ_SIZE];
+
+    // Match ROM + Read Scratchpad, sent as a single block, and the response
+    private final byte[] mReadTx = new byte[1 + 8 + 1 + SCRATCHPAD_SIZE];
+    private final byte[] mReadRx = new byte[mReadTx.length];
+    private final byte[] mScratchpad = new byte[SCRATCHPAD_SIZE];
+
+    /**
+     * @param driver   the driver for the bus
+     * @param port     name of the port the driver is using
+     * @param listener told about samples
+     * @param config   the initial sampling configuration
+     */
+    BusScheduler(Serial1WireDriver driver, String port, Listener listener, SamplingConfig config) {
+        super("BusScheduler " + port);
+        mDriver = driver;
+        mPort = port;
+        mListener = listener;
+        mConfig = mApplied = config;
+    }
+
+    Serial1WireDriver getDriver() {
+        return mDriver;
+    }
+
+    String getPort() {
+        return mPort;
+    }
+
+    /**
+     * Add a device known from an earlier session. It will be verified before it is sampled.
+     * Must be called before the scheduler is started.
+     */
+    void addKnownSensor(long serno) {
+        mKnown.add(serno);
+    }
+
+    private AdaptiveSampler getSampler(long serno) {
+        AdaptiveSampler sampler = mSamplers.get(serno);
+        if (sampler == null) {
+            sampler = mApplied.createSampler(serno);
+            mSamplers.put(serno, sampler);
+        }
+        return sampler;
+    }
+
+    /**
+     * Set a new sampling configuration. Safe to call from any thread; it is applied before
+     * the next tick.
+     */
+    void setConfig(SamplingConfig config) {
+        mConfig = config;
+    }
+
+    /**
+     * Bring the schedule into line with the latest configuration, if it has changed
+     */
+    private void applyConfig() {
+        SamplingConfig config = mConfig;
+        if (config == mApplied)
+            return;
+        // An equal snapshot changes nothing, and the sensors keep their samplers
+        if (config.equals(mApplied)) {
+            mApplied = config;
+            return;
+        }
+        for (long serno : mSensors) {
+            if (config.getResolution(serno) != mApplied.getResolution(serno))
+                mConfigured.remove(serno);
+            if (!config.sameSampling(mApplied, serno))
+                mSamplers.remove(serno);
+        }
+        if (config.getAlarmMargin() != mApplied.getAlarmMargin())
+            mBanded.clear();
+        if (config.isOverdrive() != mApplied.isOverdrive()) {
+            mOverdriveRefused = false;
+            mOverdriveFailures = 0;
+            if (!config.isOverdrive() && mDriver.isOverdrive())
+                leaveOverdrive();
+        }
+        mApplied = config;
+    }
+
+    /**
+     * Put every device on the bus into overdrive with Overdrive Skip ROM, and check that each
+     * sensor answers at overdrive speed. If any doesn't, the bus is taken back to standard.
+     *
+     * @return true if the bus is now running at overdrive speed
+     */
+    boolean enterOverdrive() {
+        mDriver.setOverdrive(false);
+        if (mDriver.reset() != OneWireError.NO_ERROR_SET)
+            return false;
+        mDriver.touchByte(OVERDRIVE_SKIP_ROM);
+        mDriver.setOverdrive(true);
+        // Devices, or an adapter, that can't do overdrive won't answer an overdrive reset
+        boolean ok = mDriver.reset() == OneWireError.NO_ERROR_SET;
+        for (long serno : mSensors) {
+            if (!ok || isInterrupted())
+                break;
+            ok = verify(serno);
+        }
+        if (!ok)
+            leaveOverdrive();
+        return ok;
+    }
+
+    /**
+     * Take the bus back to standard speed. A reset at standard speed brings every device out
+     * of overdrive.
+     */
+    void leaveOverdrive() {
+        mDriver.setOverdrive(false);
+        mDriver.reset();
+    }
+
+    /**
+     * Note a failure on the bus, and fall back to standard speed if there have been too many
+     * in a row in overdrive
+     */
+    private void overdriveFailed() {
+        if (!mDriver.isOverdrive() || ++mOverdriveFailures < OVERDRIVE_MAX_FAILURES)
+            return;
+        leaveOverdrive();
+        mOverdriveRefused = true;
+        mDriver.getMetrics().count(BusMetrics.Counter.OVERDRIVE_FALLBACK);
+        mListener.onError(String.format("%s: failing in overdrive, back to standard speed", mPort));
+    }
+
+    /**
+     * Get the worst case conversion time at the highest resolution configured, rounded up
+     */
+    int getConversionTime() {
+        int shift = MAX_RESOLUTION - mApplied.getMaxResolution();
+        return (CONVERSION_TIME + (1 << shift) - 1) >> shift;
+    }
+
+    /**
+     * Ask for a full search of the bus, which will be done between ticks
+     */
+    void requestSearch() {
+        mSearchRequested = true;
+    }
+
+    List<Long> getSensors() {
+        return mSensors;
+    }
+
+    /**
+     * Wait for verification and the initial search to finish, and sampling to start
+     *
+     * @param timeout ms to wait
+     * @return false if sampling didn't start in time
+     */
+    boolean awaitSampling(long timeout) throws InterruptedException {
+        return mSampling.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Find out whether any device on the bus is parasite powered, with Skip ROM and Read Power
+     * Supply. A parasite powered device pulls the read slot that follows low.
+     *
+     * @return false if the bus didn't respond to the reset
+     */
+    boolean checkPowerSupply() {
+        if (mDriver.reset() != OneWireError.NO_ERROR_SET)
+            return false;
+        mDriver.touchByte(SKIP_ROM);
+        mDriver.touchByte(READ_POWER_SUPPLY);
+        mParasite = !mDriver.touchBit(true);
+        mPowerKnown = true;
+        return true;
+    }
+
+    /**
+     * Start a temperature conversion on every thermometer on the bus, and wait for it
+     * to finish. Rather than sleeping for the worst case, read time slots are polled; devices
+     * hold the line low until their conversion is done. Parasite powered devices can't, and
+     * read as done at once, so if there are any on the bus the worst case conversion time is
+     * waited out instead. It is also the backstop for polling.
+     *
+     * @return false if the bus didn't respond to the reset
+     */
+    boolean convertAll() {
+        // Tried again on the next tick if the bus doesn't answer
+        if (!mPowerKnown)
+            checkPowerSupply();
+        OneWireError err = mDriver.reset();
+        if (err != OneWireError.NO_ERROR_SET) {
+            mListener.onError(String.format("%s: convert reset failed %s", mPort, err));
+            overdriveFailed();
+            return false;
+        }
+        long started = System.nanoTime();
+        mDriver.touchByte(SKIP_ROM);
+        mDriver.touchByte(CONVERT_T);
+        awaitConversion();
+        mDriver.getMetrics().record(BusMetrics.Timer.CONVERSION, started);
+        return true;
+    }
+
+    /**
+     * Start a temperature conversion on a single device, and wait for it to finish
+     *
+     * @return false if the bus didn't respond to the reset
+     */
+    boolean convert(long serno) {
+        if (mDriver.reset() != OneWireError.NO_ERROR_SET)
+            return false;
+        mReadTx[0] = MATCH_ROM;
+        for (int i = 0; i < 8; i++)
+            mReadTx[1 + i] = (byte) (serno >> (8 * i));
+        mReadTx[9] = CONVERT_T;
+        if (!mDriver.touchBlock(mReadTx, 10, mReadRx))
+            return false;
+        awaitConversion();
+        return true;
+    }
+
+    /**
+     * Wait for the conversion just started to finish, polling unless a device is parasite
+     * powered
+     */
+    private void awaitConversion() {
+        if (mParasite) {
+            mDriver.msDelay(getConversionTime());
+            return;
+        }
+        long deadline = System.currentTimeMillis() + getConversionTime();
+        while (!mDriver.touchBit(true)) {
+            if (System.currentTimeMillis() >= deadline || isInterrupted())
+                break;
+            mDriver.msDelay(POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * Write its configured resolution to a DS18B20, keeping its alarm thresholds. Other
+     * families have a fixed resolution and are left alone.
+     *
+     * @return false if the device could not be configured
+     */
+    boolean configure(long serno) {
+        if ((serno & 0xFF) != FAMILY_DS18B20)
+            return true;
+        if (!readScratchpad(serno, mScratchpad))
+            return false;
+        if (crc8(mScratchpad, 0, SCRATCHPAD_SIZE) != 0) {
+            mDriver.getMetrics().count(BusMetrics.Counter.CRC_FAILURE);
+            return false;
+        }
+        if (mScratchpad[4] == configByte(serno))
+            return true;
+        return writeScratchpad(serno, mScratchpad[2], mScratchpad[3]);
+    }
+
+    private byte configByte(long serno) {
+        return (byte) (0x1F | ((mApplied.getResolution(serno) - MIN_RESOLUTION) << 5));
+    }
+
+    /**
+     * Write the alarm thresholds of a device, and for a DS18B20 the configured resolution.
+     * The DS18S20 has no configuration register, so only gets TH and TL.
+     *
+     * @return false if the write failed
+     */
+    boolean writeScratchpad(long serno, byte th, byte tl) {
+        if (mDriver.reset() != OneWireError.NO_ERROR_SET)
+            return false;
+        mWriteTx[0] = MATCH_ROM;
+        for (int i = 0; i < 8; i++)
+            mWriteTx[1 + i] = (byte) (serno >> (8 * i));
+        mWriteTx[9] = WRITE_SCRATCHPAD;
+        mWriteTx[10] = th;
+        mWriteTx[11] = tl;
+        mWriteTx[12] = configByte(serno);
+        int len = (serno & 0xFF) == FAMILY_DS18B20 ? mWriteTx.length : mWriteTx.length - 1;
+        return mDriver.touchBlock(mWriteTx, len, mReadRx);
+    }
+
+    /**
+     * Program a sensor's alarm band around a reading. The device compares the whole degrees
+     * of each conversion, and alarms if they are at or beyond either threshold.
+     *
+     * @return false if the write failed
+     */
+    boolean setAlarmBand(long serno, double temperature) {
+        int t = (int) Math.floor(temperature);
+        int margin = mApplied.getAlarmMargin();
+        int th = Math.min(t + margin, Byte.MAX_VALUE);
+        int tl = Math.max(t - margin, Byte.MIN_VALUE);
+        return writeScratchpad(serno, (byte) th, (byte) tl);
+    }
+
+    /**
+     * Read the scratchpad of a single device
+     *
+     * @param scratchpad buffer to read into, SCRATCHPAD_SIZE bytes
+     * @return false if it could not be read
+     */
+    boolean readScratchpad(long serno, byte[] scratchpad) {
+        OneWireError err = mDriver.reset();
+        if (err != OneWireError.NO_ERROR_SET) {
+            mListener.onError(String.format("%X: read reset failed %s", serno, err));
+            return false;
+        }
+        mReadTx[0] = MATCH_ROM;
+        for (int i = 0; i < 8; i++)
+            mReadTx[1 + i] = (byte) (serno >> (8 * i));
+        mReadTx[9] = READ_SCRATCHPAD;
+        for (int i = 10; i < mReadTx.length; i++)
+            mReadTx[i] = (byte) 0xFF;
+        try {
+            if (!mDriver.touchBlock(mReadTx, mReadTx.length, mReadRx)) {
+                mListener.onError(String.format("%X: read failed", serno));
+                return false;
+            }
+        } catch (Serial1WireDriver.TimeoutError te) {
+            mListener.onError(String.format("%X: read failed %s", serno, te.getMessage()));
+            return false;
+        }
+        System.arraycopy(mReadRx, 10, scratchpad, 0, SCRATCHPAD_SIZE);
+        return true;
+    }
+
+    /**
+     * Read the temperature of a single device. Only the two temperature bytes are read; the
+     * device is left part way through the scratchpad, which the reset that starts the next
+     * transaction takes care of. If the value looks wrong - the power-on value, an all 1s
+     * read from a device that didn't answer, out of range, or a big jump since the last
+     * reading - the whole scratchpad is read and the value only believed if the CRC is good.
+     * The power-on value with a good CRC is only believed from a device that was already
+     * reading close to it; otherwise the device may have lost power since it converted, so
+     * it is made to convert again and read again.
+     *
+     * @param last the last reading, or NaN if there hasn't been one
+     * @return the temperature, or NaN if it could not be read
+     */
+    double readTemperature(long serno, double last) {
+        OneWireError err = mDriver.reset();
+        if (err != OneWireError.NO_ERROR_SET) {
+            mListener.onError(String.format("%X: read reset failed %s", serno, err));
+            return Double.NaN;
+        }
+        mFastTx[0] = MATCH_ROM;
+        for (int i = 0; i < 8; i++)
+            mFastTx[1 + i] = (byte) (serno >> (8 * i));
+        mFastTx[9] = READ_SCRATCHPAD;
+        for (int i = 10; i < mFastTx.length; i++)
+            mFastTx[i] = (byte) 0xFF;
+        try {
+            if (!mDriver.touchBlock(mFastTx, mFastTx.length, mReadRx))
+                return Double.NaN;
+        } catch (Serial1WireDriver.TimeoutError te) {
+            mListener.onError(String.format("%X: read failed %s", serno, te.getMessage()));
+            return Double.NaN;
+        }
+        System.arraycopy(mReadRx, 10, mScratchpad, 0, FAST_READ_SIZE);
+        double temperature = decodeTemperature(serno, mScratchpad);
+        boolean allOnes = mScratchpad[0] == (byte) 0xFF && mScratchpad[1] == (byte) 0xFF;
+        boolean jumped = !Double.isNaN(last) && Math.abs(temperature - last) > MAX_JUMP;
+        if (!allOnes && !jumped && temperature != POWER_ON_TEMPERATURE
+                && temperature >= MIN_TEMPERATURE && temperature <= MAX_TEMPERATURE)
+            return temperature;
+
+        mDriver.getMetrics().count(BusMetrics.Counter.IMPLAUSIBLE);
+        if (!verify(serno))
+            return Double.NaN;
+        temperature = decodeTemperature(serno, mScratchpad);
+        if (temperature == POWER_ON_TEMPERATURE && (jumped || Double.isNaN(last))) {
+            if (!convert(serno) || !verify(serno))
+                return Double.NaN;
+            temperature = decodeTemperature(serno, mScratchpad);
+        }
+        return temperature;
+    }
+
+    /**
+     * Dallas/Maxim CRC8 (X^8 + X^5 + X^4 + 1). The CRC of a block that ends with its own CRC
+     * is 0.
+     */
+    static int crc8(byte[] data, int off, int len) {
+        int crc = 0;
+        for (int i = off; i < off + len; i++) {
+            int b = data[i];
+            for (int j = 0; j < 8; j++) {
+                int mix = (crc ^ b) & 1;
+                crc >>= 1;
+                if (mix != 0)
+                    crc ^= 0x8C;
+                b >>= 1;
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * Check that a device is present and answering, by reading its scratchpad
+     *
+     * @return true if the scratchpad was read with a good CRC
+     */
+    boolean verify(long serno) {
+        if (!readScratchpad(serno, mScratchpad))
+            return false;
+        // A missing device reads as all 1s, which would otherwise pass the CRC check
+        boolean allOnes = true;
+        for (byte b : mScratchpad)
+            allOnes &= b == (byte) 0xFF;
+        if (allOnes)
+            return false;
+        if (crc8(mScratchpad, 0, SCRATCHPAD_SIZE) != 0) {
+            mDriver.getMetrics().count(BusMetrics.Counter.CRC_FAILURE);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Do a full search of the bus, and bring the schedule into line with what was found. If
+     * the bus fails part way through, devices found are added but none are taken as lost, and
+     * the search is done again after the next tick.
+     */
+    private void search() {
+        mListener.onProgress(this, BusStage.SEARCHING);
+        // New devices may be parasite powered
+        mPowerKnown = false;
+        // Devices still at standard speed are invisible in overdrive
+        if (mDriver.isOverdrive())
+            leaveOverdrive();
+        List<Long> found = new ArrayList<>();
+        boolean complete = RomSearch.search(mDriver, RomSearch.SEARCH_ROM, found);
+        for (long serno : found) {
+            if (!mSensors.contains(serno)) {
+                mSensors.add(serno);
+                mListener.onSensorAdded(this, serno);
+            }
+        }
+        if (!complete) {
+            mListener.onError(String.format("%s: search failed", mPort));
+            mSearchRequested = true;
+            return;
+        }
+        for (long serno : mSensors) {
+            if (!found.contains(serno)) {
+                mSensors.remove(serno);
+                mSamplers.remove(serno);
+                mConfigured.remove(serno);
+                mLastRead.remove(serno);
+                mBanded.remove(serno);
+                mListener.onSensorLost(this, serno);
+            }
+        }
+        mListener.onSensorsFound(this, found);
+    }
+
+    /**
+     * Decode the temperature from a DS18x20 scratchpad
+     *
+     * @param serno ROM id of the device, used to get the family code
+     * @return the temperature in degrees C
+     */
+    static double decodeTemperature(long serno, byte[] scratchpad) {
+        int raw = (short) ((scratchpad[0] & 0xFF) | (scratchpad[1] << 8));
+        if ((serno & 0xFF) == FAMILY_DS18S20)
+            return raw / 2.0; // 0.5 degree resolution
+        return raw / 16.0;
+    }
+
+    /**
+     * Runs until interrupted, or until the bus fails. Either way, all sensors are reported
+     * lost and the driver is closed on the way out.
+     */
+    @Override
+    public void run() {
+        try {
+            sample();
+        } finally {
+            for (long serno : mSensors)
+                mListener.onSensorLost(this, serno);
+            mSensors.clear();
+            mDriver.close();
+        }
+    }
+
+    private void sample() {
+        boolean verified = true;
+        if (!mKnown.isEmpty())
+            mListener.onProgress(this, BusStage.VERIFYING);
+        for (long serno : mKnown) {
+            if (verify(serno)) {
+                mSensors.add(serno);
+                mListener.onSensorAdded(this, serno);
+            } else {
+                mListener.onError(String.format("%X: not verified on %s", serno, mPort));
+                verified = false;
+            }
+        }
+        if (mSensors.isEmpty() || !verified) {
+            try {
+                search();
+            } catch (Serial1WireDriver.TimeoutError te) {
+                mListener.onError(String.format("%s: search failed %s", mPort, te.getMessage()));
+                mSearchRequested = true;
+            }
+        } else
+            mSearchRequested = true; // in the background, after the first tick
+        mListener.onProgress(this, BusStage.SAMPLING);
+        mSampling.countDown();
+
+        // Interrupting this thread kills it
+        while (!isInterrupted()) {
+            long wait;
+            try {
+                wait = cycle();
+                mBusFailures = 0;
+            } catch (Serial1WireDriver.TimeoutError te) {
+                // Whatever disturbed the bus may have reset the devices to standard speed, or
+                // kept them from getting a reset that would have. A reset at standard speed
+                // puts them all in a known state, and overdrive is negotiated again.
+                if (mDriver.isOverdrive()) {
+                    overdriveFailed();
+                    if (mDriver.isOverdrive())
+                        leaveOverdrive();
+                }
+                // Sampled again later, in case the bus was only disturbed
+                wait = Math.min(IDLE_TIME << Math.min(mBusFailures, 5), MAX_BUS_BACKOFF);
+                mBusFailures++;
+                mListener.onError(String.format("%s: %s, trying again in %ds", mPort, te.getMessage(), wait / 1000));
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                continue;
+            }
+            if (wait > 0) {
+                // Never sleep so long that a new configuration waits for long
+                try {
+                    Thread.sleep(Math.min(wait, IDLE_TIME));
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Take up any new configuration, then do a tick and any search requested, if a tick is due
+     *
+     * @return 0 if a tick was done, otherwise ms until one is due
+     */
+    private long cycle() {
+        applyConfig();
+        if (mApplied.isOverdrive() && !mDriver.isOverdrive() && !mOverdriveRefused
+                && !enterOverdrive()) {
+            mOverdriveRefused = true;
+            mListener.onError(String.format("%s: overdrive not supported, using standard speed", mPort));
+        }
+        long wait = mApplied.getAlarmMargin() > 0 ? monitorTick() : sampleTick();
+        if (wait > 0)
+            return wait;
+
+        if (mSearchRequested && !isInterrupted()) {
+            mSearchRequested = false;
+            search();
+        }
+        return 0;
+    }
+
+    private void configureAll() {
+        for (long serno : mSensors) {
+            if (!mConfigured.contains(serno) && configure(serno))
+                mConfigured.add(serno);
+        }
+    }
+
+    /**
+     * Read the sensors that are due, if any are
+     *
+     * @return 0 if a tick was done, otherwise ms until a sensor is due
+     */
+    private long sampleTick() {
+        long now = System.currentTimeMillis();
+        long nextDue = Long.MAX_VALUE;
+        for (long serno : mSensors)
+            nextDue = Math.min(nextDue, getSampler(serno).getNextDue());
+        if (nextDue > now)
+            return nextDue == Long.MAX_VALUE ? IDLE_TIME : nextDue - now;
+
+        // The latest grid point; a late tick doesn't move the grid. Every sensor due is due
+        // at a grid point, so all of them are read in this tick.
+        mTick = now - now % mApplied.getTick();
+        configureAll();
+        SampleBatch batch = new SampleBatch(mSensors.size());
+        if (convertAll()) {
+            mToRead.clear();
+            for (long serno : mSensors) {
+                if (getSampler(serno).getNextDue() <= now)
+                    mToRead.add(serno);
+            }
+            readAll(batch);
+        }
+        mListener.onSamples(batch);
+        return 0;
+    }
+
+    /**
+     * Read a sensor, offer the reading to its sampler, add it to the batch if it is kept, and
+     * record it in mReadings
+     *
+     * @return false if the sensor could not be read
+     */
+    private boolean read(long serno, SampleBatch batch) {
+        AdaptiveSampler sampler = getSampler(serno);
+        long timestamp = System.currentTimeMillis();
+        double temperature = readTemperature(serno, sampler.getLastValue());
+        if (Double.isNaN(temperature)) {
+            overdriveFailed();
+            return false;
+        }
+        mOverdriveFailures = 0;
+        mLastRead.put(serno, timestamp);
+        mReadings.put(serno, temperature);
+        if (sampler.accept(mTick, timestamp, temperature))
+            batch.add(serno, timestamp, temperature);
+        return true;
+    }
+
+    /**
+     * Read the sensors in mToRead, as read() does. Those that fail are retried after the rest
+     * have been read, up to READ_RETRIES times with a doubling delay, unless they were already
+     * failing; any still failing after that are backed off by their samplers.
+     */
+    private void readAll(SampleBatch batch) {
+        mReadings.clear();
+        mRetry.clear();
+        for (long serno : mToRead) {
+            if (isInterrupted())
+                return;
+            if (!read(serno, batch)) {
+                if (getSampler(serno).getFailures() == 0)
+                    mRetry.add(serno);
+                else
+                    backOff(serno);
+            }
+        }
+        for (int attempt = 0; attempt < READ_RETRIES && !mRetry.isEmpty(); attempt++) {
+            mDriver.msDelay(RETRY_DELAY << attempt);
+            for (Iterator<Long> it = mRetry.iterator(); it.hasNext(); ) {
+                if (isInterrupted())
+                    return;
+                mDriver.getMetrics().count(BusMetrics.Counter.READ_RETRY);
+                if (read(it.next(), batch))
+                    it.remove();
+            }
+        }
+        for (long serno : mRetry)
+            backOff(serno);
+    }
+
+    private void backOff(long serno) {
+        long backoff = getSampler(serno).failed(mTick);
+        mListener.onError(String.format("%X: read failed, next try in %ds", serno, backoff / 1000));
+    }
+
+    /**
+     * Check whether a sensor needs a new alarm band. Everything is re-banded if the alarm
+     * search failed, as an alarm may have been missed.
+     */
+    private boolean outOfBand(long serno, boolean searched) {
+        return !searched || !mBanded.contains(serno) || mAlarmed.contains(serno);
+    }
+
+    /**
+     * A tick of alarm monitoring, if one is due
+     *
+     * @return 0 if a tick was done, otherwise ms until the next is due
+     */
+    private long monitorTick() {
+        long now = System.currentTimeMillis();
+        if (mNextAlarmTick > now)
+            return mNextAlarmTick - now;
+        // On the same grid as sampleTick, which the samplers are aligned to. The interval is
+        // a whole number of ticks, so alarm searches stay on it too.
+        mTick = now - now % mApplied.getTick();
+        mNextAlarmTick = mTick + mApplied.getInterval();
+
+        configureAll();
+        SampleBatch batch = new SampleBatch(mSensors.size());
+        if (convertAll()) {
+            mAlarmed.clear();
+            boolean searched = RomSearch.search(mDriver, RomSearch.ALARM_SEARCH, mAlarmed);
+            if (!searched) {
+                mListener.onError(String.format("%s: alarm search failed", mPort));
+                overdriveFailed();
+            }
+            long timestamp = System.currentTimeMillis();
+            long heartbeat = mApplied.getMaxInterval();
+            mToRead.clear();
+            for (long serno : mSensors) {
+                AdaptiveSampler sampler = getSampler(serno);
+                // A failing sensor waits out its back-off
+                if (sampler.getFailures() > 0 && sampler.getNextDue() > timestamp)
+                    continue;
+                Long last = mLastRead.get(serno);
+                if (outOfBand(serno, searched) || last == null || timestamp - last >= heartbeat)
+                    mToRead.add(serno);
+            }
+            readAll(batch);
+            for (long serno : mToRead) {
+                if (isInterrupted())
+                    break;
+                Double temperature = mReadings.get(serno);
+                // A heartbeat reading is still inside the band, so it needn't be rewritten
+                if (temperature == null || !outOfBand(serno, searched))
+                    continue;
+                if (setAlarmBand(serno, temperature))
+                    mBanded.add(serno);
+                else
+                    mBanded.remove(serno);
+            }
+        }
+        mListener.onSamples(batch);
+        return 0;
+    }
+}
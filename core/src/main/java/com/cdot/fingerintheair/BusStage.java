@@ -0,0 +1,22 @@
+package com.cdot.fingerintheair;
+
+/**
+ * Stages a bus goes through between a USB adapter being attached and its sensors being sampled.
+ * OPENING and RESETTING are run by the service's connect pipeline, the rest by the BusScheduler.
+ */
+enum BusStage {
+    // Opening the USB device and the serial port on it
+    OPENING,
+    // Checking for presence pulses on the bus
+    RESETTING,
+    // Checking that devices known from an earlier session are still there
+    VERIFYING,
+    // Searching the bus for devices
+    SEARCHING,
+    // Sampling has started
+    SAMPLING,
+    // A stage failed or timed out; the bus has been closed
+    FAILED,
+    // The adapter was detached, or the service stopped
+    DISCONNECTED
+}
@@ -0,0 +1,110 @@
+package com.cdot.fingerintheair;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in ns, in the style of HdrHistogram. Values below 64ns get a bucket
+ * each; above that every power of two is split into 32 linear sub-buckets, so any recorded
+ * value is within about 3% of the value reported for it. Values above MAX_VALUE are counted
+ * as MAX_VALUE.
+ *
+ * Recording is lock-free and allocates nothing, so it can go on the bus hot path. Reads may
+ * run on any thread while recording is going on, and see a near-enough consistent view.
+ */
+class LatencyHistogram {
+
+    // Sub-buckets per power of two is 1 << SUB_BITS
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Values below this each have their own bucket
+    private static final int LINEAR = SUB_COUNT * 2;
+
+    // About 18 minutes, longer than anything worth timing
+    static final long MAX_VALUE = (1L << 40) - 1; // ns
+
+    private static final int BUCKETS = LINEAR + (40 - SUB_BITS - 1) * SUB_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    private static int indexFor(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return LINEAR + (shift - 1) * SUB_COUNT + (int) (value >> shift) - SUB_COUNT;
+    }
+
+    /**
+     * Get the highest value that would be counted in a bucket
+     */
+    private static long highestValueAt(int index) {
+        if (index < LINEAR)
+            return index;
+        int shift = (index - LINEAR) / SUB_COUNT + 1;
+        long sub = SUB_COUNT + (index - LINEAR) % SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @param ns latency to record
+     */
+    void record(long ns) {
+        if (ns < 0)
+            ns = 0;
+        else if (ns > MAX_VALUE)
+            ns = MAX_VALUE;
+        mCounts.incrementAndGet(indexFor(ns));
+        mCount.incrementAndGet();
+        mSum.addAndGet(ns);
+        long max = mMax.get();
+        while (ns > max && !mMax.compareAndSet(max, ns))
+            max = mMax.get();
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    long getMax() {
+        return mMax.get();
+    }
+
+    double getMean() {
+        long n = mCount.get();
+        return n == 0 ? 0 : (double) mSum.get() / n;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the value that percentile of recorded values are at or below, or 0 if none
+     * have been recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        long n = mCount.get();
+        if (n == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueAt(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    /**
+     * One line summary, in us
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+                getCount(), getMean() / 1000,
+                getValueAtPercentile(50) / 1000.0, getValueAtPercentile(90) / 1000.0,
+                getValueAtPercentile(99) / 1000.0, getMax() / 1000.0);
+    }
+}
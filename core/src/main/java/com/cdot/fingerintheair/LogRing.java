@@ -0,0 +1,251 @@
+package com.cdot.fingerintheair;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity log shared by everything in the app process. Once the ring is full the oldest
+ * entries are overwritten, so memory is bounded. The ring itself is lock-free, and readers
+ * never block writers. Rate limiting takes a lock per kind of message, held for a few field
+ * updates, so only threads logging the same kind at once can contend.
+ *
+ * Messages are grouped into kinds: by format string, if logged with one, or else by the
+ * message with its numbers, addresses and serial numbers masked out, which is near enough
+ * the format it was built from. Each kind has a token bucket allowing BURST messages, refilled
+ * at BURST per RATE_WINDOW. A message of a kind that is over its budget isn't logged; it is
+ * counted against the last entry of its kind instead, and shown as a count after it. A
+ * message identical to the last of its kind, within RATE_WINDOW, is always folded into it.
+ * This stops a bus fault that fails every sample, or a stream of failures that differ only in
+ * a number, from flooding the log.
+ */
+class LogRing {
+
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    static final int DEFAULT_CAPACITY = 512;
+
+    // Repeats of a message within this time are folded into one entry
+    static final long RATE_WINDOW = 60 * 1000; // ms
+    // Messages of one kind logged in a burst, and as many again per RATE_WINDOW after that
+    static final int BURST = 5;
+    private static final long REFILL = RATE_WINDOW / BURST; // ms per token
+
+    // Bound on the number of kinds of message tracked. Beyond it the least recently used is
+    // forgotten.
+    private static final int MAX_KINDS = 256;
+
+    /**
+     * The log used by the app
+     */
+    static final LogRing APP = new LogRing(DEFAULT_CAPACITY);
+
+    static class Entry {
+        final long seq;
+        final long time;
+        final Level level;
+        final String message;
+        final AtomicInteger repeats = new AtomicInteger(1);
+        // Messages of the same kind that weren't logged, as it was over its budget
+        final AtomicInteger similar = new AtomicInteger(0);
+
+        Entry(long seq, long time, Level level, String message) {
+            this.seq = seq;
+            this.time = time;
+            this.level = level;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            int n = repeats.get();
+            int m = similar.get();
+            String s = String.format(Locale.US, "%tT %s %s", new Date(time), level.name().charAt(0), message);
+            if (n > 1)
+                s += " \u00D7" + n;
+            return m > 0 ? s + " (+" + m + " similar)" : s;
+        }
+    }
+
+    /**
+     * The rate limit for one kind of message, and its latest entry
+     */
+    private static class Kind {
+        Entry last = null;
+        int tokens = BURST;
+        long refilled;
+        // Order in which kinds were last logged, for eviction
+        volatile long used;
+
+        Kind(long now) {
+            refilled = now;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mSlots;
+    private final AtomicLong mNextSeq = new AtomicLong(0);
+    // Bumped on every change, including repeats, so readers can tell when to redraw
+    private final AtomicLong mVersion = new AtomicLong(0);
+    // Stamps the kinds in the order they are used
+    private final AtomicLong mUses = new AtomicLong(0);
+    // Map from level and kind to its rate limit
+    private final ConcurrentHashMap<String, Kind> mKinds = new ConcurrentHashMap<>();
+
+    LogRing(int capacity) {
+        mSlots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Log a message, rate limited along with others like it
+     */
+    void log(Level level, String message) {
+        record(level, shape(message), message);
+    }
+
+    /**
+     * Log a message, rate limited along with others from the same format
+     */
+    void log(Level level, String format, Object... args) {
+        record(level, format, String.format(Locale.US, format, args));
+    }
+
+    /**
+     * Get the kind of a message: the message, with every run of digits, hex digits and the
+     * separators in numbers and addresses that has a digit in it replaced by '#'
+     */
+    static String shape(String message) {
+        StringBuilder sb = new StringBuilder(message.length());
+        int i = 0, n = message.length();
+        while (i < n) {
+            int j = i;
+            boolean digit = false;
+            while (j < n && isNumeric(message.charAt(j))) {
+                digit |= Character.isDigit(message.charAt(j));
+                j++;
+            }
+            if (j == i)
+                sb.append(message.charAt(i++));
+            else {
+                if (digit)
+                    sb.append('#');
+                else
+                    sb.append(message, i, j);
+                i = j;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isNumeric(char c) {
+        return c >= '0' && c <= '9' || c >= 'A' && c <= 'F' || c >= 'a' && c <= 'f'
+                || c == '.' || c == ':' || c == '-';
+    }
+
+    /**
+     * Make room for a new kind by forgetting the one used longest ago, whose bucket is the
+     * most likely to have refilled. Every other kind keeps its budget.
+     */
+    private void evict() {
+        String oldest = null;
+        long used = Long.MAX_VALUE;
+        for (Map.Entry<String, Kind> e : mKinds.entrySet()) {
+            long u = e.getValue().used;
+            if (u < used) {
+                used = u;
+                oldest = e.getKey();
+            }
+        }
+        if (oldest != null)
+            mKinds.remove(oldest);
+    }
+
+    private void record(Level level, String kind, String message) {
+        long now = System.currentTimeMillis();
+        String key = level.name() + kind;
+        Kind k = mKinds.get(key);
+        if (k == null) {
+            if (mKinds.size() >= MAX_KINDS)
+                evict();
+            Kind fresh = new Kind(now);
+            k = mKinds.putIfAbsent(key, fresh);
+            if (k == null)
+                k = fresh;
+        }
+        synchronized (k) {
+            k.used = mUses.incrementAndGet();
+            long refills = (now - k.refilled) / REFILL;
+            if (refills > 0) {
+                k.tokens = (int) Math.min(BURST, k.tokens + refills);
+                k.refilled += refills * REFILL;
+            }
+            Entry last = k.last;
+            boolean shown = last != null && mSlots.get(slot(last.seq)) == last;
+            if (shown && now - last.time < RATE_WINDOW && last.message.equals(message)) {
+                last.repeats.incrementAndGet();
+                mVersion.incrementAndGet();
+                return;
+            }
+            // Once the last entry has gone from the ring there's nothing to count against
+            if (k.tokens == 0 && shown) {
+                last.similar.incrementAndGet();
+                mVersion.incrementAndGet();
+                return;
+            }
+            if (k.tokens > 0)
+                k.tokens--;
+            long seq = mNextSeq.getAndIncrement();
+            Entry e = new Entry(seq, now, level, message);
+            mSlots.set(slot(seq), e);
+            k.last = e;
+        }
+        mVersion.incrementAndGet();
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % mSlots.length());
+    }
+
+    long getVersion() {
+        return mVersion.get();
+    }
+
+    /**
+     * Get up to max of the most recent entries, oldest first
+     */
+    Entry[] tail(int max) {
+        long end = mNextSeq.get();
+        long start = Math.max(0, Math.max(end - max, end - mSlots.length()));
+        Entry[] result = new Entry[(int) (end - start)];
+        int n = 0;
+        for (long seq = start; seq < end; seq++) {
+            Entry e = mSlots.get(slot(seq));
+            // Skip slots that were overwritten, or not yet filled, while we looked
+            if (e != null && e.seq == seq)
+                result[n++] = e;
+        }
+        if (n < result.length) {
+            Entry[] shorter = new Entry[n];
+            System.arraycopy(result, 0, shorter, 0, n);
+            result = shorter;
+        }
+        return result;
+    }
+
+    /**
+     * Write the whole ring, oldest first
+     */
+    void dump(Writer out) throws IOException {
+        for (Entry e : tail(mSlots.length())) {
+            out.write(e.toString());
+            out.write('\n');
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.cdot.fingerintheair;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling (Steinarsson, 2013). The series is split into
+ * buckets, and from each the point making the largest triangle with the point kept from the
+ * previous bucket and the mean of the next is kept. Unlike averaging, this keeps the peaks and
+ * troughs that make a plot look right.
+ */
+class Lttb {
+
+    /**
+     * Downsample a series of n points, given oldest first. x values are returned relative to
+     * the first time, so they keep their precision as floats.
+     *
+     * @param threshold maximum number of points wanted, at least 3
+     * @param outX      receives x of the kept points, at least threshold long
+     * @param outY      receives y of the kept points, at least threshold long
+     * @return number of points kept
+     */
+    static int downsample(long[] times, float[] values, int n, int threshold, float[] outX, float[] outY) {
+        if (n == 0)
+            return 0;
+        long t0 = times[0];
+        if (n <= threshold || threshold < 3) {
+            int m = Math.min(n, outX.length);
+            for (int i = 0; i < m; i++) {
+                outX[i] = times[i] - t0;
+                outY[i] = values[i];
+            }
+            return m;
+        }
+
+        int out = 0;
+        outX[out] = 0;
+        outY[out++] = values[0];
+        double every = (double) (n - 2) / (threshold - 2);
+        int a = 0;
+        for (int i = 0; i < threshold - 2; i++) {
+            // Mean of the next bucket
+            int avgStart = (int) Math.floor((i + 1) * every) + 1;
+            int avgEnd = Math.min((int) Math.floor((i + 2) * every) + 1, n);
+            double avgX = 0, avgY = 0;
+            for (int j = avgStart; j < avgEnd; j++) {
+                avgX += times[j] - t0;
+                avgY += values[j];
+            }
+            avgX /= avgEnd - avgStart;
+            avgY /= avgEnd - avgStart;
+
+            // Point in this bucket making the largest triangle
+            int start = (int) Math.floor(i * every) + 1;
+            int end = (int) Math.floor((i + 1) * every) + 1;
+            double ax = times[a] - t0, ay = values[a];
+            double maxArea = -1;
+            int next = start;
+            for (int j = start; j < end; j++) {
+                double area = Math.abs((ax - avgX) * (values[j] - ay) - (ax - (times[j] - t0)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+            outX[out] = times[next] - t0;
+            outY[out++] = values[next];
+            a = next;
+        }
+        outX[out] = times[n - 1] - t0;
+        outY[out++] = values[n - 1];
+        return out;
+    }
+}
@@ -0,0 +1,76 @@
+package com.cdot.fingerintheair;
+
+import com.cdot.onewire.OneWireError;
+
+import java.util.List;
+
+/**
+ * The 1-wire ROM search, from Maxim application note 187, parameterised on the search command
+ * so it does both the full Search ROM and the Alarm Search. Only devices that answer the
+ * command take part, so an Alarm Search costs time in proportion to the number of devices in
+ * alarm, and a single reset when there are none.
+ */
+class RomSearch {
+
+    static final byte SEARCH_ROM = (byte) 0xF0;
+    static final byte ALARM_SEARCH = (byte) 0xEC;
+
+    /**
+     * Find all the devices that answer a search command. ROMs with a bad CRC are counted in
+     * the driver's metrics and skipped.
+     *
+     * @param command SEARCH_ROM or ALARM_SEARCH
+     * @param found   ROM ids are added to this, packed as BusScheduler expects
+     * @return false if the bus failed during the search; found holds the devices found
+     * before it did
+     */
+    static boolean search(Serial1WireDriver driver, byte command, List<Long> found) {
+        byte[] rom = new byte[8];
+        long id = 0;
+        int lastDiscrepancy = 0;
+        while (true) {
+            OneWireError err = driver.reset();
+            if (err == OneWireError.NO_DEVICES_ON_NET)
+                return true;
+            if (err != OneWireError.NO_ERROR_SET)
+                return false;
+            driver.touchByte(command);
+
+            int lastZero = 0;
+            for (int bit = 1; bit <= 64; bit++) {
+                boolean idBit = driver.touchBit(true);
+                boolean cmpBit = driver.touchBit(true);
+                if (idBit && cmpBit)
+                    return bit == 1; // no devices answered, or one dropped out
+                boolean dir;
+                if (idBit != cmpBit)
+                    dir = idBit; // all remaining devices agree
+                else {
+                    // Discrepancy; take the branch not yet explored
+                    if (bit < lastDiscrepancy)
+                        dir = (id & (1L << (bit - 1))) != 0;
+                    else
+                        dir = bit == lastDiscrepancy;
+                    if (!dir)
+                        lastZero = bit;
+                }
+                if (dir)
+                    id |= 1L << (bit - 1);
+                else
+                    id &= ~(1L << (bit - 1));
+                driver.touchBit(dir);
+            }
+
+            for (int i = 0; i < 8; i++)
+                rom[i] = (byte) (id >> (8 * i));
+            if (BusScheduler.crc8(rom, 0, 8) == 0)
+                found.add(id);
+            else
+                driver.getMetrics().count(BusMetrics.Counter.CRC_FAILURE);
+
+            lastDiscrepancy = lastZero;
+            if (lastDiscrepancy == 0)
+                return true;
+        }
+    }
+}
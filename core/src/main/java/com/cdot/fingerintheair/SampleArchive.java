@@ -0,0 +1,328 @@
+package com.cdot.fingerintheair;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The cold tier of the sample store. Samples that have outlived the hot segments of the
+ * SampleLog are kept here, compressed, instead of being deleted.
+ *
+ * Each block holds one sensor's samples over one block span, encoded as in a SampleLog column
+ * and compressed on its own with Deflater, so reading any block never needs another. Blocks
+ * are appended to a data file per file span, and each data file has an index with one fixed
+ * size entry per block, giving the sensor, time range, and where the block is. A range query
+ * only opens the indexes for the file spans it overlaps, and only inflates the blocks whose
+ * sensor and time range match.
+ *
+ * A block is written to its data file before its index entry, so a crash can leave an
+ * unindexed tail on a data file, which is never read, but never an index entry for a block
+ * that isn't all there. A torn index entry at the end of an index is ignored.
+ */
+class SampleArchive {
+
+    static final String DATA_SUFFIX = ".blocks";
+    static final String INDEX_SUFFIX = ".index";
+
+    // Index file header is MAGIC, VERSION
+    private static final int MAGIC = 0x46495449; // "FITI"
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1;
+    // serno, base, first, last, offset, compressed length, sample count
+    private static final int ENTRY_SIZE = 8 * 5 + 4 + 4;
+
+    /**
+     * Where to find one block, and what is in it
+     */
+    static class Block {
+        final long serno;
+        // Time the encoding deltas start from
+        final long base;
+        // First and last sample times
+        final long first, last;
+        final int count;
+        private final File data;
+        private final long offset;
+        private final int length;
+
+        private Block(long serno, long base, long first, long last, int count, File data, long offset, int length) {
+            this.serno = serno;
+            this.base = base;
+            this.first = first;
+            this.last = last;
+            this.count = count;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mBlockSpan, mFileSpan;
+
+    // Only used by the writer, under the SampleLog lock
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private byte[] mCompressed = new byte[4096];
+    // Blocks known to be in the archive, as serno and base, for the file spans looked at
+    private final Set<String> mArchived = new HashSet<>();
+    private final Set<Long> mLoadedSpans = new HashSet<>();
+
+    /**
+     * @param directory directory for the data and index files. Created when first written.
+     * @param blockSpan time covered by each block
+     * @param fileSpan  time covered by each data file; a multiple of blockSpan
+     */
+    SampleArchive(File directory, long blockSpan, long fileSpan) {
+        mDirectory = directory;
+        mBlockSpan = blockSpan;
+        mFileSpan = fileSpan;
+    }
+
+    long getBlockSpan() {
+        return mBlockSpan;
+    }
+
+    long getFileSpan() {
+        return mFileSpan;
+    }
+
+    private File dataFile(long fileStart) {
+        return new File(mDirectory, fileStart + DATA_SUFFIX);
+    }
+
+    private File indexFile(long fileStart) {
+        return new File(mDirectory, fileStart + INDEX_SUFFIX);
+    }
+
+    /**
+     * Read the index for a file span
+     *
+     * @param serno only return blocks for this sensor, or null for all
+     */
+    private void readIndex(long fileStart, Long serno, long from, long to, List<Block> into) throws IOException {
+        File index = indexFile(fileStart);
+        if (!index.exists())
+            return;
+        File data = dataFile(fileStart);
+        try (RandomAccessFile raf = new RandomAccessFile(index, "r");
+             FileChannel fc = raf.getChannel()) {
+            long size = fc.size();
+            if (size < HEADER_SIZE)
+                return;
+            ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt() != MAGIC || buf.get() != VERSION)
+                return;
+            // A torn entry at the end is left out
+            while (buf.remaining() >= ENTRY_SIZE) {
+                long s = buf.getLong();
+                long base = buf.getLong();
+                long first = buf.getLong();
+                long last = buf.getLong();
+                long offset = buf.getLong();
+                int length = buf.getInt();
+                int count = buf.getInt();
+                if ((serno == null || s == serno) && last >= from && first < to)
+                    into.add(new Block(s, base, first, last, count, data, offset, length));
+            }
+        }
+    }
+
+    /**
+     * Find the blocks that might hold samples with timestamps in [from, to), ordered by
+     * base time and then serial number, so each sensor's blocks are in time order
+     *
+     * @param serno sensor to find, or null for all sensors
+     */
+    List<Block> blocks(Long serno, long from, long to) throws IOException {
+        List<Block> blocks = new ArrayList<>();
+        String[] names = mDirectory.list();
+        if (names == null)
+            return blocks;
+        List<Long> starts = new ArrayList<>();
+        for (String name : names) {
+            if (!name.endsWith(INDEX_SUFFIX))
+                continue;
+            try {
+                long start = Long.parseLong(name.substring(0, name.length() - INDEX_SUFFIX.length()));
+                if (start + mFileSpan > from && start < to)
+                    starts.add(start);
+            } catch (NumberFormatException nfe) {
+                // Not one of ours
+            }
+        }
+        for (long start : starts)
+            readIndex(start, serno, from, to, blocks);
+        Collections.sort(blocks, (a, b) -> a.base != b.base
+                ? Long.compare(a.base, b.base)
+                // Unsigned, as serial numbers use all 64 bits
+                : Long.compare(a.serno ^ Long.MIN_VALUE, b.serno ^ Long.MIN_VALUE));
+        return blocks;
+    }
+
+    /**
+     * Read and inflate a block
+     *
+     * @return the encoded samples
+     */
+    static ByteBuffer read(Block block) throws IOException {
+        byte[] compressed = new byte[block.length];
+        try (RandomAccessFile raf = new RandomAccessFile(block.data, "r")) {
+            raf.seek(block.offset);
+            raf.readFully(compressed);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            // Records are at least 2 bytes, and at most 20
+            byte[] out = new byte[Math.max(64, block.count * 4)];
+            int len = 0;
+            while (!inflater.finished()) {
+                if (len == out.length) {
+                    byte[] bigger = new byte[out.length * 2];
+                    System.arraycopy(out, 0, bigger, 0, len);
+                    out = bigger;
+                }
+                int n = inflater.inflate(out, len, out.length - len);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException(block.data + " block at " + block.offset + " is truncated");
+                len += n;
+            }
+            return ByteBuffer.wrap(out, 0, len);
+        } catch (DataFormatException dfe) {
+            throw new IOException(block.data + " block at " + block.offset + " is corrupt " + dfe);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static String key(long serno, long base) {
+        return serno + "@" + base;
+    }
+
+    /**
+     * Check whether a block has already been archived, for example by a sweep interrupted
+     * before it could delete the hot columns
+     */
+    boolean contains(long serno, long base) throws IOException {
+        long fileStart = base - base % mFileSpan;
+        if (mLoadedSpans.add(fileStart)) {
+            List<Block> blocks = new ArrayList<>();
+            readIndex(fileStart, null, Long.MIN_VALUE, Long.MAX_VALUE, blocks);
+            for (Block b : blocks)
+                mArchived.add(key(b.serno, b.base));
+        }
+        return mArchived.contains(key(serno, base));
+    }
+
+    /**
+     * Compress and append a block, and force it to storage
+     *
+     * @param base    time the encoding deltas start from; the start of a block span
+     * @param encoded samples, encoded as in a SampleLog column
+     */
+    void append(long serno, long base, long first, long last, int count, byte[] encoded, int len) throws IOException {
+        mDeflater.reset();
+        mDeflater.setInput(encoded, 0, len);
+        mDeflater.finish();
+        int clen = 0;
+        while (!mDeflater.finished()) {
+            if (clen == mCompressed.length) {
+                byte[] bigger = new byte[mCompressed.length * 2];
+                System.arraycopy(mCompressed, 0, bigger, 0, clen);
+                mCompressed = bigger;
+            }
+            clen += mDeflater.deflate(mCompressed, clen, mCompressed.length - clen);
+        }
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs())
+            throw new IOException("Could not create " + mDirectory);
+        long fileStart = base - base % mFileSpan;
+        File data = dataFile(fileStart);
+        long offset;
+        try (FileOutputStream out = new FileOutputStream(data, true)) {
+            offset = out.getChannel().position();
+            out.write(mCompressed, 0, clen);
+            out.getFD().sync();
+        }
+
+        ByteBuffer entry = ByteBuffer.allocate(HEADER_SIZE + ENTRY_SIZE);
+        File index = indexFile(fileStart);
+        boolean fresh = !index.exists() || index.length() < HEADER_SIZE;
+        if (fresh)
+            entry.putInt(MAGIC).put(VERSION);
+        entry.putLong(serno).putLong(base).putLong(first).putLong(last)
+                .putLong(offset).putInt(clen).putInt(count);
+        try (RandomAccessFile raf = new RandomAccessFile(index, "rw")) {
+            long end = raf.length();
+            if (fresh)
+                end = 0;
+            else
+                // Drop any entry torn by an earlier crash
+                end -= (end - HEADER_SIZE) % ENTRY_SIZE;
+            raf.setLength(end);
+            raf.seek(end);
+            raf.write(entry.array(), 0, entry.position());
+            raf.getFD().sync();
+        }
+        if (mLoadedSpans.contains(fileStart))
+            mArchived.add(key(serno, base));
+    }
+
+    /**
+     * Delete the data files, and their indexes, that only hold blocks before a time. The
+     * index goes first, so a crash can't leave an index entry for a deleted block.
+     *
+     * @param before a multiple of the file span
+     */
+    void prune(long before) {
+        String[] names = mDirectory.list();
+        if (names == null)
+            return;
+        for (String name : names) {
+            if (!name.endsWith(INDEX_SUFFIX))
+                continue;
+            long start;
+            try {
+                start = Long.parseLong(name.substring(0, name.length() - INDEX_SUFFIX.length()));
+            } catch (NumberFormatException nfe) {
+                continue; // Not one of ours
+            }
+            if (start + mFileSpan > before)
+                continue;
+            if (indexFile(start).delete())
+                dataFile(start).delete();
+            mLoadedSpans.remove(start);
+        }
+        // Forget blocks from the deleted files; they are older than any column left
+        Iterator<String> it = mArchived.iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (Long.parseLong(key.substring(key.indexOf('@') + 1)) < before)
+                it.remove();
+        }
+    }
+
+    /**
+     * Get the total size of the archive on disk, in bytes
+     */
+    long size() {
+        File[] files = mDirectory.listFiles();
+        long size = 0;
+        if (files != null)
+            for (File f : files)
+                size += f.length();
+        return size;
+    }
+}
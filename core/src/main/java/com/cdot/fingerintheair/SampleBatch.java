@@ -0,0 +1,67 @@
+package com.cdot.fingerintheair;
+
+import java.util.Arrays;
+
+/**
+ * A batch of samples, normally all those taken from one bus in one tick. Stored as parallel
+ * primitive arrays. A batch must not be modified once it has been published.
+ */
+class SampleBatch {
+
+    private long[] mSernos;
+    private long[] mTimestamps;
+    private double[] mValues;
+    private int mSize = 0;
+
+    SampleBatch(int capacity) {
+        mSernos = new long[capacity];
+        mTimestamps = new long[capacity];
+        mValues = new double[capacity];
+    }
+
+    void add(long serno, long timestamp, double value) {
+        if (mSize == mSernos.length) {
+            int cap = Math.max(4, mSize * 2);
+            mSernos = Arrays.copyOf(mSernos, cap);
+            mTimestamps = Arrays.copyOf(mTimestamps, cap);
+            mValues = Arrays.copyOf(mValues, cap);
+        }
+        mSernos[mSize] = serno;
+        mTimestamps[mSize] = timestamp;
+        mValues[mSize++] = value;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getSerno(int i) {
+        return mSernos[i];
+    }
+
+    long getTimestamp(int i) {
+        return mTimestamps[i];
+    }
+
+    double getValue(int i) {
+        return mValues[i];
+    }
+
+    /**
+     * Add the samples from another batch, replacing any earlier sample from the same sensor,
+     * so only the latest value for each sensor is kept
+     */
+    void coalesce(SampleBatch other) {
+        for (int i = 0; i < other.mSize; i++) {
+            int j = 0;
+            while (j < mSize && mSernos[j] != other.mSernos[i])
+                j++;
+            if (j == mSize)
+                add(other.mSernos[i], other.mTimestamps[i], other.mValues[i]);
+            else if (other.mTimestamps[i] >= mTimestamps[j]) {
+                mTimestamps[j] = other.mTimestamps[i];
+                mValues[j] = other.mValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.cdot.fingerintheair;
+
+/**
+ * Recent history for a single sensor, held in memory. Raw samples are kept in a ring buffer of
+ * primitives, and min/max/mean rollups at 1 minute, 1 hour and 1 day resolution are updated
+ * incrementally on every sample, each in its own ring of buckets. Memory use is fixed when the
+ * history is constructed.
+ *
+ * Queries over a recent window visit only the buckets in that window, and never touch disk.
+ */
+class SampleHistory {
+
+    static final long MINUTE = 60 * 1000;
+    static final long HOUR = 60 * MINUTE;
+    static final long DAY = 24 * HOUR;
+
+    // Rollup levels
+    static final int LEVEL_MINUTE = 0;
+    static final int LEVEL_HOUR = 1;
+    static final int LEVEL_DAY = 2;
+
+    static final long[] LEVEL_SPANS = {MINUTE, HOUR, DAY};
+
+    static final int DEFAULT_RAW_SIZE = 1024;
+    // A day of minutes, a week of hours, a year of days
+    static final int[] DEFAULT_LEVEL_SIZES = {24 * 60, 7 * 24, 366};
+
+    /**
+     * Summary of the samples in a window
+     */
+    static class Summary {
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        double sum = 0;
+        int count = 0;
+
+        double getMean() {
+            return count == 0 ? Double.NaN : sum / count;
+        }
+
+        private void fold(float mn, float mx, double s, int n) {
+            if (mn < min)
+                min = mn;
+            if (mx > max)
+                max = mx;
+            sum += s;
+            count += n;
+        }
+    }
+
+    /**
+     * Receives buckets from a query
+     */
+    interface BucketVisitor {
+        void bucket(long start, float min, float max, double mean, int count);
+    }
+
+    /**
+     * One rollup resolution; a ring of fixed-span buckets
+     */
+    private static class Rollup {
+        final long span;
+        final long[] start;
+        final float[] min, max;
+        final double[] sum;
+        final int[] count;
+        int head = -1, size = 0; // head is the newest bucket
+
+        Rollup(long span, int capacity) {
+            this.span = span;
+            start = new long[capacity];
+            min = new float[capacity];
+            max = new float[capacity];
+            sum = new double[capacity];
+            count = new int[capacity];
+        }
+
+        void add(long t, float v) {
+            long s = t - t % span;
+            if (size == 0 || s > start[head]) {
+                head = (head + 1) % start.length;
+                if (size < start.length)
+                    size++;
+                start[head] = s;
+                min[head] = max[head] = v;
+                sum[head] = v;
+                count[head] = 1;
+                return;
+            }
+            // Find the bucket; out of order samples are rare, so search back from the head
+            for (int i = 0; i < size; i++) {
+                int b = (head - i + start.length) % start.length;
+                if (start[b] == s) {
+                    if (v < min[b])
+                        min[b] = v;
+                    if (v > max[b])
+                        max[b] = v;
+                    sum[b] += v;
+                    count[b]++;
+                    return;
+                }
+                if (start[b] < s)
+                    return; // gap; the bucket was never opened, drop the sample
+            }
+        }
+
+        long oldest() {
+            return size == 0 ? Long.MAX_VALUE : start[(head - size + 1 + start.length) % start.length];
+        }
+
+        /**
+         * Visit buckets overlapping [from, to), oldest first
+         */
+        void visit(long from, long to, BucketVisitor v) {
+            for (int i = size - 1; i >= 0; i--) {
+                int b = (head - i + start.length) % start.length;
+                if (start[b] + span <= from)
+                    continue;
+                if (start[b] >= to)
+                    break;
+                v.bucket(start[b], min[b], max[b], sum[b] / count[b], count[b]);
+            }
+        }
+    }
+
+    private final long[] mTimes;
+    private final float[] mValues;
+    private int mHead = -1, mCount = 0;
+    private final Rollup[] mRollups;
+
+    SampleHistory() {
+        this(DEFAULT_RAW_SIZE, DEFAULT_LEVEL_SIZES);
+    }
+
+    /**
+     * @param rawSize    number of raw samples to keep
+     * @param levelSizes number of buckets to keep at each rollup level
+     */
+    SampleHistory(int rawSize, int[] levelSizes) {
+        mTimes = new long[rawSize];
+        mValues = new float[rawSize];
+        mRollups = new Rollup[LEVEL_SPANS.length];
+        for (int i = 0; i < mRollups.length; i++)
+            mRollups[i] = new Rollup(LEVEL_SPANS[i], levelSizes[i]);
+    }
+
+    synchronized void add(long timestamp, float value) {
+        mHead = (mHead + 1) % mTimes.length;
+        mTimes[mHead] = timestamp;
+        mValues[mHead] = value;
+        if (mCount < mTimes.length)
+            mCount++;
+        for (Rollup r : mRollups)
+            r.add(timestamp, value);
+    }
+
+    /**
+     * Get the most recent sample time, or 0 if there are none
+     */
+    synchronized long getLatestTime() {
+        return mCount == 0 ? 0 : mTimes[mHead];
+    }
+
+    /**
+     * Get the most recent sample value, or NaN if there are none
+     */
+    synchronized float getLatestValue() {
+        return mCount == 0 ? Float.NaN : mValues[mHead];
+    }
+
+    /**
+     * @return the number of raw samples kept
+     */
+    int getCapacity() {
+        return mTimes.length;
+    }
+
+    /**
+     * Copy raw samples with timestamps in [from, to) into the arrays, oldest first. If there
+     * are more than the arrays hold, the newest are copied.
+     *
+     * @return number of samples copied, limited by the size of the arrays
+     */
+    synchronized int getSamples(long from, long to, long[] times, float[] values) {
+        // Count back from the newest sample in the window
+        int newest = 0;
+        while (newest < mCount && mTimes[(mHead - newest + mTimes.length) % mTimes.length] >= to)
+            newest++;
+        int n = 0;
+        while (newest + n < mCount && n < times.length
+                && mTimes[(mHead - newest - n + mTimes.length) % mTimes.length] >= from)
+            n++;
+        for (int i = 0; i < n; i++) {
+            int s = (mHead - newest - (n - 1 - i) + mTimes.length) % mTimes.length;
+            times[i] = mTimes[s];
+            values[i] = mValues[s];
+        }
+        return n;
+    }
+
+    /**
+     * Visit the buckets at a rollup level that overlap [from, to), oldest first
+     */
+    synchronized void getBuckets(int level, long from, long to, BucketVisitor v) {
+        mRollups[level].visit(from, to, v);
+    }
+
+    /**
+     * Summarise the samples in [from, to), using the finest rollup level that still covers
+     * the start of the window. The window is widened to whole buckets at that level.
+     */
+    synchronized Summary summarise(long from, long to) {
+        final Summary sum = new Summary();
+        int level = 0;
+        while (level < mRollups.length - 1 && mRollups[level].oldest() > from)
+            level++;
+        mRollups[level].visit(from, to, (start, min, max, mean, count) -> sum.fold(min, max, mean * count, count));
+        return sum;
+    }
+}
@@ -0,0 +1,887 @@
+package com.cdot.fingerintheair;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only sample store. Samples are appended to segments, each of which covers a fixed
+ * span of time. Nothing in a segment is ever rewritten. Segments are the hot tier: once a
+ * sensor's samples have been there for its retention they are moved, a whole archive block
+ * at a time, to the compressed SampleArchive, and the column files deleted. A segment goes
+ * once all its columns have. Each sensor can have its own retention.
+ *
+ * A segment is a directory holding one column file per sensor, named for the sensor's
+ * serial number. A column file is a header followed by one record per sample. Each record is
+ * two zigzag varints: the delta-of-delta of the timestamp in ms, and the delta of the
+ * temperature in 1/16 degree steps, which is DS18B20 resolution. A typical record is 2 bytes.
+ * The deltas for the first record are taken from the segment start, with temperature 0.
+ * Column files are read through a memory mapping, so range scans never parse text, and the
+ * segment directories are the time index: a range read only opens segments it overlaps.
+ *
+ * Appends are buffered per column, and only reach the files on commit(), or when the segment
+ * is closed. Scans only see committed samples, and cover both tiers. Archived samples are
+ * kept until pruneArchive() is called, which is only done if an archive life is set.
+ *
+ * A single SampleLog is shared by all sensors, and all writes go through it. CSV is only
+ * supported as an export format.
+ */
+class SampleLog {
+
+    static final String SEGMENT_PREFIX = "samples-";
+    static final String COLUMN_SUFFIX = ".bin";
+    static final long DEFAULT_SEGMENT_SPAN = 60 * 60 * 1000; // 1 hour
+    static final String ARCHIVE_DIRECTORY = "archive";
+    // Segments per archive block, so a block is a day with the default span
+    static final int ARCHIVE_BLOCK_SEGMENTS = 24;
+    // Blocks per archive data file
+    static final int ARCHIVE_FILE_BLOCKS = 30;
+
+    // Column file header is MAGIC, VERSION, serial number
+    private static final int MAGIC = 0x46495441; // "FITA"
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+
+    // Temperatures are stored in fixed point with this many steps per degree
+    static final int STEPS_PER_DEGREE = 16;
+
+    /**
+     * How long samples are kept in the hot tier for
+     */
+    interface Retention {
+        /**
+         * @return ms to keep samples from a sensor for before archiving them
+         */
+        long getRetention(long serno);
+    }
+
+    /**
+     * Receives samples from a scan
+     */
+    interface Visitor {
+        void sample(long serno, long timestamp, double value);
+    }
+
+    /**
+     * The column for one sensor in the open segment, and the encoder state needed to append
+     * to it
+     */
+    private static class Column {
+        FileOutputStream file;
+        BufferedOutputStream out;
+        long lastTime, lastDelta;
+        int lastSteps;
+    }
+
+    private final File mDirectory;
+    private final long mSegmentSpan;
+    private final SampleArchive mArchive;
+
+    // Start time of the segment currently open for append, -1 if none
+    private long mCurrentSegment = -1;
+    // Columns open in the current segment
+    private final Map<Long, Column> mColumns = new HashMap<>();
+    // Bytes buffered for each column between commits
+    private static final int COLUMN_BUFFER_SIZE = 1024;
+
+    // Record encoding buffer; two varints of at most 10 bytes each
+    private final byte[] mRecord = new byte[20];
+
+    // Earliest time anything in a closed segment expires, under mRetention. Long.MIN_VALUE
+    // forces a sweep, which is needed when a segment is closed.
+    private long mNextExpiry = Long.MIN_VALUE;
+    private Retention mRetention = null;
+    // Re-encodes columns into archive blocks
+    private final ByteArrayOutputStream mBlock = new ByteArrayOutputStream();
+    // Rows the last migrate() couldn't parse
+    private int mMigrationRejects = 0;
+    // Counts the sweeps that have moved columns to the archive, so readers can tell
+    private volatile long mArchiveGeneration = 0;
+    // Archive data files wholly before this have been pruned
+    private long mArchivePruned = Long.MIN_VALUE;
+
+    /**
+     * @param directory   directory to keep segments and the archive in. Will be created if
+     *                    needed.
+     * @param segmentSpan span of time covered by each segment, in ms
+     */
+    SampleLog(File directory, long segmentSpan) {
+        mDirectory = directory;
+        mSegmentSpan = segmentSpan;
+        long blockSpan = segmentSpan * ARCHIVE_BLOCK_SEGMENTS;
+        mArchive = new SampleArchive(new File(directory, ARCHIVE_DIRECTORY),
+                blockSpan, blockSpan * ARCHIVE_FILE_BLOCKS);
+    }
+
+    /**
+     * Get the directory used to store segments for a sample file preference. Legacy
+     * "data.csv" maps to directory "data" alongside it.
+     */
+    static File directoryFor(File sampleFile) {
+        String name = sampleFile.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0)
+            name = name.substring(0, dot);
+        return new File(sampleFile.getParentFile(), name);
+    }
+
+    /**
+     * Parse a serial number written with "%X". Serial numbers use all 64 bits, so they can't
+     * go through Long.parseLong, and Long.parseUnsignedLong isn't available before API 26.
+     *
+     * @throws NumberFormatException if it isn't a hex number of at most 16 digits
+     */
+    static long parseSerno(String hex) {
+        if (hex.length() <= 15)
+            return Long.parseLong(hex, 16);
+        if (hex.length() > 16)
+            throw new NumberFormatException(hex);
+        int last = Character.digit(hex.charAt(15), 16);
+        if (last < 0)
+            throw new NumberFormatException(hex);
+        return (Long.parseLong(hex.substring(0, 15), 16) << 4) | last;
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    long getSegmentSpan() {
+        return mSegmentSpan;
+    }
+
+    /**
+     * Get the size of the archive on disk, in bytes
+     */
+    long getArchiveSize() {
+        return mArchive.size();
+    }
+
+    /**
+     * Get the directory that holds the segment starting at the given time
+     */
+    File segmentDirectory(long start) {
+        return new File(mDirectory, SEGMENT_PREFIX + start);
+    }
+
+    /**
+     * Get the column file for a sensor in a segment
+     */
+    File columnFile(long start, long serno) {
+        return new File(segmentDirectory(start), String.format("%X", serno) + COLUMN_SUFFIX);
+    }
+
+    /**
+     * Get the start times of all segments on disk, oldest first
+     */
+    long[] segmentStarts() {
+        String[] names = mDirectory.list();
+        if (names == null)
+            return new long[0];
+        List<Long> starts = new ArrayList<>();
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX))
+                continue;
+            try {
+                starts.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length())));
+            } catch (NumberFormatException nfe) {
+                // Not one of ours
+            }
+        }
+        Collections.sort(starts);
+        long[] result = new long[starts.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = starts.get(i);
+        return result;
+    }
+
+    private static int putVarint(byte[] buf, int pos, long v) {
+        long zz = (v << 1) ^ (v >> 63);
+        while ((zz & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((zz & 0x7F) | 0x80);
+            zz >>>= 7;
+        }
+        buf[pos++] = (byte) zz;
+        return pos;
+    }
+
+    /**
+     * Decode a zigzag varint from the buffer
+     *
+     * @throws IndexOutOfBoundsException if the buffer ends mid-varint
+     */
+    private static long getVarint(ByteBuffer buf) {
+        long zz = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (!buf.hasRemaining())
+                throw new IndexOutOfBoundsException();
+            b = buf.get();
+            zz |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zz >>> 1) ^ -(zz & 1);
+    }
+
+    /**
+     * Map a column file and check its header
+     *
+     * @return the mapping, positioned after the header, or null if it isn't a column file
+     */
+    private static MappedByteBuffer mapColumn(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel fc = raf.getChannel()) {
+            if (fc.size() < HEADER_SIZE)
+                return null;
+            MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if (buf.getInt() != MAGIC || buf.get() != VERSION)
+                return null;
+            buf.getLong();
+            return buf;
+        }
+    }
+
+    /**
+     * Open a column in the current segment for append. If the column already exists, for
+     * example after a restart, the encoder state is recovered from it, and any record torn by
+     * an earlier crash is truncated.
+     */
+    private Column openColumn(long serno) throws IOException {
+        File file = columnFile(mCurrentSegment, serno);
+        Column col = new Column();
+        col.lastTime = mCurrentSegment;
+        boolean fresh = true;
+
+        if (file.exists()) {
+            MappedByteBuffer buf = mapColumn(file);
+            if (buf != null) {
+                fresh = false;
+                int good = buf.position();
+                try {
+                    while (buf.hasRemaining()) {
+                        long dod = getVarint(buf);
+                        int dt = (int) getVarint(buf);
+                        col.lastDelta += dod;
+                        col.lastTime += col.lastDelta;
+                        col.lastSteps += dt;
+                        good = buf.position();
+                    }
+                } catch (IndexOutOfBoundsException ioobe) {
+                    // Torn record at the end; dropped below
+                }
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    if (raf.length() > good)
+                        raf.setLength(good);
+                }
+            }
+        }
+
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+        col.file = new FileOutputStream(file, !fresh);
+        col.out = new BufferedOutputStream(col.file, COLUMN_BUFFER_SIZE);
+        if (fresh) {
+            byte[] header = new byte[HEADER_SIZE];
+            header[0] = (byte) (MAGIC >> 24);
+            header[1] = (byte) (MAGIC >> 16);
+            header[2] = (byte) (MAGIC >> 8);
+            header[3] = (byte) MAGIC;
+            header[4] = VERSION;
+            for (int i = 0; i < 8; i++)
+                header[5 + i] = (byte) (serno >> (56 - 8 * i));
+            col.out.write(header);
+        }
+        return col;
+    }
+
+    /**
+     * Append a sample to the segment covering its timestamp
+     */
+    synchronized void append(long serno, long timestamp, double value) throws IOException {
+        long start = timestamp - timestamp % mSegmentSpan;
+        if (start != mCurrentSegment) {
+            closeSegment();
+            mCurrentSegment = start;
+            mNextExpiry = Long.MIN_VALUE;
+        }
+        Column col = mColumns.get(serno);
+        if (col == null) {
+            col = openColumn(serno);
+            mColumns.put(serno, col);
+        }
+
+        long delta = timestamp - col.lastTime;
+        int steps = (int) Math.round(value * STEPS_PER_DEGREE);
+        int len = putVarint(mRecord, 0, delta - col.lastDelta);
+        len = putVarint(mRecord, len, steps - col.lastSteps);
+        col.out.write(mRecord, 0, len);
+        col.lastTime = timestamp;
+        col.lastDelta = delta;
+        col.lastSteps = steps;
+    }
+
+    /**
+     * Write everything appended since the last commit to the column files
+     *
+     * @param sync if true, also force it to the storage device before returning
+     */
+    synchronized void commit(boolean sync) throws IOException {
+        for (Column col : mColumns.values()) {
+            col.out.flush();
+            if (sync)
+                col.file.getFD().sync();
+        }
+    }
+
+    /**
+     * Pulls samples out of the log one at a time, for a sensor or all sensors, with
+     * timestamps in [from, to). Archived samples come first, block by block, then the hot
+     * samples segment by segment, and within a segment sensor by sensor in unsigned serial
+     * number order; each sensor's samples are in time order. Only archive blocks and segments
+     * that overlap the range are opened, and only one block or column is held at a time, so
+     * memory use doesn't depend on the size of the range.
+     *
+     * The segments and the archive index are looked at together, under the log lock, on the
+     * first next(), so expire() can't move samples from one to the other in between. A column
+     * that expire() archives after that is read from its new block instead, so every sample
+     * is read exactly once. A column whose block was already archived, because a sweep was
+     * interrupted before it could delete the column, is only read from the block.
+     */
+    class Reader {
+        private final Long mSerno;
+        private final long mFrom, mTo;
+        // Segment starts and archive blocks, taken together on the first next()
+        private long[] mStarts = null;
+        private List<SampleArchive.Block> mBlocks = null;
+        private final Set<String> mArchived = new HashSet<>();
+        private long mGeneration;
+        private int mBlock = 0;
+        private int mSegment = -1;
+        // Serial numbers of the columns in the current segment
+        private long[] mColumns = null;
+        private int mColumn = 0;
+        private ByteBuffer mBuf = null;
+        // Blocks archived since the snapshot, and the archive generation they were found at
+        private List<SampleArchive.Block> mLate = null;
+        private long mLateGeneration;
+        // Last late block inflated, as one is read a segment at a time
+        private SampleArchive.Block mLateBlock = null;
+        private ByteBuffer mLateData = null;
+
+        // Decoder state for the current column, and the times it is read over
+        private long mColumnSerno, mTime, mDelta;
+        private int mSteps;
+        private long mColumnFrom, mColumnTo;
+
+        private Reader(Long serno, long from, long to) {
+            mSerno = serno;
+            mFrom = from;
+            mTo = to;
+        }
+
+        /**
+         * Move to the next sample
+         *
+         * @return false if there are no more
+         */
+        boolean next() throws IOException {
+            while (true) {
+                if (mBuf != null) {
+                    try {
+                        while (mBuf.hasRemaining()) {
+                            mDelta += getVarint(mBuf);
+                            mTime += mDelta;
+                            mSteps += (int) getVarint(mBuf);
+                            if (mTime >= mColumnTo)
+                                break;
+                            if (mTime >= mColumnFrom)
+                                return true;
+                        }
+                    } catch (IndexOutOfBoundsException ioobe) {
+                        // Torn record at the end of the column
+                    }
+                    mBuf = null;
+                }
+                if (!nextColumn())
+                    return false;
+            }
+        }
+
+        private void snapshot() throws IOException {
+            synchronized (SampleLog.this) {
+                mGeneration = mArchiveGeneration;
+                mStarts = segmentStarts();
+                mBlocks = mArchive.blocks(mSerno, mFrom, mTo);
+            }
+            for (SampleArchive.Block b : mBlocks)
+                mArchived.add(b.serno + "@" + b.base);
+        }
+
+        /**
+         * Start reading a column, or part of a block, from its first record
+         */
+        private void startColumn(ByteBuffer buf, long serno, long base, long from, long to) {
+            mBuf = buf;
+            mColumnSerno = serno;
+            mTime = base;
+            mDelta = 0;
+            mSteps = 0;
+            mColumnFrom = from;
+            mColumnTo = to;
+        }
+
+        private boolean nextColumn() throws IOException {
+            if (mBlocks == null)
+                snapshot();
+            while (mBlock < mBlocks.size()) {
+                SampleArchive.Block block = mBlocks.get(mBlock++);
+                try {
+                    startColumn(SampleArchive.read(block), block.serno, block.base, mFrom, mTo);
+                    return true;
+                } catch (FileNotFoundException fnfe) {
+                    // Pruned from the archive since the snapshot
+                }
+            }
+            while (true) {
+                if (mColumns != null && mColumn < mColumns.length) {
+                    if (readColumn(mStarts[mSegment], mColumns[mColumn++]))
+                        return true;
+                    continue;
+                }
+                if (++mSegment >= mStarts.length)
+                    return false;
+                long start = mStarts[mSegment];
+                if (start + mSegmentSpan <= mFrom || start >= mTo) {
+                    mColumns = null;
+                    continue;
+                }
+                mColumns = listColumns(start);
+                mColumn = 0;
+            }
+        }
+
+        /**
+         * Get the sensors with a column to read in a segment, in unsigned serial number order
+         */
+        private long[] listColumns(long start) throws IOException {
+            Set<Long> sernos = new HashSet<>();
+            if (mSerno != null)
+                sernos.add(mSerno);
+            else {
+                String[] names = segmentDirectory(start).list();
+                if (names != null) {
+                    for (String name : names) {
+                        try {
+                            sernos.add(parseSerno(name.substring(0, name.length() - COLUMN_SUFFIX.length())));
+                        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                            // Not a column
+                        }
+                    }
+                }
+            }
+            long base = start - start % mArchive.getBlockSpan();
+            Iterator<Long> it = sernos.iterator();
+            while (it.hasNext()) {
+                if (mArchived.contains(it.next() + "@" + base))
+                    it.remove();
+            }
+            // Columns archived and deleted since the snapshot are no longer listed
+            for (SampleArchive.Block b : late()) {
+                if (b.base == base)
+                    sernos.add(b.serno);
+            }
+            return sortUnsigned(sernos);
+        }
+
+        /**
+         * Open a sensor's column in a segment or, if it has been archived since the
+         * snapshot, the part of its block that covers the segment
+         *
+         * @return false if there is nothing to read
+         */
+        private boolean readColumn(long start, long serno) throws IOException {
+            File f = columnFile(start, serno);
+            try {
+                ByteBuffer buf;
+                if (f.exists() && (buf = mapColumn(f)) != null) {
+                    startColumn(buf, buf.getLong(5), start, mFrom, mTo);
+                    return true;
+                }
+            } catch (FileNotFoundException fnfe) {
+                // Archived since the segment was listed
+            }
+            long base = start - start % mArchive.getBlockSpan();
+            for (SampleArchive.Block b : late()) {
+                if (b.serno != serno || b.base != base)
+                    continue;
+                if (b != mLateBlock) {
+                    mLateData = SampleArchive.read(b);
+                    mLateBlock = b;
+                }
+                startColumn(mLateData.duplicate(), serno, base,
+                        Math.max(mFrom, start), Math.min(mTo, start + mSegmentSpan));
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Get the blocks archived since the snapshot. Only looked for once expire() has
+         * archived something, and again each time it archives more.
+         */
+        private List<SampleArchive.Block> late() throws IOException {
+            long generation = mArchiveGeneration;
+            if (generation == mGeneration)
+                return Collections.emptyList();
+            if (mLate == null || mLateGeneration != generation) {
+                mLate = new ArrayList<>();
+                for (SampleArchive.Block b : mArchive.blocks(mSerno, mFrom, mTo)) {
+                    if (!mArchived.contains(b.serno + "@" + b.base))
+                        mLate.add(b);
+                }
+                mLateGeneration = generation;
+                mLateBlock = null;
+            }
+            return mLate;
+        }
+
+        long getSerno() {
+            return mColumnSerno;
+        }
+
+        long getTimestamp() {
+            return mTime;
+        }
+
+        double getValue() {
+            return (double) mSteps / STEPS_PER_DEGREE;
+        }
+    }
+
+    /**
+     * Sort serial numbers as unsigned, as they use all 64 bits
+     */
+    private static long[] sortUnsigned(Collection<Long> sernos) {
+        long[] result = new long[sernos.size()];
+        int i = 0;
+        for (long serno : sernos)
+            result[i++] = serno ^ Long.MIN_VALUE;
+        // Sorted signed with the top bit flipped is sorted unsigned
+        Arrays.sort(result);
+        for (i = 0; i < result.length; i++)
+            result[i] ^= Long.MIN_VALUE;
+        return result;
+    }
+
+    /**
+     * Get the sensors that may have samples with timestamps in [from, to), from the column
+     * files and the archive index, without reading any samples. The segments are listed first,
+     * so a column archived in between is found in the archive.
+     *
+     * @return serial numbers, in unsigned order
+     */
+    long[] sensors(long from, long to) throws IOException {
+        Set<Long> sernos = new HashSet<>();
+        for (long start : segmentStarts()) {
+            if (start + mSegmentSpan <= from || start >= to)
+                continue;
+            String[] names = segmentDirectory(start).list();
+            if (names == null)
+                continue;
+            for (String name : names) {
+                try {
+                    sernos.add(parseSerno(name.substring(0, name.length() - COLUMN_SUFFIX.length())));
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    // not a column
+                }
+            }
+        }
+        for (SampleArchive.Block b : mArchive.blocks(null, from, to))
+            sernos.add(b.serno);
+        return sortUnsigned(sernos);
+    }
+
+    /**
+     * Get a reader for samples with timestamps in [from, to)
+     *
+     * @param serno sensor to read, or null for all sensors
+     */
+    Reader reader(Long serno, long from, long to) {
+        return new Reader(serno, from, to);
+    }
+
+    /**
+     * Visit all samples with timestamps in [from, to), in the order given by Reader
+     *
+     * @param serno sensor to visit, or null for all sensors
+     */
+    void scan(Long serno, long from, long to, Visitor v) throws IOException {
+        Reader r = new Reader(serno, from, to);
+        while (r.next())
+            v.sample(r.getSerno(), r.getTimestamp(), r.getValue());
+    }
+
+    /**
+     * Export samples with timestamps in [from, to) as "%X,%d,%g" CSV lines. The value always
+     * has a decimal point, whatever the default locale, so it stays in its own column.
+     */
+    void exportCSV(Writer out, long from, long to) throws IOException {
+        final IOException[] failed = {null};
+        scan(null, from, to, (serno, timestamp, value) -> {
+            if (failed[0] != null)
+                return;
+            try {
+                out.write(String.format(Locale.US, "%X,%d,%g\n", serno, timestamp, value));
+            } catch (IOException ioe) {
+                failed[0] = ioe;
+            }
+        });
+        if (failed[0] != null)
+            throw failed[0];
+    }
+
+    /**
+     * Move samples that have outlived their retention from the segments to the archive. A
+     * sensor's columns are archived a whole block at a time, once the newest of them has
+     * expired, then deleted, along with any segments left empty. A full sweep is only done
+     * when something may have expired since the last one, or the retention has changed, so
+     * this is cheap enough to call on every commit.
+     *
+     * @param latest    time of the latest sample
+     * @param retention how long to keep each sensor's samples uncompressed. A snapshot; a
+     *                  different object is taken as a change of retention.
+     * @return true if a sweep was done
+     * @throws IOException if a block couldn't be archived. Its columns are kept, and tried
+     *                     again after the next segment change.
+     */
+    synchronized boolean expire(long latest, Retention retention) throws IOException {
+        if (retention == mRetention && latest < mNextExpiry)
+            return false;
+        mRetention = retention;
+        mNextExpiry = Long.MAX_VALUE;
+        long blockSpan = mArchive.getBlockSpan();
+
+        // Columns due for archiving, grouped by sensor and block, oldest block first
+        class Group {
+            long serno, base;
+            List<Long> starts = new ArrayList<>();
+        }
+        Map<String, Group> due = new LinkedHashMap<>();
+        for (long start : segmentStarts()) {
+            if (start == mCurrentSegment)
+                continue;
+            String[] names = segmentDirectory(start).list();
+            if (names == null)
+                continue;
+            long base = start - start % blockSpan;
+            // Wait for the rest of the block if it is still being written
+            if (mCurrentSegment >= base && mCurrentSegment < base + blockSpan)
+                continue;
+            for (String name : names) {
+                long serno;
+                try {
+                    serno = parseSerno(name.substring(0, name.length() - COLUMN_SUFFIX.length()));
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    continue; // not a column
+                }
+                long expiry = base + blockSpan + retention.getRetention(serno);
+                if (expiry > latest) {
+                    mNextExpiry = Math.min(mNextExpiry, expiry);
+                    continue;
+                }
+                String key = serno + "@" + base;
+                Group g = due.get(key);
+                if (g == null) {
+                    g = new Group();
+                    g.serno = serno;
+                    g.base = base;
+                    due.put(key, g);
+                }
+                g.starts.add(start);
+            }
+        }
+
+        IOException failed = null;
+        for (Group g : due.values()) {
+            try {
+                // Already there if a sweep was interrupted before it could delete the columns
+                if (!mArchive.contains(g.serno, g.base))
+                    archive(g.serno, g.base, g.starts);
+            } catch (IOException ioe) {
+                failed = ioe;
+                continue;
+            }
+            // Before the columns go, so a reader that misses them knows to look in the archive
+            mArchiveGeneration++;
+            for (long start : g.starts) {
+                columnFile(start, g.serno).delete();
+                File dir = segmentDirectory(start);
+                String[] left = dir.list();
+                if (left != null && left.length == 0)
+                    dir.delete();
+            }
+        }
+        if (failed != null)
+            throw failed;
+        return true;
+    }
+
+    /**
+     * Delete archived samples older than a time. The archive is pruned a data file at a time,
+     * so samples are only deleted once every block in their file is older; they may be kept
+     * for up to a file span longer. Cheap enough to call on every commit.
+     *
+     * @param before time before which archived samples are no longer wanted
+     * @return true if the archive was pruned
+     */
+    synchronized boolean pruneArchive(long before) {
+        long fileSpan = mArchive.getFileSpan();
+        long limit = before - before % fileSpan;
+        if (limit <= mArchivePruned)
+            return false;
+        mArchive.prune(limit);
+        mArchivePruned = limit;
+        return true;
+    }
+
+    /**
+     * Re-encode a sensor's columns in one block span as a single column, starting from the
+     * block base, and add it to the archive
+     *
+     * @param starts start times of the segments holding the columns, oldest first
+     */
+    private void archive(long serno, long base, List<Long> starts) throws IOException {
+        mBlock.reset();
+        long lastTime = base, lastDelta = 0, first = 0;
+        int lastSteps = 0, count = 0;
+        for (long start : starts) {
+            ByteBuffer buf = mapColumn(columnFile(start, serno));
+            if (buf == null)
+                continue;
+            long time = start, delta = 0;
+            int steps = 0;
+            try {
+                while (buf.hasRemaining()) {
+                    delta += getVarint(buf);
+                    time += delta;
+                    steps += (int) getVarint(buf);
+                    long d = time - lastTime;
+                    int len = putVarint(mRecord, 0, d - lastDelta);
+                    len = putVarint(mRecord, len, steps - lastSteps);
+                    mBlock.write(mRecord, 0, len);
+                    lastTime = time;
+                    lastDelta = d;
+                    lastSteps = steps;
+                    if (count++ == 0)
+                        first = time;
+                }
+            } catch (IndexOutOfBoundsException ioobe) {
+                // Torn record at the end of the column
+            }
+        }
+        if (count > 0)
+            mArchive.append(serno, base, first, lastTime, count, mBlock.toByteArray(), mBlock.size());
+    }
+
+    private void closeSegment() throws IOException {
+        IOException failed = null;
+        for (Column col : mColumns.values()) {
+            try {
+                col.out.close();
+            } catch (IOException ioe) {
+                failed = ioe;
+            }
+        }
+        mColumns.clear();
+        mCurrentSegment = -1;
+        if (failed != null)
+            throw failed;
+    }
+
+    synchronized void close() throws IOException {
+        closeSegment();
+    }
+
+    /**
+     * Import samples from a legacy "%X,%d,%g" CSV file, as written by older versions that
+     * rewrote the whole file on every sample, newest first. Once imported the legacy file
+     * is renamed so it isn't imported again.
+     *
+     * The value was formatted in the default locale, so it may have a decimal comma and
+     * split into an extra column. Everything after the timestamp is taken as the value.
+     * Rows that still can't be parsed are skipped, and counted in getMigrationRejects().
+     *
+     * @return number of samples imported, or -1 if there was no legacy file
+     */
+    synchronized int migrate(File legacy) throws IOException {
+        if (!legacy.isFile())
+            return -1;
+
+        class Row {
+            long serno, timestamp;
+            double value;
+        }
+        List<Row> rows = new ArrayList<>();
+        mMigrationRejects = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(legacy))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                int c1 = line.indexOf(','), c2 = c1 < 0 ? -1 : line.indexOf(',', c1 + 1);
+                try {
+                    if (c2 < 0)
+                        throw new NumberFormatException(line);
+                    Row r = new Row();
+                    r.serno = parseSerno(line.substring(0, c1).trim());
+                    r.timestamp = Long.parseLong(line.substring(c1 + 1, c2).trim());
+                    r.value = Double.parseDouble(line.substring(c2 + 1).trim().replace(',', '.'));
+                    rows.add(r);
+                } catch (NumberFormatException nfe) {
+                    mMigrationRejects++;
+                }
+            }
+        }
+        // Legacy files are newest-first; segments are appended oldest-first
+        Collections.sort(rows, (a, b) -> Long.compare(a.timestamp, b.timestamp));
+        for (Row r : rows)
+            append(r.serno, r.timestamp, r.value);
+        closeSegment();
+
+        File done = new File(legacy.getPath() + ".migrated");
+        if (!legacy.renameTo(done))
+            throw new IOException("Could not rename " + legacy + " to " + done);
+        return rows.size();
+    }
+
+    /**
+     * @return the number of rows the last migrate() skipped because they couldn't be parsed
+     */
+    synchronized int getMigrationRejects() {
+        return mMigrationRejects;
+    }
+}
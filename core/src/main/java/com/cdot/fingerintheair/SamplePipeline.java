@@ -0,0 +1,259 @@
+package com.cdot.fingerintheair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Everything that happens to samples once a bus scheduler has read them: the in-memory
+ * histories, the sample log and its writer, the HTTP server and in-process subscribers. It has
+ * no platform dependencies, so the same pipeline runs inside the Android service or headless on
+ * a plain JVM; the host only has to feed it batches from its schedulers.
+ */
+class SamplePipeline {
+
+    // How far back the sample log is read for values to show while buses are connecting
+    static final long RECENT_WINDOW = SampleHistory.HOUR;
+
+    /**
+     * Where the pipeline reports what it is doing
+     */
+    interface Logger {
+        void log(LogRing.Level level, String message);
+    }
+
+    private final Logger mLogger;
+    private volatile SamplingConfig mConfig;
+
+    // Shared by all sensors. Only written through mSampleWriter.
+    private final SampleLog mSampleLog;
+    private final SampleWriter mSampleWriter;
+    // Serves live and historical samples over HTTP, if started
+    private volatile SampleServer mSampleServer = null;
+
+    // Map from sensor ID to in-memory history
+    private final ConcurrentHashMap<Long, SampleHistory> mHistories = new ConcurrentHashMap<>();
+
+    // In-process subscribers to samples
+    private final CopyOnWriteArrayList<SampleSubscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Open the sample log and start writing to it
+     *
+     * @param sampleFile the sample file preference; the log goes in the directory for it
+     * @param config     the initial configuration
+     * @param logger     told about progress and failures
+     */
+    SamplePipeline(File sampleFile, SamplingConfig config, Logger logger) {
+        mLogger = logger;
+        mConfig = config;
+        mSampleLog = new SampleLog(SampleLog.directoryFor(sampleFile), SampleLog.DEFAULT_SEGMENT_SPAN);
+        mSampleWriter = new SampleWriter(mSampleLog, message -> mLogger.log(LogRing.Level.ERROR, message));
+        configureWriter(config);
+        mSampleWriter.start();
+    }
+
+    /**
+     * Take up a new configuration. Storage settings apply from the next commit; a new history
+     * size only applies to sensors seen for the first time.
+     */
+    void setConfig(SamplingConfig config) {
+        mConfig = config;
+        configureWriter(config);
+    }
+
+    private void configureWriter(SamplingConfig config) {
+        mSampleWriter.setCommitWindow(config.getCommitWindow());
+        mSampleWriter.setDurability(config.getDurability(), config.getSyncInterval());
+        mSampleWriter.setRetention(config);
+        mSampleWriter.setArchiveLife(config.getArchiveLife());
+    }
+
+    /**
+     * Start serving samples over HTTP
+     *
+     * @throws IOException if the address can't be bound
+     */
+    void startServer(String address, int port) throws IOException {
+        SampleServer server = new SampleServer(mSampleLog, address, port,
+                message -> mLogger.log(LogRing.Level.WARN, message));
+        server.start();
+        mSampleServer = server;
+    }
+
+    private SampleHistory newHistory() {
+        return new SampleHistory(mConfig.getHistorySize(), SampleHistory.DEFAULT_LEVEL_SIZES);
+    }
+
+    /**
+     * Bring the legacy CSV file into the sample log, then load the recent past from the log so
+     * there are last-known values to show while the buses are still connecting. Sensors that
+     * have already been sampled live keep the history they have. Blocks on storage.
+     */
+    void loadRecent(File legacy) {
+        try {
+            int n = mSampleLog.migrate(legacy);
+            if (n >= 0) {
+                mLogger.log(LogRing.Level.INFO, String.format("Migrated %d samples from %s to %s", n, legacy, mSampleLog.getDirectory()));
+                int rejects = mSampleLog.getMigrationRejects();
+                if (rejects > 0)
+                    mLogger.log(LogRing.Level.WARN, String.format("Skipped %d unreadable rows in %s", rejects, legacy));
+            }
+        } catch (IOException ioe) {
+            mLogger.log(LogRing.Level.ERROR, legacy + " migration failed " + ioe);
+        }
+
+        final Map<Long, SampleHistory> loaded = new HashMap<>();
+        long now = System.currentTimeMillis();
+        try {
+            mSampleLog.scan(null, now - RECENT_WINDOW, now, (serno, timestamp, value) -> {
+                SampleHistory h = loaded.get(serno);
+                if (h == null) {
+                    h = newHistory();
+                    loaded.put(serno, h);
+                }
+                h.add(timestamp, (float) value);
+            });
+        } catch (IOException ioe) {
+            mLogger.log(LogRing.Level.ERROR, mSampleLog.getDirectory() + " read failed " + ioe);
+            return;
+        }
+        SampleBatch latest = new SampleBatch(loaded.size());
+        for (Map.Entry<Long, SampleHistory> e : loaded.entrySet()) {
+            if (mHistories.putIfAbsent(e.getKey(), e.getValue()) == null)
+                latest.add(e.getKey(), e.getValue().getLatestTime(), e.getValue().getLatestValue());
+        }
+        mLogger.log(LogRing.Level.INFO, String.format("Loaded last-known values for %d sensors", latest.size()));
+        if (latest.size() > 0) {
+            for (SampleSubscription sub : mSubscriptions)
+                sub.publish(latest);
+        }
+    }
+
+    /**
+     * Feed a batch from a bus scheduler through the pipeline. Never blocks on storage or
+     * clients; safe to call from any thread.
+     */
+    void publish(SampleBatch batch) {
+        if (batch.size() == 0)
+            return;
+        for (int i = 0; i < batch.size(); i++) {
+            long serno = batch.getSerno(i);
+            SampleHistory history = mHistories.get(serno);
+            if (history == null) {
+                SampleHistory fresh = newHistory();
+                // Another bus may have got there first
+                history = mHistories.putIfAbsent(serno, fresh);
+                if (history == null)
+                    history = fresh;
+            }
+            history.add(batch.getTimestamp(i), (float) batch.getValue(i));
+        }
+        mSampleWriter.write(batch);
+        SampleServer server = mSampleServer;
+        if (server != null)
+            server.publish(batch);
+        for (SampleSubscription sub : mSubscriptions)
+            sub.publish(batch);
+    }
+
+    /**
+     * Tell subscribers and HTTP clients a sensor is no longer being sampled
+     */
+    void sensorLost(long serno) {
+        for (SampleSubscription sub : mSubscriptions)
+            sub.sensorLost(serno);
+        SampleServer server = mSampleServer;
+        if (server != null)
+            server.sensorLost(serno);
+    }
+
+    /**
+     * Get the in-memory history for a sensor
+     *
+     * @return the history, or null if the sensor has never been sampled
+     */
+    SampleHistory getHistory(long serno) {
+        return mHistories.get(serno);
+    }
+
+    /**
+     * Get the latest value of every sensor with a history, including those loaded from the
+     * sample log that haven't been sampled yet this session
+     */
+    SampleBatch getLatest() {
+        SampleBatch batch = new SampleBatch(mHistories.size());
+        for (Map.Entry<Long, SampleHistory> e : mHistories.entrySet()) {
+            long timestamp = e.getValue().getLatestTime();
+            if (timestamp > 0)
+                batch.add(e.getKey(), timestamp, e.getValue().getLatestValue());
+        }
+        return batch;
+    }
+
+    /**
+     * Subscribe to sample batches
+     *
+     * @param listener told about samples
+     * @param executor to deliver on
+     * @param capacity maximum number of batches queued before overflow kicks in
+     * @param overflow what to do when the queue is full
+     * @return the subscription, to pass to unsubscribe
+     */
+    SampleSubscription subscribe(SampleSubscription.Listener listener, Executor executor,
+                                 int capacity, SampleSubscription.Overflow overflow) {
+        SampleSubscription sub = new SampleSubscription(listener, executor, capacity, overflow);
+        mSubscriptions.add(sub);
+        return sub;
+    }
+
+    void unsubscribe(SampleSubscription sub) {
+        sub.cancel();
+        mSubscriptions.remove(sub);
+    }
+
+    /**
+     * Get the writer, for its queue depth and commit latency
+     */
+    SampleWriter getSampleWriter() {
+        return mSampleWriter;
+    }
+
+    File getDirectory() {
+        return mSampleLog.getDirectory();
+    }
+
+    /**
+     * Write a snapshot of the storage metrics
+     */
+    void dumpMetrics(Writer out) throws IOException {
+        out.write("Storage\n");
+        out.write("  COMMIT " + mSampleWriter.getCommitLatency() + "\n");
+        out.write("  ARCHIVE " + mSampleWriter.getArchiveLatency() + "\n");
+        out.write("  QUEUE_DEPTH " + mSampleWriter.getQueueDepth() + "\n");
+        out.write("  DROPPED " + mSampleWriter.getDropped() + "\n");
+        out.write("  ARCHIVE_BYTES " + mSampleLog.getArchiveSize() + "\n");
+    }
+
+    /**
+     * Export committed samples between two times as CSV. Blocks on storage.
+     */
+    void exportCSV(Writer out, long from, long to) throws IOException {
+        mSampleLog.exportCSV(out, from, to);
+    }
+
+    /**
+     * Stop serving, write out anything still queued, and close the log
+     */
+    void close() {
+        SampleServer server = mSampleServer;
+        if (server != null)
+            server.close();
+        mSampleWriter.close();
+    }
+}
@@ -0,0 +1,511 @@
+package com.cdot.fingerintheair;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP server for collectors on the local network. All network I/O is non-blocking
+ * and done by a single selector thread, so a slow client can't hold up anything else;
+ * publishing a batch only queues it for that thread. Reading the log for /history is done on
+ * a worker thread, which hands the response back to the selector thread to send.
+ *
+ * GET /live is a Server-Sent Events stream, with one "samples" event per tick holding a JSON
+ * array of the samples in the batch, and a "lost" event when a sensor goes. The event id is the
+ * latest timestamp in the batch.
+ *
+ * GET /history returns samples from the log, a page at a time, as JSON or CSV. Parameters are
+ * serno (hex), from, to, after, limit and format ("json" or "csv"). Samples are ordered by
+ * serial number, unsigned, then by time. A page that isn't the last ends with a cursor, given
+ * in the X-Next-After header and in the "next" field of JSON, which is passed as "after" to
+ * get the next page. The cursor is the serial number and timestamp of the last sample sent,
+ * as SERNO:TIMESTAMP, so a page starts where the last left off without reading what came
+ * before it.
+ *
+ * Every client has a bounded output buffer. A live client whose buffer fills up is
+ * disconnected, rather than having events dropped silently; it can reconnect and fill the gap
+ * from /history. Other responses close the connection once they have been sent. Events
+ * waiting for the selector thread are bounded too, and if they overflow every live client is
+ * disconnected in the same way.
+ */
+class SampleServer extends Thread {
+
+    static final int DEFAULT_PORT = 8080;
+    static final String DEFAULT_ADDRESS = "127.0.0.1";
+
+    static final int DEFAULT_PAGE_SIZE = 1000;
+    // About 70 bytes a sample in JSON, so a full page fits easily in CLIENT_BUFFER
+    static final int MAX_PAGE_SIZE = 2000;
+
+    // Bound on the output queued for one client
+    static final int CLIENT_BUFFER = 256 * 1024; // bytes
+    // Longest request head accepted
+    static final int MAX_REQUEST = 8 * 1024; // bytes
+    static final int MAX_CLIENTS = 16;
+    // Interval between SSE comments, to keep idle connections open through proxies
+    static final long KEEPALIVE = 15000; // ms
+    // Bound on the events waiting for the selector thread
+    static final int MAX_EVENTS = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ByteBuffer KEEPALIVE_EVENT = ByteBuffer.wrap(":\n\n".getBytes(UTF8));
+
+    /**
+     * Something went wrong that the user should know about
+     */
+    interface ErrorListener {
+        void onError(String message);
+    }
+
+    private static class Client {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        int queued = 0;
+        boolean live = false;
+        boolean closeWhenSent = false;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final SampleLog mLog;
+    private final ErrorListener mErrors;
+    private final Selector mSelector;
+    private final ServerSocketChannel mServer;
+    // Events waiting for the selector thread to send them to the live clients, how many, and
+    // whether any have been lost because there were too many
+    private final ConcurrentLinkedQueue<ByteBuffer> mEvents = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mEventCount = new AtomicInteger();
+    private volatile boolean mEventsLost = false;
+    // Runs /history queries, and the responses it hands back to the selector thread
+    private final ExecutorService mQueries = Executors.newSingleThreadExecutor();
+    private final ConcurrentLinkedQueue<Runnable> mResponses = new ConcurrentLinkedQueue<>();
+    // Only used by the selector thread
+    private int mClients = 0;
+    private long mLastKeepalive = System.currentTimeMillis();
+
+    /**
+     * Bind the server. Call start() to start serving.
+     *
+     * @param log     log for /history
+     * @param address interface to bind to; "0.0.0.0" for all
+     * @param port    port to listen on
+     * @param errors  told about failures
+     * @throws IOException if the address can't be bound
+     */
+    SampleServer(SampleLog log, String address, int port, ErrorListener errors) throws IOException {
+        super("SampleServer " + address + ":" + port);
+        mLog = log;
+        mErrors = errors;
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        try {
+            mServer.socket().bind(new InetSocketAddress(address, port));
+            mServer.configureBlocking(false);
+            mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ioe) {
+            mServer.close();
+            mSelector.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Get the port being listened on
+     */
+    int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    /**
+     * Send a batch to the live clients. Never blocks; safe to call from any thread.
+     */
+    void publish(SampleBatch batch) {
+        if (batch.size() == 0)
+            return;
+        long id = Long.MIN_VALUE;
+        StringBuilder sb = new StringBuilder();
+        sb.append("event: samples\ndata: [");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            appendJSON(sb, batch.getSerno(i), batch.getTimestamp(i), batch.getValue(i));
+            id = Math.max(id, batch.getTimestamp(i));
+        }
+        sb.append("]\nid: ").append(id).append("\n\n");
+        queueEvent(sb);
+    }
+
+    /**
+     * Tell the live clients a sensor has gone
+     */
+    void sensorLost(long serno) {
+        queueEvent(new StringBuilder(String.format("event: lost\ndata: {\"serno\":\"%X\"}\n\n", serno)));
+    }
+
+    private void queueEvent(CharSequence event) {
+        if (mEventCount.incrementAndGet() > MAX_EVENTS) {
+            mEventCount.decrementAndGet();
+            mEventsLost = true;
+        } else
+            mEvents.offer(ByteBuffer.wrap(event.toString().getBytes(UTF8)));
+        mSelector.wakeup();
+    }
+
+    /**
+     * Stop serving and close all connections
+     */
+    void close() {
+        interrupt();
+        mSelector.wakeup();
+    }
+
+    private static void appendJSON(StringBuilder sb, long serno, long timestamp, double value) {
+        sb.append(String.format(Locale.US, "{\"serno\":\"%X\",\"timestamp\":%d,\"value\":%s}",
+                serno, timestamp, Double.toString(value)));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                mSelector.select(KEEPALIVE);
+                if (isInterrupted())
+                    break;
+
+                // Responses from the worker, for clients that may have gone since they asked
+                Runnable response;
+                while ((response = mResponses.poll()) != null)
+                    response.run();
+                if (mEventsLost) {
+                    mEventsLost = false;
+                    dropLive();
+                }
+                ByteBuffer event;
+                while ((event = mEvents.poll()) != null) {
+                    mEventCount.decrementAndGet();
+                    broadcast(event);
+                }
+                long now = System.currentTimeMillis();
+                if (now - mLastKeepalive >= KEEPALIVE) {
+                    broadcast(KEEPALIVE_EVENT);
+                    mLastKeepalive = now;
+                }
+
+                for (SelectionKey key : mSelector.selectedKeys()) {
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else {
+                            if (key.isReadable())
+                                read(key);
+                            if (key.isValid() && key.isWritable())
+                                write(key);
+                        }
+                    } catch (IOException ioe) {
+                        drop(key);
+                    }
+                }
+                mSelector.selectedKeys().clear();
+            }
+        } catch (IOException ioe) {
+            mErrors.onError("HTTP server failed " + ioe);
+        } finally {
+            mQueries.shutdownNow();
+            for (SelectionKey key : mSelector.keys())
+                drop(key);
+            try {
+                mSelector.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServer.accept();
+        if (channel == null)
+            return;
+        if (mClients >= MAX_CLIENTS) {
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(mSelector, SelectionKey.OP_READ, new Client(channel));
+        mClients++;
+    }
+
+    private void drop(SelectionKey key) {
+        // Keys can be dropped more than once, but must only be counted once
+        if (key.isValid() && key.attachment() instanceof Client)
+            mClients--;
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Disconnect every live client, as events they should have had have been lost
+     */
+    private void dropLive() {
+        for (SelectionKey key : mSelector.keys()) {
+            Object a = key.attachment();
+            if (a instanceof Client && ((Client) a).live) {
+                mErrors.onError("HTTP events overflowed, disconnected " + ((Client) a).channel.socket().getRemoteSocketAddress());
+                drop(key);
+            }
+        }
+    }
+
+    private void broadcast(ByteBuffer event) {
+        for (SelectionKey key : mSelector.keys()) {
+            Object a = key.attachment();
+            if (a instanceof Client && ((Client) a).live && key.isValid())
+                send(key, event.duplicate());
+        }
+    }
+
+    /**
+     * Queue output for a client, disconnecting it if its buffer is full
+     */
+    private void send(SelectionKey key, ByteBuffer buf) {
+        Client client = (Client) key.attachment();
+        if (client.queued + buf.remaining() > CLIENT_BUFFER) {
+            mErrors.onError("HTTP client too slow, disconnected " + client.channel.socket().getRemoteSocketAddress());
+            drop(key);
+            return;
+        }
+        client.out.add(buf);
+        client.queued += buf.remaining();
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        ByteBuffer buf;
+        while ((buf = client.out.peek()) != null) {
+            client.queued -= client.channel.write(buf);
+            if (buf.hasRemaining())
+                return;
+            client.out.poll();
+        }
+        if (client.closeWhenSent)
+            drop(key);
+        else
+            key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        if (client.channel.read(client.in) < 0) {
+            drop(key);
+            return;
+        }
+        if (client.live || client.closeWhenSent) {
+            // Nothing more is expected from the client
+            client.in.clear();
+            return;
+        }
+        String head = new String(client.in.array(), 0, client.in.position(), UTF8);
+        int end = head.indexOf("\r\n\r\n");
+        if (end < 0) {
+            if (!client.in.hasRemaining())
+                respond(key, "431 Request Header Fields Too Large", "text/plain", "Request too large\n", null);
+            return;
+        }
+        String[] request = head.substring(0, head.indexOf("\r\n")).split(" ");
+        if (request.length != 3) {
+            respond(key, "400 Bad Request", "text/plain", "Bad request\n", null);
+            return;
+        }
+        if (!"GET".equals(request[0])) {
+            respond(key, "405 Method Not Allowed", "text/plain", "Only GET is supported\n", null);
+            return;
+        }
+        String path = request[1];
+        Map<String, String> query = new HashMap<>();
+        int q = path.indexOf('?');
+        if (q >= 0) {
+            for (String param : path.substring(q + 1).split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0)
+                    query.put(decode(param.substring(0, eq)), decode(param.substring(eq + 1)));
+            }
+            path = path.substring(0, q);
+        }
+        try {
+            if ("/live".equals(path)) {
+                client.live = true;
+                send(key, ByteBuffer.wrap(("HTTP/1.1 200 OK\r\n"
+                        + "Content-Type: text/event-stream\r\n"
+                        + "Cache-Control: no-cache\r\n"
+                        + "Connection: keep-alive\r\n\r\n"
+                        + "retry: 5000\n\n").getBytes(UTF8)));
+            } else if ("/history".equals(path))
+                history(key, query);
+            else
+                respond(key, "404 Not Found", "text/plain", "Try /live or /history\n", null);
+        } catch (IllegalArgumentException iae) {
+            respond(key, "400 Bad Request", "text/plain", iae.getMessage() + "\n", null);
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            return s; // UTF-8 is always supported
+        }
+    }
+
+    private static long getLong(Map<String, String> query, String name, long dflt) {
+        String s = query.get(name);
+        if (s == null)
+            return dflt;
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Bad " + name + " " + s);
+        }
+    }
+
+    /**
+     * Parse a history request, and hand it to the worker thread. The response is sent when
+     * the worker hands it back.
+     */
+    private void history(final SelectionKey key, Map<String, String> query) {
+        Long serno = null;
+        if (query.containsKey("serno")) {
+            try {
+                serno = SampleLog.parseSerno(query.get("serno"));
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Bad serno " + query.get("serno"));
+            }
+        }
+        final long from = getLong(query, "from", Long.MIN_VALUE);
+        final long to = getLong(query, "to", Long.MAX_VALUE);
+        final int limit = (int) Math.max(1, Math.min(MAX_PAGE_SIZE, getLong(query, "limit", DEFAULT_PAGE_SIZE)));
+        final boolean csv = "csv".equals(query.get("format"));
+        String after = query.get("after");
+        long afterSerno = 0, afterTime = 0;
+        if (after != null) {
+            int colon = after.lastIndexOf(':');
+            try {
+                afterSerno = SampleLog.parseSerno(after.substring(0, colon));
+                afterTime = Long.parseLong(after.substring(colon + 1));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Bad after " + after);
+            }
+        }
+
+        // Nothing more is expected from the client
+        ((Client) key.attachment()).closeWhenSent = true;
+        final Long qSerno = serno;
+        final boolean resume = after != null;
+        final long qAfterSerno = afterSerno, qAfterTime = afterTime;
+        mQueries.execute(() -> {
+            Runnable response;
+            try {
+                final CharSequence[] page = historyPage(qSerno, from, to, limit, csv, resume, qAfterSerno, qAfterTime);
+                response = () -> respondIfValid(key, "200 OK", csv ? "text/csv" : "application/json", page[0],
+                        page[1] != null ? "X-Next-After: " + page[1] + "\r\n" : null);
+            } catch (IOException ioe) {
+                mErrors.onError("HTTP history failed " + ioe);
+                response = () -> respondIfValid(key, "500 Internal Server Error", "text/plain", ioe + "\n", null);
+            }
+            mResponses.offer(response);
+            mSelector.wakeup();
+        });
+    }
+
+    /**
+     * Read a page of history. The page is bounded by MAX_PAGE_SIZE, so it always fits in the
+     * client's buffer. Only the sensors at or after the cursor are read, each from the cursor
+     * time on.
+     *
+     * @param resume if false, start at the beginning, otherwise after the cursor
+     * @return the body, and the cursor for the next page or null if this is the last
+     */
+    private CharSequence[] historyPage(Long serno, long from, long to, int limit, boolean csv,
+                                       boolean resume, long afterSerno, long afterTime) throws IOException {
+        long[] sernos = serno != null ? new long[]{serno} : mLog.sensors(from, to);
+        StringBuilder sb = new StringBuilder();
+        if (!csv)
+            sb.append("{\"samples\":[");
+        int n = 0;
+        String next = null;
+        long lastSerno = 0, lastTime = 0;
+        for (int i = 0; i < sernos.length && next == null; i++) {
+            long s = sernos[i];
+            // Unsigned, as serial numbers use all 64 bits
+            int cmp = Long.compare(s ^ Long.MIN_VALUE, afterSerno ^ Long.MIN_VALUE);
+            if (resume && cmp < 0)
+                continue;
+            long start = from;
+            if (resume && cmp == 0) {
+                if (afterTime == Long.MAX_VALUE)
+                    continue;
+                start = Math.max(from, afterTime + 1);
+            }
+            SampleLog.Reader reader = mLog.reader(s, start, to);
+            while (reader.next()) {
+                if (n == limit) {
+                    next = String.format("%X:%d", lastSerno, lastTime);
+                    break;
+                }
+                if (csv)
+                    sb.append(String.format(Locale.US, "%X,%d,%s\n",
+                            reader.getSerno(), reader.getTimestamp(), Double.toString(reader.getValue())));
+                else {
+                    if (n > 0)
+                        sb.append(',');
+                    appendJSON(sb, reader.getSerno(), reader.getTimestamp(), reader.getValue());
+                }
+                lastSerno = reader.getSerno();
+                lastTime = reader.getTimestamp();
+                n++;
+            }
+        }
+        if (!csv)
+            sb.append("],\"next\":").append(next != null ? "\"" + next + "\"" : "null").append("}\n");
+        return new CharSequence[]{sb, next};
+    }
+
+    private void respondIfValid(SelectionKey key, String status, String type, CharSequence body, String headers) {
+        if (key.isValid())
+            respond(key, status, type, body, headers);
+    }
+
+    private void respond(SelectionKey key, String status, String type, CharSequence body, String headers) {
+        byte[] content = body.toString().getBytes(UTF8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + type + "; charset=utf-8\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + (headers != null ? headers : "")
+                + "Connection: close\r\n\r\n";
+        ((Client) key.attachment()).closeWhenSent = true;
+        send(key, ByteBuffer.wrap(head.getBytes(UTF8)));
+        if (key.isValid())
+            send(key, ByteBuffer.wrap(content));
+    }
+}
@@ -0,0 +1,131 @@
+package com.cdot.fingerintheair;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * An in-process subscription to the samples from SensorService. Batches are queued and
+ * delivered to the listener on the subscriber's executor, so a slow listener never holds up
+ * sampling. The queue is bounded; when it is full the overflow policy decides what is lost.
+ */
+class SampleSubscription {
+
+    enum Overflow {
+        // Discard the oldest queued batch
+        DROP_OLDEST,
+        // Merge everything queued into one batch holding the latest value for each sensor
+        COALESCE_LATEST
+    }
+
+    interface Listener {
+        /**
+         * Called on the subscription's executor with each batch of samples
+         */
+        void onSamples(SampleBatch batch);
+
+        /**
+         * Called on the subscription's executor when a sensor stops being sampled
+         */
+        void onSensorLost(long serno);
+    }
+
+    private final Listener mListener;
+    private final Executor mExecutor;
+    private final int mCapacity;
+    private final Overflow mOverflow;
+
+    // Guarded by this
+    private final ArrayDeque<SampleBatch> mQueue = new ArrayDeque<>();
+    private boolean mDraining = false;
+    private boolean mCancelled = false;
+    private long mDropped = 0;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                SampleBatch batch;
+                synchronized (SampleSubscription.this) {
+                    batch = mCancelled ? null : mQueue.poll();
+                    if (batch == null) {
+                        mDraining = false;
+                        return;
+                    }
+                }
+                mListener.onSamples(batch);
+            }
+        }
+    };
+
+    /**
+     * @param listener told about samples
+     * @param executor to deliver on, e.g. one that posts to the main looper
+     * @param capacity maximum number of batches queued
+     * @param overflow what to do when the queue is full
+     */
+    SampleSubscription(Listener listener, Executor executor, int capacity, Overflow overflow) {
+        mListener = listener;
+        mExecutor = executor;
+        mCapacity = Math.max(1, capacity);
+        mOverflow = overflow;
+    }
+
+    /**
+     * Queue a batch for delivery. Never blocks.
+     */
+    void publish(SampleBatch batch) {
+        synchronized (this) {
+            if (mCancelled)
+                return;
+            if (mQueue.size() >= mCapacity) {
+                if (mOverflow == Overflow.DROP_OLDEST) {
+                    mQueue.poll();
+                    mDropped++;
+                } else {
+                    SampleBatch merged = new SampleBatch(batch.size());
+                    for (SampleBatch b : mQueue)
+                        merged.coalesce(b);
+                    merged.coalesce(batch);
+                    mDropped += mQueue.size();
+                    mQueue.clear();
+                    batch = merged;
+                }
+            }
+            mQueue.add(batch);
+            if (mDraining)
+                return;
+            mDraining = true;
+        }
+        mExecutor.execute(mDrain);
+    }
+
+    void sensorLost(final long serno) {
+        synchronized (this) {
+            if (mCancelled)
+                return;
+        }
+        mExecutor.execute(() -> mListener.onSensorLost(serno));
+    }
+
+    /**
+     * Stop delivering. Anything still queued is discarded.
+     */
+    synchronized void cancel() {
+        mCancelled = true;
+        mQueue.clear();
+    }
+
+    /**
+     * @return number of batches currently waiting for delivery
+     */
+    synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return number of batches lost to overflow, either dropped or coalesced
+     */
+    synchronized long getDropped() {
+        return mDropped;
+    }
+}
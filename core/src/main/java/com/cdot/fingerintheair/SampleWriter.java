@@ -0,0 +1,302 @@
+package com.cdot.fingerintheair;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The only thread that writes to the SampleLog. Bus schedulers hand their batches over
+ * through a lock-free queue and never wait on storage.
+ *
+ * Writes are group committed: once a batch arrives the writer waits out the commit window,
+ * then appends everything queued by then, from every bus, and commits it with a single write
+ * per column. How hard a commit is pushed to the storage device is set by the Durability;
+ * with SYNC_PERIODIC, a commit that wasn't synced is synced once the interval is up even if
+ * nothing else arrives. Samples past each sensor's own retention are moved to the archive
+ * after each commit, and archived samples past the archive life are deleted.
+ *
+ * A sample that can't be appended is dropped on its own, and the rest of its batch is still
+ * written. Dropped samples are counted, and reported once per commit.
+ */
+class SampleWriter extends Thread {
+
+    enum Durability {
+        // fsync every commit
+        SYNC_EACH_COMMIT,
+        // fsync at most once per sync interval
+        SYNC_PERIODIC,
+        // leave it to the OS
+        OS_BUFFERED
+    }
+
+    static final long DEFAULT_COMMIT_WINDOW = 1000; // ms
+    static final long DEFAULT_SYNC_INTERVAL = 10000; // ms
+
+    // Longest time the writer parks for when idle; it is unparked when work arrives
+    private static final long IDLE_PARK = 1000; // ms
+
+    /**
+     * Something went wrong writing
+     */
+    interface ErrorListener {
+        void onError(String message);
+    }
+
+    private final SampleLog mLog;
+    private final ConcurrentLinkedQueue<SampleBatch> mQueue = new ConcurrentLinkedQueue<>();
+    // Samples queued and not yet appended; ConcurrentLinkedQueue.size() is O(n)
+    private final AtomicInteger mQueueDepth = new AtomicInteger(0);
+    private final ErrorListener mErrors;
+
+    private volatile long mCommitWindow = DEFAULT_COMMIT_WINDOW;
+    private volatile Durability mDurability = Durability.SYNC_PERIODIC;
+    private volatile long mSyncInterval = DEFAULT_SYNC_INTERVAL;
+    private volatile SampleLog.Retention mRetention = null;
+    private volatile long mArchiveLife = 0;
+    private volatile boolean mClosing = false;
+
+    // Only used by the writer thread
+    private long mLastSync = 0;
+    // Set when a commit has been made since the last sync
+    private boolean mUnsynced = false;
+
+    private volatile long mDropped = 0;
+
+    private volatile long mCommits = 0;
+    private volatile long mLastCommitLatency = 0; // ns
+    private final LatencyHistogram mCommitLatency = new LatencyHistogram();
+    // Archive sweeps and prunes, which are kept out of the commit latency
+    private final LatencyHistogram mArchiveLatency = new LatencyHistogram();
+
+    /**
+     * @param log    the log to write to. The writer owns it from now on, and closes it.
+     * @param errors told about write failures
+     */
+    SampleWriter(SampleLog log, ErrorListener errors) {
+        super("SampleWriter");
+        mLog = log;
+        mErrors = errors;
+    }
+
+    /**
+     * @param window ms to wait after a batch arrives for others to join the commit
+     */
+    void setCommitWindow(long window) {
+        mCommitWindow = Math.max(0, window);
+    }
+
+    /**
+     * @param durability   how hard commits are pushed to storage
+     * @param syncInterval ms between syncs, for SYNC_PERIODIC
+     */
+    void setDurability(Durability durability, long syncInterval) {
+        mDurability = durability;
+        mSyncInterval = syncInterval;
+    }
+
+    /**
+     * @param retention how long to keep each sensor's samples uncompressed for, or null to
+     *                  never archive them. Taken up at the next commit.
+     */
+    void setRetention(SampleLog.Retention retention) {
+        mRetention = retention;
+    }
+
+    /**
+     * @param life ms to keep archived samples for, or 0 to keep them forever. Taken up at the
+     *             next commit.
+     */
+    void setArchiveLife(long life) {
+        mArchiveLife = life;
+    }
+
+    /**
+     * Queue a batch for writing. Never blocks; safe to call from any thread.
+     */
+    void write(SampleBatch batch) {
+        if (batch.size() == 0)
+            return;
+        mQueue.offer(batch);
+        mQueueDepth.addAndGet(batch.size());
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Get the number of samples waiting to be written
+     */
+    int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    long getCommits() {
+        return mCommits;
+    }
+
+    /**
+     * Get the number of samples that couldn't be appended, and were dropped
+     */
+    long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Get the time taken by the last commit, from the first append to the end of the sync.
+     * Archiving after it is not included.
+     */
+    long getLastCommitLatency() {
+        return mLastCommitLatency;
+    }
+
+    /**
+     * Get the distribution of commit latencies
+     */
+    LatencyHistogram getCommitLatency() {
+        return mCommitLatency;
+    }
+
+    /**
+     * Get the distribution of the times taken by archive sweeps and prunes that did any work
+     */
+    LatencyHistogram getArchiveLatency() {
+        return mArchiveLatency;
+    }
+
+    /**
+     * Write everything still queued, commit it with a sync, close the log, and stop
+     */
+    void close() {
+        mClosing = true;
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        while (!mClosing) {
+            if (mQueue.isEmpty()) {
+                long park = IDLE_PARK;
+                if (mUnsynced && mDurability == Durability.SYNC_PERIODIC) {
+                    long due = mLastSync + mSyncInterval - System.currentTimeMillis();
+                    if (due <= 0) {
+                        sync();
+                        continue;
+                    }
+                    park = Math.min(park, due);
+                }
+                LockSupport.parkNanos(this, park * 1000000L);
+                continue;
+            }
+            // Let other buses join the commit
+            long end = System.currentTimeMillis() + mCommitWindow;
+            long now;
+            while (!mClosing && (now = System.currentTimeMillis()) < end)
+                LockSupport.parkNanos(this, (end - now) * 1000000L);
+            commit(false);
+        }
+        commit(true);
+        try {
+            mLog.close();
+        } catch (IOException ioe) {
+            mErrors.onError(mLog.getDirectory() + " close failed " + ioe);
+        }
+    }
+
+    /**
+     * Sync a commit that wasn't synced when it was made
+     */
+    private void sync() {
+        try {
+            mLog.commit(true);
+        } catch (IOException ioe) {
+            mErrors.onError(mLog.getDirectory() + " sync failed " + ioe);
+        }
+        // Not retried until there is another commit, so a bad device isn't hammered
+        mLastSync = System.currentTimeMillis();
+        mUnsynced = false;
+    }
+
+    /**
+     * Append everything queued and commit it
+     *
+     * @param forceSync sync regardless of the durability
+     */
+    private void commit(boolean forceSync) {
+        long started = System.nanoTime();
+        long latest = Long.MIN_VALUE;
+        int dropped = 0;
+        IOException firstFailure = null;
+        SampleBatch batch;
+        while ((batch = mQueue.poll()) != null) {
+            mQueueDepth.addAndGet(-batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    mLog.append(batch.getSerno(i), batch.getTimestamp(i), batch.getValue(i));
+                    latest = Math.max(latest, batch.getTimestamp(i));
+                } catch (IOException ioe) {
+                    if (firstFailure == null)
+                        firstFailure = ioe;
+                    dropped++;
+                }
+            }
+        }
+        if (dropped > 0) {
+            mDropped += dropped;
+            mErrors.onError(String.format("%s write failed, %d samples dropped: %s",
+                    mLog.getDirectory(), dropped, firstFailure));
+        }
+        try {
+            long now = System.currentTimeMillis();
+            boolean sync = forceSync;
+            switch (mDurability) {
+                case SYNC_EACH_COMMIT:
+                    sync = true;
+                    break;
+                case SYNC_PERIODIC:
+                    sync |= now - mLastSync >= mSyncInterval;
+                    break;
+            }
+            mLog.commit(sync);
+            if (sync)
+                mLastSync = now;
+            mUnsynced = !sync;
+        } catch (IOException ioe) {
+            mErrors.onError(mLog.getDirectory() + " write failed " + ioe);
+        }
+
+        long latency = System.nanoTime() - started;
+        // Commits taking longer than the window mean storage can't keep up
+        if (mCommitWindow > 0 && latency > mCommitWindow * 1000000L)
+            mErrors.onError(String.format("Slow commit: %dms with %d samples queued",
+                    latency / 1000000L, mQueueDepth.get()));
+        mLastCommitLatency = latency;
+        mCommitLatency.record(latency);
+        mCommits++;
+
+        if (latest != Long.MIN_VALUE)
+            archive(latest);
+    }
+
+    /**
+     * Archive and prune what the latest sample has expired. Timed separately from the commit,
+     * as a sweep deflates whole segments and is far slower.
+     */
+    private void archive(long latest) {
+        long started = System.nanoTime();
+        boolean worked = false;
+        SampleLog.Retention retention = mRetention;
+        if (retention != null) {
+            try {
+                worked = mLog.expire(latest, retention);
+            } catch (IOException ioe) {
+                worked = true;
+                mErrors.onError(mLog.getDirectory() + " archive failed " + ioe);
+            }
+        }
+        long archiveLife = mArchiveLife;
+        if (archiveLife > 0)
+            worked |= mLog.pruneArchive(latest - archiveLife);
+        // Most commits find nothing to do, which says nothing about the archive
+        if (worked)
+            mArchiveLatency.record(System.nanoTime() - started);
+    }
+}
@@ -0,0 +1,478 @@
+package com.cdot.fingerintheair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, validated snapshot of the sampling and storage preferences. A new snapshot is
+ * built whenever the preferences change, and handed to the bus schedulers and the sample
+ * writer, which pick it up on their next tick or commit. Nothing on the sampling path reads
+ * preferences directly.
+ *
+ * Preferences edited through EditTextPreference and ListPreference are stored as strings, so
+ * every numeric value is accepted either as a number or a string. Values that can't be parsed
+ * or are out of range are replaced by the default or clamped, and the problem is recorded in
+ * getErrors().
+ *
+ * Sensors can have their own interval, resolution and retention, given in
+ * PREFERENCE_SENSOR_OVERRIDES as entries separated by ';' or newlines, each a serial number
+ * followed by its settings, e.g. "28FF4A1B01160312: interval=5, resolution=10, retention=604800".
+ * Interval and retention are in seconds. Retention is how long samples stay uncompressed in
+ * the sample log before they are archived. Archived samples are kept for the archive life,
+ * which is the same for all sensors, or forever if it is 0.
+ */
+class SamplingConfig implements SampleLog.Retention {
+
+    // PREFERENCE_ must match android:key in prefs_frag,xml
+    static final String PREFERENCE_SAMPLE_FREQUENCY = "sampleFrequency";
+    static final int DEFAULT_SAMPLE_FREQUENCY = 20; // seconds
+    static final String PREFERENCE_SAMPLE_FILE = "sampleFile";
+    static final String PREFERENCE_SAMPLE_LIFE = "sampleLife";
+    static final int DEFAULT_SAMPLE_LIFE = 60 * 60 * 24; // seconds
+    static final String PREFERENCE_ARCHIVE_LIFE = "archiveLife";
+    static final int DEFAULT_ARCHIVE_LIFE = 0; // days, 0 for forever
+    static final String PREFERENCE_HISTORY_SIZE = "historySize";
+    static final int DEFAULT_HISTORY_SIZE = SampleHistory.DEFAULT_RAW_SIZE; // samples per sensor
+    static final String PREFERENCE_BROADCAST_SAMPLES = "broadcastSamples";
+    static final boolean DEFAULT_BROADCAST_SAMPLES = false;
+    // When adaptive, sampleFrequency is the minimum interval
+    static final String PREFERENCE_ADAPTIVE = "adaptiveSampling";
+    static final boolean DEFAULT_ADAPTIVE = false;
+    static final String PREFERENCE_DEADBAND = "deadband";
+    static final float DEFAULT_DEADBAND = 0.1f; // degrees
+    static final String PREFERENCE_MAX_INTERVAL = "maxInterval";
+    static final int DEFAULT_MAX_INTERVAL = 600; // seconds
+    static final String PREFERENCE_RESOLUTION = "resolution";
+    static final int DEFAULT_RESOLUTION = BusScheduler.MAX_RESOLUTION; // bits
+    // When monitoring alarms, sampleFrequency is the interval between alarm searches, and
+    // maxInterval the heartbeat for sensors that haven't alarmed
+    static final String PREFERENCE_ALARM_MONITORING = "alarmMonitoring";
+    static final boolean DEFAULT_ALARM_MONITORING = false;
+    static final String PREFERENCE_ALARM_MARGIN = "alarmMargin";
+    static final int DEFAULT_ALARM_MARGIN = 1; // degrees
+    // Try to run each bus at overdrive speed, falling back to standard if it misbehaves
+    static final String PREFERENCE_OVERDRIVE = "overdrive";
+    static final boolean DEFAULT_OVERDRIVE = false;
+    static final String PREFERENCE_COMMIT_WINDOW = "commitWindow";
+    static final int DEFAULT_COMMIT_WINDOW = (int) SampleWriter.DEFAULT_COMMIT_WINDOW; // ms
+    // One of the SampleWriter.Durability names
+    static final String PREFERENCE_DURABILITY = "durability";
+    static final SampleWriter.Durability DEFAULT_DURABILITY = SampleWriter.Durability.SYNC_PERIODIC;
+    static final String PREFERENCE_SYNC_INTERVAL = "syncInterval";
+    static final int DEFAULT_SYNC_INTERVAL = (int) (SampleWriter.DEFAULT_SYNC_INTERVAL / 1000); // seconds
+    static final String PREFERENCE_HTTP_SERVER = "httpServer";
+    static final boolean DEFAULT_HTTP_SERVER = false;
+    static final String PREFERENCE_HTTP_ADDRESS = "httpAddress";
+    static final String DEFAULT_HTTP_ADDRESS = SampleServer.DEFAULT_ADDRESS;
+    static final String PREFERENCE_HTTP_PORT = "httpPort";
+    static final int DEFAULT_HTTP_PORT = SampleServer.DEFAULT_PORT;
+    static final String PREFERENCE_SENSOR_OVERRIDES = "sensorOverrides";
+
+    // Limits, in the units the preferences use
+    private static final int MAX_SAMPLE_FREQUENCY = 24 * 60 * 60; // seconds
+    private static final int MAX_SAMPLE_LIFE = 10 * 365 * 24 * 60 * 60; // seconds
+    private static final int MAX_ARCHIVE_LIFE = 100 * 366; // days
+    private static final int MIN_HISTORY_SIZE = 16;
+    private static final int MAX_HISTORY_SIZE = 1 << 16;
+    private static final int MAX_ALARM_MARGIN = 50; // degrees
+    private static final int MAX_COMMIT_WINDOW = 60 * 1000; // ms
+    private static final int MAX_SYNC_INTERVAL = 60 * 60; // seconds
+
+    /**
+     * Settings for one sensor that differ from the defaults. Anything not overridden is -1.
+     */
+    private static class SensorOverride {
+        long interval = -1; // ms
+        int resolution = -1; // bits
+        long retention = -1; // ms
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SensorOverride))
+                return false;
+            SensorOverride so = (SensorOverride) o;
+            return interval == so.interval && resolution == so.resolution && retention == so.retention;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (interval * 31 + resolution) * 31 + (int) retention;
+        }
+    }
+
+    private final long mInterval; // ms
+    private final long mTick; // ms
+    private final long mRetention; // ms
+    private final long mArchiveLife; // ms, 0 for forever
+    private final String mSampleFile;
+    private final int mHistorySize;
+    private final boolean mBroadcast;
+    private final boolean mAdaptive;
+    private final float mDeadband;
+    private final long mMaxInterval; // ms
+    private final int mResolution;
+    private final int mMaxResolution;
+    private final int mAlarmMargin;
+    private final boolean mOverdrive;
+    private final long mCommitWindow; // ms
+    private final SampleWriter.Durability mDurability;
+    private final long mSyncInterval; // ms
+    private final boolean mHttpServer;
+    private final String mHttpAddress;
+    private final int mHttpPort;
+    private final Map<Long, SensorOverride> mOverrides;
+    private final List<String> mErrors;
+
+    /**
+     * Build a snapshot from the preferences
+     *
+     * @param prefs as from SharedPreferences.getAll()
+     */
+    SamplingConfig(Map<String, ?> prefs) {
+        List<String> errors = new ArrayList<>();
+        mInterval = getInt(prefs, PREFERENCE_SAMPLE_FREQUENCY, DEFAULT_SAMPLE_FREQUENCY, 1, MAX_SAMPLE_FREQUENCY, errors) * 1000L;
+        mRetention = getInt(prefs, PREFERENCE_SAMPLE_LIFE, DEFAULT_SAMPLE_LIFE, 1, MAX_SAMPLE_LIFE, errors) * 1000L;
+        mArchiveLife = getInt(prefs, PREFERENCE_ARCHIVE_LIFE, DEFAULT_ARCHIVE_LIFE, 0, MAX_ARCHIVE_LIFE, errors) * SampleHistory.DAY;
+        String file = getString(prefs, PREFERENCE_SAMPLE_FILE, null);
+        mSampleFile = file == null || file.trim().isEmpty() ? null : file.trim();
+        mHistorySize = getInt(prefs, PREFERENCE_HISTORY_SIZE, DEFAULT_HISTORY_SIZE, MIN_HISTORY_SIZE, MAX_HISTORY_SIZE, errors);
+        mBroadcast = getBoolean(prefs, PREFERENCE_BROADCAST_SAMPLES, DEFAULT_BROADCAST_SAMPLES);
+        mAdaptive = getBoolean(prefs, PREFERENCE_ADAPTIVE, DEFAULT_ADAPTIVE);
+        mDeadband = getFloat(prefs, PREFERENCE_DEADBAND, DEFAULT_DEADBAND, 0, 100, errors);
+        // The heartbeat can't be faster than the sampling
+        mMaxInterval = Math.max(mInterval,
+                getInt(prefs, PREFERENCE_MAX_INTERVAL, DEFAULT_MAX_INTERVAL, 1, MAX_SAMPLE_FREQUENCY, errors) * 1000L);
+        mResolution = getInt(prefs, PREFERENCE_RESOLUTION, DEFAULT_RESOLUTION,
+                BusScheduler.MIN_RESOLUTION, BusScheduler.MAX_RESOLUTION, errors);
+        mAlarmMargin = getBoolean(prefs, PREFERENCE_ALARM_MONITORING, DEFAULT_ALARM_MONITORING)
+                ? getInt(prefs, PREFERENCE_ALARM_MARGIN, DEFAULT_ALARM_MARGIN, 1, MAX_ALARM_MARGIN, errors)
+                : 0;
+        mOverdrive = getBoolean(prefs, PREFERENCE_OVERDRIVE, DEFAULT_OVERDRIVE);
+        mCommitWindow = getInt(prefs, PREFERENCE_COMMIT_WINDOW, DEFAULT_COMMIT_WINDOW, 0, MAX_COMMIT_WINDOW, errors);
+        SampleWriter.Durability durability = DEFAULT_DURABILITY;
+        String d = getString(prefs, PREFERENCE_DURABILITY, null);
+        if (d != null) {
+            try {
+                durability = SampleWriter.Durability.valueOf(d);
+            } catch (IllegalArgumentException iae) {
+                errors.add(PREFERENCE_DURABILITY + ": unknown " + d);
+            }
+        }
+        mDurability = durability;
+        mSyncInterval = getInt(prefs, PREFERENCE_SYNC_INTERVAL, DEFAULT_SYNC_INTERVAL, 1, MAX_SYNC_INTERVAL, errors) * 1000L;
+        mHttpServer = getBoolean(prefs, PREFERENCE_HTTP_SERVER, DEFAULT_HTTP_SERVER);
+        mHttpAddress = getString(prefs, PREFERENCE_HTTP_ADDRESS, DEFAULT_HTTP_ADDRESS).trim();
+        mHttpPort = getInt(prefs, PREFERENCE_HTTP_PORT, DEFAULT_HTTP_PORT, 1, 65535, errors);
+
+        mOverrides = parseOverrides(getString(prefs, PREFERENCE_SENSOR_OVERRIDES, ""), errors);
+        int maxResolution = mResolution;
+        for (SensorOverride o : mOverrides.values())
+            maxResolution = Math.max(maxResolution, o.resolution);
+        mMaxResolution = maxResolution;
+        // Every configured interval is a whole number of ticks, so none is changed by rounding
+        long tick = mAdaptive ? gcd(mInterval, mMaxInterval) : mInterval;
+        for (SensorOverride o : mOverrides.values()) {
+            if (o.interval > 0)
+                tick = gcd(tick, o.interval);
+        }
+        mTick = tick;
+        mErrors = Collections.unmodifiableList(errors);
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long r = a % b;
+            a = b;
+            b = r;
+        }
+        return a;
+    }
+
+    private static String getString(Map<String, ?> prefs, String key, String dflt) {
+        Object v = prefs.get(key);
+        return v == null ? dflt : v.toString();
+    }
+
+    private static boolean getBoolean(Map<String, ?> prefs, String key, boolean dflt) {
+        Object v = prefs.get(key);
+        if (v instanceof Boolean)
+            return (Boolean) v;
+        return v == null ? dflt : Boolean.parseBoolean(v.toString().trim());
+    }
+
+    private static int getInt(Map<String, ?> prefs, String key, int dflt, int min, int max, List<String> errors) {
+        Object v = prefs.get(key);
+        if (v == null)
+            return dflt;
+        long i;
+        if (v instanceof Number)
+            i = ((Number) v).longValue();
+        else {
+            try {
+                i = Long.parseLong(v.toString().trim());
+            } catch (NumberFormatException nfe) {
+                errors.add(key + ": not a number " + v);
+                return dflt;
+            }
+        }
+        if (i < min || i > max) {
+            errors.add(String.format("%s: %d is not in %d..%d", key, i, min, max));
+            return (int) Math.max(min, Math.min(max, i));
+        }
+        return (int) i;
+    }
+
+    private static float getFloat(Map<String, ?> prefs, String key, float dflt, float min, float max, List<String> errors) {
+        Object v = prefs.get(key);
+        if (v == null)
+            return dflt;
+        float f;
+        if (v instanceof Number)
+            f = ((Number) v).floatValue();
+        else {
+            try {
+                f = Float.parseFloat(v.toString().trim());
+            } catch (NumberFormatException nfe) {
+                errors.add(key + ": not a number " + v);
+                return dflt;
+            }
+        }
+        if (Float.isNaN(f) || f < min || f > max) {
+            errors.add(String.format("%s: %s is not in %s..%s", key, f, min, max));
+            return Float.isNaN(f) ? dflt : Math.max(min, Math.min(max, f));
+        }
+        return f;
+    }
+
+    private static Map<Long, SensorOverride> parseOverrides(String spec, List<String> errors) {
+        Map<Long, SensorOverride> overrides = new HashMap<>();
+        for (String entry : spec.split("[;\n]")) {
+            entry = entry.trim();
+            if (entry.isEmpty())
+                continue;
+            int colon = entry.indexOf(':');
+            if (colon < 0) {
+                errors.add(PREFERENCE_SENSOR_OVERRIDES + ": no ':' in " + entry);
+                continue;
+            }
+            long serno;
+            try {
+                serno = SampleLog.parseSerno(entry.substring(0, colon).trim().toUpperCase());
+            } catch (NumberFormatException nfe) {
+                errors.add(PREFERENCE_SENSOR_OVERRIDES + ": bad serial number in " + entry);
+                continue;
+            }
+            Map<String, String> settings = new HashMap<>();
+            for (String setting : entry.substring(colon + 1).split(",")) {
+                String[] kv = setting.split("=");
+                if (kv.length == 2)
+                    settings.put(kv[0].trim(), kv[1].trim());
+                else if (!setting.trim().isEmpty())
+                    errors.add(PREFERENCE_SENSOR_OVERRIDES + ": bad setting " + setting.trim());
+            }
+            String key = String.format("%s %X", PREFERENCE_SENSOR_OVERRIDES, serno);
+            SensorOverride o = new SensorOverride();
+            if (settings.containsKey("interval"))
+                o.interval = getInt(settings, "interval", DEFAULT_SAMPLE_FREQUENCY, 1, MAX_SAMPLE_FREQUENCY, errors) * 1000L;
+            if (settings.containsKey("resolution"))
+                o.resolution = getInt(settings, "resolution", DEFAULT_RESOLUTION,
+                        BusScheduler.MIN_RESOLUTION, BusScheduler.MAX_RESOLUTION, errors);
+            if (settings.containsKey("retention"))
+                o.retention = getInt(settings, "retention", DEFAULT_SAMPLE_LIFE, 1, MAX_SAMPLE_LIFE, errors) * 1000L;
+            settings.remove("interval");
+            settings.remove("resolution");
+            settings.remove("retention");
+            for (String unknown : settings.keySet())
+                errors.add(key + ": unknown setting " + unknown);
+            overrides.put(serno, o);
+        }
+        return overrides;
+    }
+
+    /**
+     * Get the problems found with the preferences. Each was replaced by a default or clamped.
+     */
+    List<String> getErrors() {
+        return mErrors;
+    }
+
+    /**
+     * Get the interval between samples of a sensor; the fastest rate, if adaptive
+     */
+    long getInterval(long serno) {
+        SensorOverride o = mOverrides.get(serno);
+        return o != null && o.interval >= 0 ? o.interval : mInterval;
+    }
+
+    /**
+     * Get the bus tick: the greatest common divisor of the configured intervals. Ticks are on a
+     * grid of this, and every sensor's interval is a whole number of them. The bus is only
+     * woken in a tick when a sensor is due, so a short tick costs nothing.
+     */
+    long getTick() {
+        return mTick;
+    }
+
+    /**
+     * Get the interval between conversions and alarm searches, when monitoring alarms
+     */
+    long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * Get the heartbeat; the longest a sensor goes without a reading being stored
+     */
+    long getMaxInterval() {
+        return mMaxInterval;
+    }
+
+    /**
+     * Get the resolution a DS18B20 is configured to
+     */
+    int getResolution(long serno) {
+        SensorOverride o = mOverrides.get(serno);
+        return o != null && o.resolution >= 0 ? o.resolution : mResolution;
+    }
+
+    /**
+     * Get the highest resolution of any sensor, which sets the conversion time for the bus
+     */
+    int getMaxResolution() {
+        return mMaxResolution;
+    }
+
+    /**
+     * Get the ms to keep samples from a sensor uncompressed for, before they are archived
+     */
+    @Override
+    public long getRetention(long serno) {
+        SensorOverride o = mOverrides.get(serno);
+        return o != null && o.retention >= 0 ? o.retention : mRetention;
+    }
+
+    /**
+     * Get the ms to keep archived samples for, or 0 to keep them forever
+     */
+    long getArchiveLife() {
+        return mArchiveLife;
+    }
+
+    /**
+     * Get the alarm band margin, in whole degrees, or 0 if alarm monitoring is off
+     */
+    int getAlarmMargin() {
+        return mAlarmMargin;
+    }
+
+    boolean isOverdrive() {
+        return mOverdrive;
+    }
+
+    /**
+     * Get the sample file preference, or null if the default is to be used
+     */
+    String getSampleFile() {
+        return mSampleFile;
+    }
+
+    int getHistorySize() {
+        return mHistorySize;
+    }
+
+    boolean isBroadcast() {
+        return mBroadcast;
+    }
+
+    long getCommitWindow() {
+        return mCommitWindow;
+    }
+
+    SampleWriter.Durability getDurability() {
+        return mDurability;
+    }
+
+    long getSyncInterval() {
+        return mSyncInterval;
+    }
+
+    boolean isHttpServer() {
+        return mHttpServer;
+    }
+
+    String getHttpAddress() {
+        return mHttpAddress;
+    }
+
+    int getHttpPort() {
+        return mHttpPort;
+    }
+
+    /**
+     * Create the sampler that decides when a sensor is read, and which readings are stored
+     */
+    AdaptiveSampler createSampler(long serno) {
+        long interval = getInterval(serno);
+        if (!mAdaptive)
+            return AdaptiveSampler.fixed(interval, mTick);
+        return new AdaptiveSampler(mDeadband, interval, Math.max(interval, mMaxInterval), mTick);
+    }
+
+    /**
+     * Two snapshots are equal if every setting is the same, however the preferences were
+     * written. Problems found in the preferences aren't compared.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof SamplingConfig))
+            return false;
+        SamplingConfig c = (SamplingConfig) o;
+        return mInterval == c.mInterval
+                && mTick == c.mTick
+                && mRetention == c.mRetention
+                && mArchiveLife == c.mArchiveLife
+                && (mSampleFile == null ? c.mSampleFile == null : mSampleFile.equals(c.mSampleFile))
+                && mHistorySize == c.mHistorySize
+                && mBroadcast == c.mBroadcast
+                && mAdaptive == c.mAdaptive
+                && mDeadband == c.mDeadband
+                && mMaxInterval == c.mMaxInterval
+                && mResolution == c.mResolution
+                && mAlarmMargin == c.mAlarmMargin
+                && mOverdrive == c.mOverdrive
+                && mCommitWindow == c.mCommitWindow
+                && mDurability == c.mDurability
+                && mSyncInterval == c.mSyncInterval
+                && mHttpServer == c.mHttpServer
+                && mHttpAddress.equals(c.mHttpAddress)
+                && mHttpPort == c.mHttpPort
+                && mOverrides.equals(c.mOverrides);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = (int) (mInterval ^ (mInterval >>> 32));
+        h = h * 31 + (int) (mRetention ^ (mRetention >>> 32));
+        h = h * 31 + mHistorySize;
+        h = h * 31 + mResolution;
+        h = h * 31 + mAlarmMargin;
+        h = h * 31 + mHttpPort;
+        return h * 31 + mOverrides.hashCode();
+    }
+
+    /**
+     * Check whether a sensor would get the same sampler from another snapshot, so a sampler
+     * created from that one can be kept
+     */
+    boolean sameSampling(SamplingConfig other, long serno) {
+        return mAdaptive == other.mAdaptive
+                && mTick == other.mTick
+                && getInterval(serno) == other.getInterval(serno)
+                && (!mAdaptive || mDeadband == other.mDeadband && mMaxInterval == other.mMaxInterval);
+    }
+}
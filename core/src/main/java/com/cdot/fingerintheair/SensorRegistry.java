@@ -0,0 +1,86 @@
+package com.cdot.fingerintheair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe registry of the sensors currently being sampled, keyed by the bus they are on
+ * and their ROM id. Updated by the bus schedulers from their own threads, and read from
+ * anywhere.
+ */
+class SensorRegistry {
+
+    static final class Key {
+        final String bus;
+        final long rom;
+
+        Key(String bus, long rom) {
+            this.bus = bus;
+            this.rom = rom;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return rom == k.rom && bus.equals(k.bus);
+        }
+
+        @Override
+        public int hashCode() {
+            return bus.hashCode() * 31 + (int) (rom ^ (rom >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s/%X", bus, rom);
+        }
+    }
+
+    // Map from sensor to the scheduler sampling it
+    private final ConcurrentHashMap<Key, BusScheduler> mSensors = new ConcurrentHashMap<>();
+
+    void add(BusScheduler bus, long rom) {
+        mSensors.put(new Key(bus.getPort(), rom), bus);
+    }
+
+    void remove(String bus, long rom) {
+        mSensors.remove(new Key(bus, rom));
+    }
+
+    /**
+     * Remove all the sensors on a bus
+     *
+     * @return the ROM ids of the sensors removed
+     */
+    List<Long> removeBus(String bus) {
+        List<Long> removed = new ArrayList<>();
+        for (Key k : mSensors.keySet()) {
+            if (k.bus.equals(bus) && mSensors.remove(k) != null)
+                removed.add(k.rom);
+        }
+        return removed;
+    }
+
+    /**
+     * Get the scheduler sampling a sensor
+     *
+     * @return the scheduler, or null if the sensor isn't being sampled
+     */
+    BusScheduler get(String bus, long rom) {
+        return mSensors.get(new Key(bus, rom));
+    }
+
+    /**
+     * Get a snapshot of all the sensors being sampled
+     */
+    List<Key> getAll() {
+        return new ArrayList<>(mSensors.keySet());
+    }
+
+    int size() {
+        return mSensors.size();
+    }
+}
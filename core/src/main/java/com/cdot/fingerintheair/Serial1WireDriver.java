@@ -0,0 +1,309 @@
+package com.cdot.fingerintheair;
+
+import com.cdot.onewire.OneWireError;
+import com.cdot.onewire.OneWireDriver;
+
+/**
+ * 1-wire serial port interface. On Android the port is a UsbSerialPort, using the UsbSerial
+ * android usb serial port library; off-device it can be any other SerialPort.
+ *
+ * The driver allocates nothing once constructed; all transfers go through per-driver buffers.
+ * As a consequence it is not thread safe, and must only be used by one thread at a time.
+ *
+ * Resets, byte and block transfers are timed, and failures counted, in the driver's BusMetrics.
+ *
+ * The driver can run the bus at standard or overdrive speed. Switching the driver to overdrive
+ * only changes the UART timings; the devices have to be put into overdrive with an Overdrive
+ * Skip or Match ROM at standard speed first, and a reset at standard speed takes them all back
+ * out of it.
+ *
+ * The OneWireDriver interface has no way to report a failed bit or byte transfer, so when the
+ * UART stops echoing the driver throws a TimeoutError, after draining any late echoes so the
+ * next transfer starts in step.
+ */
+class Serial1WireDriver extends OneWireDriver {
+
+    // Baud rates used to generate reset pulses and bit slots
+    static final int RESET_BAUD = 9600;
+    static final int SLOT_BAUD = 115200;
+
+    // At overdrive speed the reset pulse is 48-80us. 0xE0 at 115200 holds the line low for the
+    // start bit and 5 data bits, 52us, and the presence pulse pulls down the 3 high bits.
+    // A bit slot is 1 frame at 921600, about 11us: the start bit alone is a 1us write 1 or
+    // read slot, and 9 low bits a 10us write 0.
+    static final int OVERDRIVE_RESET_BAUD = 115200;
+    static final int OVERDRIVE_SLOT_BAUD = 921600;
+
+    // Time to wait for late echoes after a timeout
+    private static final int DRAIN_TIMEOUT = 50; // ms
+
+    // Bytes sent to generate a reset pulse, and echoed if nothing answers
+    private static final byte RESET_PULSE = (byte) 0xF0;
+    private static final byte OVERDRIVE_RESET_PULSE = (byte) 0xE0;
+
+    private SerialPort serialPort;
+
+    // Set once data bits, stop bits, parity and flow control have been configured
+    private boolean mLineConfigured = false;
+    // Current baud rate, 0 if unknown
+    private int mBaudRate = 0;
+    // True if resets and slots use overdrive timings
+    private boolean mOverdrive = false;
+
+    // Reusable transfer buffers
+    private final byte[] mOne = new byte[1];
+    private final byte[] mSlots = new byte[OneWireDriver.UART_FIFO_SIZE * 8];
+
+    private final BusMetrics mMetrics;
+
+    /**
+     * The UART didn't echo a transfer in time
+     */
+    static class TimeoutError extends Error {
+        private static final long serialVersionUID = 1L;
+
+        TimeoutError(String message) {
+            super(message);
+        }
+    }
+
+    Serial1WireDriver(SerialPort port) {
+        this(port, new BusMetrics());
+    }
+
+    /**
+     * @param metrics where to record timings and failures
+     */
+    Serial1WireDriver(SerialPort port, BusMetrics metrics) {
+        serialPort = port;
+        mMetrics = metrics;
+    }
+
+    BusMetrics getMetrics() {
+        return mMetrics;
+    }
+
+     public boolean isUsingPort(String port) {
+        return serialPort.getPortName() == port;
+     }
+
+    /**
+     * Release the serial port. The driver can't be used again.
+     */
+    public void close() {
+        serialPort.close();
+    }
+
+    /**
+     * Switch between overdrive and standard timings, from the next reset. The devices on the
+     * bus must be switched to match.
+     */
+    void setOverdrive(boolean overdrive) {
+        mOverdrive = overdrive;
+    }
+
+    boolean isOverdrive() {
+        return mOverdrive;
+    }
+
+    /**
+     * Switch the UART to the given baud rate, unless it's there already. The first call
+     * also configures the rest of the line.
+     */
+    private void setBaudRate(int baud) {
+        if (!mLineConfigured) {
+            serialPort.configureLine();
+            mLineConfigured = true;
+        }
+        if (baud != mBaudRate) {
+            serialPort.setBaudRate(baud);
+            mBaudRate = baud;
+        }
+    }
+
+     public OneWireError reset() {
+        long started = System.nanoTime();
+        OneWireError err = resetBus();
+        mMetrics.record(BusMetrics.Timer.RESET, started);
+        if (err == OneWireError.RESET_FAILED)
+            mMetrics.count(BusMetrics.Counter.RESET_FAILED);
+        else if (err == OneWireError.NO_DEVICES_ON_NET)
+            mMetrics.count(BusMetrics.Counter.NO_DEVICES_ON_NET);
+        return err;
+    }
+
+    private OneWireError resetBus() {
+        //logger.log("touchReset");
+        setBaudRate(mOverdrive ? OVERDRIVE_RESET_BAUD : RESET_BAUD);
+
+        // Send the registration pulse, 480us at standard speed
+        byte pulse = mOverdrive ? OVERDRIVE_RESET_PULSE : RESET_PULSE;
+        mOne[0] = pulse;
+        serialPort.write(mOne, 0, 1, 0);
+
+        // Look for presence pulse
+        int nRead = serialPort.read(mOne, 0, 1, 0);
+        if (nRead != 1) {
+            //logger.log("reset failed, nRead " + nRead);
+            return OneWireError.RESET_FAILED;
+        }
+
+        int result = mOne[0] & 0xFF;
+
+        if (result == 0) {
+            // Data line is a short to ground
+            //logger.log("reset failed, short to ground");
+            return OneWireError.RESET_FAILED;
+        }
+
+        if (result == (pulse & 0xFF)) {
+            // No device responding
+            //logger.log("reset failed, nothing on net ");
+            return OneWireError.NO_DEVICES_ON_NET;
+        }
+
+        setBaudRate(mOverdrive ? OVERDRIVE_SLOT_BAUD : SLOT_BAUD);
+
+        //logger.log(String.format("/touchReset got %02X", (byte)result));
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    public boolean touchBit(boolean sbit) {
+        mOne[0] = (byte) (sbit ? 0xFF : 0);
+        serialPort.write(mOne, 0, 1, 0);
+        //logger.log("touchBit: wrote "+buf.length);
+
+        int nRead = serialPort.read(mOne, 0, 1, 0);
+        if (nRead != 1) {
+            //logger.log("touchBit problem: read "+nRead);
+            mMetrics.count(BusMetrics.Counter.TIMEOUT);
+            drain();
+            throw new TimeoutError("touchBit problem: read " + nRead);
+        }
+        //System.out.println("/TouchBit: send: " + hex(tx[0]) + ", receive: " + hex(buffer[0]));
+        return ((mOne[0] & 1) != 0);
+    }
+
+    /**
+     * Throw away any echoes that arrive late
+     */
+    private void drain() {
+        while (serialPort.read(mSlots, 0, mSlots.length, DRAIN_TIMEOUT) > 0)
+            ;
+    }
+
+    /**
+     * Send a sequence of bit-slot bytes and replace each one with the echo that comes back.
+     * The slots are sent in as few writes as possible, each no bigger than the UART FIFO,
+     * and the echoes are read back in bulk.
+     *
+     * @param slots bit-slot bytes to send, overwritten with the echoes
+     * @param len   number of slots
+     */
+    private void transferSlots(byte[] slots, int len) {
+        int sent = 0;
+        while (sent < len) {
+            int chunk = Math.min(len - sent, OneWireDriver.UART_FIFO_SIZE);
+            serialPort.write(slots, sent, chunk, 0);
+
+            int got = 0;
+            while (got < chunk) {
+                int nr = serialPort.read(slots, sent + got, chunk - got, 500);
+                if (nr <= 0) {
+                    mMetrics.count(BusMetrics.Counter.TIMEOUT);
+                    drain();
+                    throw new TimeoutError("transferSlots problem: timeout");
+                }
+                got += nr;
+            }
+            sent += chunk;
+        }
+    }
+
+    /**
+     * Transfers a block of data to and from the 1-Wire Net
+     *
+     * @param tx pointer to a block of bytes that will be sent
+     * @return the response, always the same length as tx (or
+     * null if there was an error)
+     */
+    public byte[] touchBlock(byte[] tx) {
+        byte[] rx = new byte[tx.length];
+        return touchBlock(tx, tx.length, rx) ? rx : null;
+    }
+
+    /**
+     * Transfers a block of data to and from the 1-Wire Net, without allocating. The whole
+     * block is expanded into bit slots and pipelined to the UART, rather than being sent a
+     * byte at a time.
+     *
+     * @param tx  block of bytes that will be sent
+     * @param len number of bytes from tx to send
+     * @param rx  buffer to receive the response, at least len bytes. May be the same as tx.
+     * @return false if there was an error
+     */
+    public boolean touchBlock(byte[] tx, int len, byte[] rx) {
+
+        if (len > OneWireDriver.UART_FIFO_SIZE) {
+            last_error = OneWireError.BLOCK_TOO_BIG;
+            return false;
+        }
+
+        // Construct string of bytes representing bits to be sent
+        int nSlots = len * 8;
+        for (int i = 0; i < nSlots; i++) {
+            // Bits are taken from the [0] byte first
+            // Bits are taken from each byte lsb first
+            mSlots[i] = (byte) ((tx[i >> 3] & (1 << (i & 0x7))) != 0 ? 0xFF : 0x00);
+        }
+
+        long started = System.nanoTime();
+        transferSlots(mSlots, nSlots);
+        mMetrics.record(BusMetrics.Timer.TOUCH_BLOCK, started);
+
+        for (int i = 0; i < len; i++)
+            rx[i] = decodeSlots(i * 8);
+        return true;
+    }
+
+    public byte touchByte(byte txbyte) {
+        // Construct string of bytes representing bits to be sent
+        for (int i = 0; i < 8; i++) {
+            // Bits are taken from each byte lsb first
+            mSlots[i] = (byte) ((txbyte & (1 << i)) != 0 ? 0xFF : 0x00);
+        }
+
+        //logger.log(String.format("touchByte: wrote %02X", txbyte));
+
+        long started = System.nanoTime();
+        transferSlots(mSlots, 8);
+        mMetrics.record(BusMetrics.Timer.TOUCH_BYTE, started);
+
+        //logger.log(String.format("touchByte: result = %02X", rxbyte));
+        return decodeSlots(0);
+    }
+
+    /**
+     * Decode a byte from the 8 echoed slots starting at mSlots[first], lsb first
+     */
+    private byte decodeSlots(int first) {
+        int rxbyte = 0;
+        for (int i = 0; i < 8; i++) {
+            if ((mSlots[first + i] & 0x01) != 0)
+                rxbyte |= 1 << i;
+        }
+        return (byte) rxbyte;
+    }
+
+    /**
+     * Delay for at least 'len' ms
+     */
+    public void msDelay(int len) {
+        try {
+            Thread.sleep(len, 0);
+        } catch (InterruptedException ie) {
+            // Let the caller see it
+            Thread.currentThread().interrupt();
+        }
+    }
+}
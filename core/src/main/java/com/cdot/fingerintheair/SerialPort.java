@@ -0,0 +1,36 @@
+package com.cdot.fingerintheair;
+
+/**
+ * The few serial port operations the 1-wire driver needs. The port is always used with 8 data
+ * bits, 1 stop bit, no parity and no flow control; only the baud rate changes.
+ */
+interface SerialPort {
+
+    /**
+     * Set 8 data bits, 1 stop bit, no parity, no flow control
+     */
+    void configureLine();
+
+    void setBaudRate(int baud);
+
+    /**
+     * @param timeout in ms, 0 to wait forever
+     * @return number of bytes written
+     */
+    int write(byte[] buffer, int offset, int length, int timeout);
+
+    /**
+     * Read whatever is available, up to length bytes
+     *
+     * @param timeout in ms, 0 to wait forever
+     * @return number of bytes read, 0 on timeout
+     */
+    int read(byte[] buffer, int offset, int length, int timeout);
+
+    String getPortName();
+
+    /**
+     * Release the port. It can't be used again.
+     */
+    void close();
+}
@@ -0,0 +1,118 @@
+package com.cdot.fingerintheair;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveSamplerTest {
+
+    private static final long TICK = 1000;
+    private static final long MIN = 1000, MAX = 8000;
+
+    private static AdaptiveSampler sampler() {
+        return new AdaptiveSampler(0.5, MIN, MAX, TICK);
+    }
+
+    @Test
+    public void storesOnlyReadingsOutsideTheDeadband() {
+        AdaptiveSampler s = sampler();
+        assertTrue(s.accept(0, 10, 20.0));
+        assertFalse(s.accept(1000, 1010, 20.4));
+        assertFalse(s.accept(2000, 2010, 19.6));
+        assertEquals(2010, s.getHeartbeat());
+        assertEquals(19.6, s.getLastValue(), 0);
+        // Measured from the last stored value, not the last reading
+        assertTrue(s.accept(3000, 3010, 20.6));
+        assertFalse(s.accept(4000, 4010, 20.2));
+        assertTrue(s.accept(5000, 5010, 20.0));
+    }
+
+    @Test
+    public void backsOffWhenStableAndRampsUpOnChange() {
+        AdaptiveSampler s = sampler();
+        long tick = 0;
+        s.accept(tick, tick, 20);
+        assertEquals(MIN, s.getInterval());
+        long last = s.getInterval();
+        for (int i = 0; i < 10; i++) {
+            tick = s.getNextDue();
+            s.accept(tick, tick, 20);
+            assertTrue(s.getInterval() >= last);
+            assertEquals(0, s.getInterval() % TICK);
+            assertTrue(s.getNextDue() > tick && s.getNextDue() <= tick + s.getInterval());
+            last = s.getInterval();
+        }
+        assertEquals(MAX, s.getInterval());
+
+        double value = 20;
+        for (int i = 0; i < 10; i++) {
+            tick = s.getNextDue();
+            value += 1;
+            assertTrue(s.accept(tick, tick, value));
+            assertTrue(s.getInterval() <= last);
+            last = s.getInterval();
+        }
+        assertEquals(MIN, s.getInterval());
+    }
+
+    @Test
+    public void storesAStableSensorOncePerMaxInterval() {
+        AdaptiveSampler s = sampler();
+        long stored = -1;
+        int n = 0;
+        for (long tick = 0; tick < 100 * MAX; tick = s.getNextDue()) {
+            if (s.accept(tick, tick + 5, 20)) {
+                if (stored >= 0)
+                    assertEquals(MAX, tick - stored);
+                stored = tick;
+                n++;
+            }
+        }
+        assertEquals(100, n);
+    }
+
+    @Test
+    public void backsOffFailuresUpToTheLimit() {
+        AdaptiveSampler s = AdaptiveSampler.fixed(MIN, TICK);
+        long backoff = MIN;
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i, s.getFailures());
+            long next = s.failed(0);
+            assertEquals(Math.min(backoff, AdaptiveSampler.MAX_BACKOFF), next);
+            assertEquals(next, s.getNextDue());
+            backoff *= 2;
+        }
+        assertTrue(s.accept(50000, 50000, 20));
+        assertEquals(0, s.getFailures());
+        assertEquals(50000 + MIN, s.getNextDue());
+        assertEquals(MIN, s.failed(51000));
+    }
+
+    @Test
+    public void keepsEveryConfiguredIntervalExact() {
+        Map<String, Object> prefs = new HashMap<>();
+        prefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "20");
+        prefs.put(SamplingConfig.PREFERENCE_ADAPTIVE, true);
+        prefs.put(SamplingConfig.PREFERENCE_MAX_INTERVAL, "300");
+        prefs.put(SamplingConfig.PREFERENCE_SENSOR_OVERRIDES, "28: interval=7");
+        SamplingConfig config = new SamplingConfig(prefs);
+        assertEquals(1000, config.getTick());
+
+        AdaptiveSampler other = config.createSampler(0x128L);
+        other.accept(0, 0, 20);
+        assertEquals(20000, other.getInterval());
+        AdaptiveSampler fast = config.createSampler(0x28L);
+        fast.accept(0, 0, 20);
+        assertEquals(7000, fast.getInterval());
+
+        // A stable sensor settles at exactly the maximum
+        for (int i = 0; i < 20; i++)
+            other.accept(other.getNextDue(), 0, 20);
+        assertEquals(300000, other.getInterval());
+    }
+}
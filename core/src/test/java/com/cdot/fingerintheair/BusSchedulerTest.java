@@ -0,0 +1,284 @@
+package com.cdot.fingerintheair;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BusSchedulerTest {
+
+    private final Map<String, Object> mPrefs = new HashMap<>();
+    private BusScheduler mScheduler;
+
+    private BusScheduler start(SimulatedSerialPort port, RecordingListener listener, long... known)
+            throws InterruptedException {
+        mScheduler = new BusScheduler(new Serial1WireDriver(port), "sim", listener, new SamplingConfig(mPrefs));
+        for (long serno : known)
+            mScheduler.addKnownSensor(serno);
+        mScheduler.start();
+        assertTrue(mScheduler.awaitSampling(5000));
+        return mScheduler;
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (mScheduler != null) {
+            mScheduler.interrupt();
+            mScheduler.join(5000);
+        }
+    }
+
+    @Test
+    public void searchesAndSamplesEverySensor() throws InterruptedException {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "1");
+        SimulatedSerialPort port = new SimulatedSerialPort(6, 0, 1);
+        RecordingListener listener = new RecordingListener();
+        start(port, listener);
+
+        assertEquals(BusStage.SEARCHING, listener.stages.get(0));
+        assertEquals(6, listener.searches.get(0).size());
+        assertTrue(listener.awaitSensors(6, 5000));
+        Map<Long, Double> latest = listener.latest();
+        for (SimulatedSerialPort.Device d : port.getDevices())
+            assertEquals(d.temperature, latest.get(d.rom), 0);
+    }
+
+    @Test
+    public void verifiesKnownSensorsWithoutSearching() throws InterruptedException {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "1");
+        SimulatedSerialPort port = new SimulatedSerialPort(3, 0, 2);
+        RecordingListener listener = new RecordingListener();
+        long[] known = new long[3];
+        for (int i = 0; i < known.length; i++)
+            known[i] = port.getDevices().get(i).rom;
+        start(port, listener, known);
+
+        assertEquals(BusStage.VERIFYING, listener.stages.get(0));
+        assertEquals(BusStage.SAMPLING, listener.stages.get(1));
+        assertEquals(3, listener.added.size());
+        assertTrue(listener.awaitSensors(3, 5000));
+    }
+
+    @Test
+    public void searchesWhenAKnownSensorIsMissing() throws InterruptedException {
+        SimulatedSerialPort port = new SimulatedSerialPort(2, 0, 3);
+        RecordingListener listener = new RecordingListener();
+        start(port, listener, port.getDevices().get(0).rom, 0x1234567890ABCD28L);
+
+        assertTrue(listener.stages.contains(BusStage.SEARCHING));
+        assertEquals(2, listener.searches.get(0).size());
+        assertFalse(mScheduler.getSensors().contains(0x1234567890ABCD28L));
+    }
+
+    @Test
+    public void reportsSensorsLostWhenStopped() throws InterruptedException {
+        SimulatedSerialPort port = new SimulatedSerialPort(4, 0, 4);
+        RecordingListener listener = new RecordingListener();
+        start(port, listener);
+        mScheduler.interrupt();
+        mScheduler.join(5000);
+        assertFalse(mScheduler.isAlive());
+        assertEquals(4, listener.lost.size());
+    }
+
+    @Test
+    public void configuresResolution() throws InterruptedException {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "1");
+        mPrefs.put(SamplingConfig.PREFERENCE_RESOLUTION, "10");
+        SimulatedSerialPort port = new SimulatedSerialPort(3, 0, 5);
+        RecordingListener listener = new RecordingListener();
+        start(port, listener);
+        assertTrue(listener.awaitSensors(3, 5000));
+        for (SimulatedSerialPort.Device d : port.getDevices())
+            assertEquals(0x3F, d.config & 0xFF);
+    }
+
+    @Test
+    public void waitsOutConversionsWhenParasitePowered() throws InterruptedException {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "1");
+        mPrefs.put(SamplingConfig.PREFERENCE_RESOLUTION, "9");
+        SimulatedSerialPort port = new SimulatedSerialPort(3, 0, 8);
+        // They read as done straight away, but aren't for 94ms
+        for (SimulatedSerialPort.Device d : port.getDevices()) {
+            d.conversionTime = 750000000L;
+            d.parasite = true;
+        }
+        RecordingListener listener = new RecordingListener();
+        start(port, listener);
+        assertTrue(listener.awaitSensors(3, 5000));
+
+        // Not the power-on 85C, to within the 0.5C of 9 bits
+        Map<Long, Double> latest = listener.latest();
+        for (SimulatedSerialPort.Device d : port.getDevices())
+            assertEquals(d.temperature, latest.get(d.rom), 0.5);
+        assertTrue(mScheduler.getDriver().getMetrics().get(BusMetrics.Timer.CONVERSION).getMax() >= 93000000L);
+    }
+
+    @Test
+    public void rereadsAFirstPowerOnValue() throws InterruptedException {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "1");
+        SimulatedSerialPort port = new SimulatedSerialPort(3, 0, 9);
+        SimulatedSerialPort.Device browned = port.getDevices().get(0);
+        browned.brownout = true;
+        // Really at the power-on value
+        SimulatedSerialPort.Device hot = port.getDevices().get(1);
+        hot.temperature = BusScheduler.POWER_ON_TEMPERATURE;
+        RecordingListener listener = new RecordingListener();
+        start(port, listener);
+        assertTrue(listener.awaitSensors(3, 5000));
+
+        assertEquals(Collections.singletonList(browned.temperature), listener.samples(browned.rom));
+        assertEquals(Collections.singletonList(hot.temperature), listener.samples(hot.rom));
+        assertEquals(2, mScheduler.getDriver().getMetrics().get(BusMetrics.Counter.IMPLAUSIBLE));
+    }
+
+    @Test
+    public void runsInOverdriveWhenEveryDeviceCan() throws InterruptedException {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "1");
+        mPrefs.put(SamplingConfig.PREFERENCE_OVERDRIVE, true);
+        SimulatedSerialPort port = new SimulatedSerialPort(4, 0, 10);
+        for (SimulatedSerialPort.Device d : port.getDevices())
+            d.overdriveCapable = true;
+        RecordingListener listener = new RecordingListener();
+        start(port, listener);
+        assertTrue(listener.awaitSensors(4, 5000));
+
+        assertTrue(mScheduler.getDriver().isOverdrive());
+        for (SimulatedSerialPort.Device d : port.getDevices())
+            assertTrue(d.overdrive);
+    }
+
+    @Test
+    public void staysAtStandardSpeedIfADeviceCantDoOverdrive() throws InterruptedException {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "1");
+        mPrefs.put(SamplingConfig.PREFERENCE_OVERDRIVE, true);
+        SimulatedSerialPort port = new SimulatedSerialPort(4, 0, 11);
+        for (int i = 1; i < 4; i++)
+            port.getDevices().get(i).overdriveCapable = true;
+        RecordingListener listener = new RecordingListener();
+        start(port, listener);
+        assertTrue(listener.awaitSensors(4, 5000));
+
+        assertFalse(mScheduler.getDriver().isOverdrive());
+        for (SimulatedSerialPort.Device d : port.getDevices())
+            assertFalse(d.overdrive);
+        assertTrue(listener.hasError("overdrive not supported"));
+    }
+
+    /**
+     * A bus that can be disturbed. The disturbance is as long as a reset pulse at standard
+     * speed, so takes every device out of overdrive, and the echo of the transfer it hits is
+     * lost, as if the UART had stopped responding.
+     */
+    private static class DisturbedPort extends SimulatedSerialPort {
+        volatile boolean disturb = false;
+        private final byte[] mLost = new byte[256];
+
+        DisturbedPort(int nDevices, long seed) {
+            super(nDevices, 0, seed);
+        }
+
+        @Override
+        public int write(byte[] buffer, int offset, int length, int timeout) {
+            // Only byte transfers; a lost reset echo is a failed reset, not a timeout
+            if (!disturb || length < 8)
+                return super.write(buffer, offset, length, timeout);
+            disturb = false;
+            for (Device d : getDevices())
+                d.overdrive = false;
+            int n = super.write(buffer, offset, length, timeout);
+            super.read(mLost, 0, mLost.length, 0);
+            return n;
+        }
+    }
+
+    @Test
+    public void renegotiatesOverdriveAfterATimeout() throws InterruptedException {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "1");
+        mPrefs.put(SamplingConfig.PREFERENCE_OVERDRIVE, true);
+        DisturbedPort port = new DisturbedPort(4, 12);
+        for (SimulatedSerialPort.Device d : port.getDevices())
+            d.overdriveCapable = true;
+        RecordingListener listener = new RecordingListener();
+        start(port, listener);
+        assertTrue(listener.awaitSensors(4, 5000));
+        assertTrue(mScheduler.getDriver().isOverdrive());
+
+        port.disturb = true;
+        Thread.sleep(3500);
+        assertFalse(port.disturb);
+        assertEquals(1, mScheduler.getDriver().getMetrics().get(BusMetrics.Counter.TIMEOUT));
+        // Back in overdrive, and sampling
+        int before;
+        synchronized (listener) {
+            before = listener.batches.size();
+        }
+        Thread.sleep(1500);
+        assertTrue(mScheduler.getDriver().isOverdrive());
+        for (SimulatedSerialPort.Device d : port.getDevices())
+            assertTrue(d.overdrive);
+        assertEquals(4, listener.sampledSince(before).size());
+        assertFalse(listener.hasError("back to standard speed"));
+    }
+
+    @Test
+    public void sensorsDueTogetherShareAConversion() throws InterruptedException {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "1");
+        mPrefs.put(SamplingConfig.PREFERENCE_ADAPTIVE, true);
+        mPrefs.put(SamplingConfig.PREFERENCE_MAX_INTERVAL, "4");
+        mPrefs.put(SamplingConfig.PREFERENCE_RESOLUTION, "9");
+        SimulatedSerialPort port = new SimulatedSerialPort(8, 125, 7);
+        // Half the sensors keep changing, so stay at the fastest rate, while the rest slow down
+        for (int i = 0; i < 4; i++)
+            port.getDevices().get(i).drift = 0.5;
+        mPrefs.put(SamplingConfig.PREFERENCE_SENSOR_OVERRIDES,
+                String.format("%X: interval=3", port.getDevices().get(7).rom));
+        RecordingListener listener = new RecordingListener();
+        long started = System.currentTimeMillis();
+        start(port, listener);
+        Thread.sleep(4500);
+        mScheduler.interrupt();
+        mScheduler.join(5000);
+        long elapsed = System.currentTimeMillis() - started;
+        int conversions = port.getDevices().get(0).conversions;
+
+        // One conversion per tick, however the sensors' intervals have drifted apart
+        assertTrue(conversions + " conversions in " + elapsed + "ms",
+                conversions <= elapsed / 1000 + 2);
+        assertEquals(conversions, listener.batches.size());
+        // The changing sensors were read in every tick
+        for (int i = 0; i < 4; i++)
+            assertEquals(conversions, listener.samples(port.getDevices().get(i).rom).size());
+    }
+
+    @Test
+    public void alarmMonitoringOnlyReadsSensorsThatMoved() throws InterruptedException {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "1");
+        mPrefs.put(SamplingConfig.PREFERENCE_MAX_INTERVAL, "3600");
+        mPrefs.put(SamplingConfig.PREFERENCE_ALARM_MONITORING, true);
+        mPrefs.put(SamplingConfig.PREFERENCE_ALARM_MARGIN, "1");
+        SimulatedSerialPort port = new SimulatedSerialPort(5, 0, 6);
+        RecordingListener listener = new RecordingListener();
+        start(port, listener);
+        assertTrue(listener.awaitSensors(5, 5000));
+
+        SimulatedSerialPort.Device moved = port.getDevices().get(2);
+        int before;
+        synchronized (listener) {
+            before = listener.batches.size();
+        }
+        moved.temperature += 5;
+        Thread.sleep(2500);
+        // Only the sensor that left its band is read again
+        assertEquals(Collections.singleton(moved.rom), listener.sampledSince(before));
+        assertEquals(moved.temperature, listener.latest().get(moved.rom), 0);
+        assertEquals((int) Math.floor(moved.temperature) + 1, moved.th);
+        assertEquals((int) Math.floor(moved.temperature) - 1, moved.tl);
+    }
+}
@@ -0,0 +1,78 @@
+package com.cdot.fingerintheair;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogRingTest {
+
+    @Test
+    public void foldsIdenticalMessages() {
+        LogRing ring = new LogRing(16);
+        for (int i = 0; i < 100; i++)
+            ring.log(LogRing.Level.WARN, "Bus reset failed");
+        LogRing.Entry[] tail = ring.tail(16);
+        assertEquals(1, tail.length);
+        assertEquals(100, tail[0].repeats.get());
+        assertTrue(tail[0].toString(), tail[0].toString().endsWith("Bus reset failed \u00D7100"));
+    }
+
+    @Test
+    public void limitsMessagesFromOneFormat() {
+        LogRing ring = new LogRing(64);
+        for (int i = 0; i < 50; i++)
+            ring.log(LogRing.Level.WARN, "Slow commit: %dms", 100 + i);
+        ring.log(LogRing.Level.WARN, "Sensor %X lost", 0x28L);
+        LogRing.Entry[] tail = ring.tail(64);
+        assertEquals(LogRing.BURST + 1, tail.length);
+        LogRing.Entry last = tail[LogRing.BURST - 1];
+        assertEquals("Slow commit: 104ms", last.message);
+        assertEquals(50 - LogRing.BURST, last.similar.get());
+        assertTrue(last.toString(), last.toString().endsWith(" (+45 similar)"));
+        assertEquals("Sensor 28 lost", tail[LogRing.BURST].message);
+    }
+
+    @Test
+    public void limitsMessagesThatDifferOnlyInNumbers() {
+        LogRing ring = new LogRing(64);
+        for (int i = 0; i < 20; i++)
+            ring.log(LogRing.Level.ERROR, "/dev/ttyUSB" + i + " FAILED: no reply from 28FF4A1B0116031" + i);
+        ring.log(LogRing.Level.ERROR, "Sample log read failed");
+        ring.log(LogRing.Level.WARN, "/dev/ttyUSB0 FAILED: no reply from 28FF4A1B01160310");
+        assertEquals(LogRing.BURST + 2, ring.tail(64).length);
+        assertEquals(20 - LogRing.BURST, ring.tail(64)[LogRing.BURST - 1].similar.get());
+    }
+
+    @Test
+    public void masksNumbersAndAddresses() {
+        assertEquals("HTTP server could not bind #/# in use",
+                LogRing.shape("HTTP server could not bind 192.168.1.4:8080/3 in use"));
+        assertEquals("Sensor # lost after #ms", LogRing.shape("Sensor 28FF4A1B01160312 lost after 1500ms"));
+        assertEquals(LogRing.shape("Sensor ABC lost"), "Sensor ABC lost");
+    }
+
+    @Test
+    public void keepsLimitingThroughAFloodOfKinds() {
+        LogRing ring = new LogRing(1024);
+        for (int i = 0; i < 300; i++) {
+            // A word of letters that aren't hex digits, so every message is a different kind
+            StringBuilder word = new StringBuilder();
+            for (int n = i; n > 0 || word.length() == 0; n /= 20)
+                word.append((char) ('g' + n % 20));
+            ring.log(LogRing.Level.INFO, "Unknown family " + word);
+            ring.log(LogRing.Level.WARN, "Slow commit: %dms", 100 + i);
+        }
+        LogRing.Entry[] tail = ring.tail(1024);
+        assertEquals(300 + LogRing.BURST, tail.length);
+        int slow = 0, similar = 0;
+        for (LogRing.Entry e : tail) {
+            if (e.message.startsWith("Slow commit")) {
+                slow++;
+                similar += e.similar.get();
+            }
+        }
+        assertEquals(LogRing.BURST, slow);
+        assertEquals(300 - LogRing.BURST, similar);
+    }
+}
@@ -0,0 +1,122 @@
+package com.cdot.fingerintheair;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A BusScheduler listener that keeps everything it is told, for tests to inspect
+ */
+class RecordingListener implements BusScheduler.Listener {
+
+    final List<SampleBatch> batches = new ArrayList<>();
+    final List<Long> added = new ArrayList<>();
+    final List<Long> lost = new ArrayList<>();
+    final List<List<Long>> searches = new ArrayList<>();
+    final List<String> errors = new ArrayList<>();
+    final List<BusStage> stages = new ArrayList<>();
+
+    @Override
+    public synchronized void onSamples(SampleBatch batch) {
+        batches.add(batch);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onSensorAdded(BusScheduler bus, long serno) {
+        added.add(serno);
+    }
+
+    @Override
+    public synchronized void onSensorLost(BusScheduler bus, long serno) {
+        lost.add(serno);
+    }
+
+    @Override
+    public synchronized void onSensorsFound(BusScheduler bus, List<Long> sensors) {
+        searches.add(new ArrayList<>(sensors));
+    }
+
+    @Override
+    public synchronized void onError(String message) {
+        errors.add(message);
+    }
+
+    @Override
+    public synchronized void onProgress(BusScheduler bus, BusStage stage) {
+        stages.add(stage);
+    }
+
+    /**
+     * Get the latest sample of each sensor
+     */
+    synchronized Map<Long, Double> latest() {
+        Map<Long, Double> latest = new HashMap<>();
+        for (SampleBatch b : batches) {
+            for (int i = 0; i < b.size(); i++)
+                latest.put(b.getSerno(i), b.getValue(i));
+        }
+        return latest;
+    }
+
+    /**
+     * Get every sample of a sensor, oldest first
+     */
+    synchronized List<Double> samples(long serno) {
+        List<Double> samples = new ArrayList<>();
+        for (SampleBatch b : batches) {
+            for (int i = 0; i < b.size(); i++) {
+                if (b.getSerno(i) == serno)
+                    samples.add(b.getValue(i));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Get the sensors sampled in batches from the given index on
+     */
+    synchronized Set<Long> sampledSince(int batch) {
+        Set<Long> sampled = new HashSet<>();
+        for (int i = batch; i < batches.size(); i++) {
+            SampleBatch b = batches.get(i);
+            for (int j = 0; j < b.size(); j++)
+                sampled.add(b.getSerno(j));
+        }
+        return sampled;
+    }
+
+    synchronized int sampleCount() {
+        int n = 0;
+        for (SampleBatch b : batches)
+            n += b.size();
+        return n;
+    }
+
+    /**
+     * Wait until at least the given number of sensors have been sampled
+     *
+     * @return false if it took longer than the timeout
+     */
+    synchronized boolean awaitSensors(int sensors, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (latest().size() < sensors) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    synchronized boolean hasError(String fragment) {
+        for (String e : errors) {
+            if (e.contains(fragment))
+                return true;
+        }
+        return false;
+    }
+}
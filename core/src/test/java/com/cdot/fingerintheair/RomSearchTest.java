@@ -0,0 +1,63 @@
+package com.cdot.fingerintheair;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RomSearchTest {
+
+    private static Set<Long> roms(List<SimulatedSerialPort.Device> devices) {
+        Set<Long> roms = new HashSet<>();
+        for (SimulatedSerialPort.Device d : devices)
+            roms.add(d.rom);
+        return roms;
+    }
+
+    @Test
+    public void findsEveryDevice() {
+        SimulatedSerialPort port = new SimulatedSerialPort(50, 0, 1);
+        List<Long> found = new ArrayList<>();
+        assertTrue(RomSearch.search(new Serial1WireDriver(port), RomSearch.SEARCH_ROM, found));
+        assertEquals(50, found.size());
+        assertEquals(roms(port.getDevices()), new HashSet<>(found));
+    }
+
+    @Test
+    public void findsNothingOnAnEmptyBus() {
+        List<Long> found = new ArrayList<>();
+        assertTrue(RomSearch.search(new Serial1WireDriver(new SimulatedSerialPort(0, 0, 1)),
+                RomSearch.SEARCH_ROM, found));
+        assertTrue(found.isEmpty());
+    }
+
+    @Test
+    public void alarmSearchFindsOnlyDevicesInAlarm() {
+        SimulatedSerialPort port = new SimulatedSerialPort(20, 0, 2);
+        List<SimulatedSerialPort.Device> alarmed = new ArrayList<>();
+        for (SimulatedSerialPort.Device d : port.getDevices()) {
+            int t = (int) Math.floor(d.temperature);
+            d.th = (byte) (t + 1);
+            d.tl = (byte) (t - 1);
+        }
+        for (int i = 0; i < 20; i += 7) {
+            SimulatedSerialPort.Device d = port.getDevices().get(i);
+            d.temperature += 3;
+            alarmed.add(d);
+        }
+        List<Long> found = new ArrayList<>();
+        assertTrue(RomSearch.search(new Serial1WireDriver(port), RomSearch.ALARM_SEARCH, found));
+        assertEquals(roms(alarmed), new HashSet<>(found));
+
+        found.clear();
+        for (SimulatedSerialPort.Device d : alarmed)
+            d.temperature -= 3;
+        assertTrue(RomSearch.search(new Serial1WireDriver(port), RomSearch.ALARM_SEARCH, found));
+        assertTrue(found.isEmpty());
+    }
+}
@@ -0,0 +1,48 @@
+package com.cdot.fingerintheair;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleHistoryTest {
+
+    private static SampleHistory history(int rawSize, int samples) {
+        SampleHistory h = new SampleHistory(rawSize, SampleHistory.DEFAULT_LEVEL_SIZES);
+        for (int i = 0; i < samples; i++)
+            h.add(i * 1000L, i);
+        return h;
+    }
+
+    @Test
+    public void copiesAWindowOldestFirst() {
+        SampleHistory h = history(100, 150);
+        long[] times = new long[100];
+        float[] values = new float[100];
+        // Only the last 100 are kept
+        assertEquals(100, h.getSamples(0, Long.MAX_VALUE, times, values));
+        assertEquals(50000, times[0]);
+        assertEquals(149000, times[99]);
+
+        assertEquals(10, h.getSamples(120000, 130000, times, values));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(120000 + i * 1000, times[i]);
+            assertEquals(120 + i, values[i], 0);
+        }
+    }
+
+    @Test
+    public void keepsTheNewestWhenTheArraysAreShort() {
+        SampleHistory h = history(2048, 2000);
+        long[] times = new long[SampleHistory.DEFAULT_RAW_SIZE];
+        float[] values = new float[SampleHistory.DEFAULT_RAW_SIZE];
+        int n = h.getSamples(0, Long.MAX_VALUE, times, values);
+        assertEquals(times.length, n);
+        assertEquals(1999000, times[n - 1]);
+        assertEquals(1999, values[n - 1], 0);
+        assertEquals((2000 - n) * 1000L, times[0]);
+
+        n = h.getSamples(0, 1500000, times, values);
+        assertEquals(times.length, n);
+        assertEquals(1499000, times[n - 1]);
+    }
+}
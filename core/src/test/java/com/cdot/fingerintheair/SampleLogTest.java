@@ -0,0 +1,322 @@
+package com.cdot.fingerintheair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleLogTest {
+
+    // Short segments, so tests cross plenty of them
+    private static final long SPAN = 1000;
+    // Serial numbers that use the top bit, as real ROM ids can
+    private static final long[] SERNOS = {0x28L, 0x0123456789ABCD28L, 0xFF00000000000028L};
+
+    private File mDirectory;
+    private SampleLog mLog;
+
+    /**
+     * A sample as written, with the value in the 1/16 degree steps it is stored in
+     */
+    private static class Row {
+        final long serno, timestamp;
+        final double value;
+
+        Row(long serno, long timestamp, double value) {
+            this.serno = serno;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            Row r = (Row) o;
+            return serno == r.serno && timestamp == r.timestamp && value == r.value;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (serno ^ timestamp);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%X,%d,%g", serno, timestamp, value);
+        }
+    }
+
+    static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File c : files)
+                delete(c);
+        }
+        f.delete();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("samplelog").toFile();
+        mLog = new SampleLog(mDirectory, SPAN);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mLog.close();
+        delete(mDirectory);
+    }
+
+    /**
+     * Append samples for every sensor at irregular times, with values in 1/16 steps
+     */
+    private List<Row> append(long from, long to) throws IOException {
+        List<Row> rows = new ArrayList<>();
+        Random r = new Random(from);
+        double value = 20;
+        for (long t = from; t < to; t += 50 + r.nextInt(100)) {
+            for (long serno : SERNOS) {
+                value += (r.nextInt(9) - 4) / 16.0;
+                mLog.append(serno, t, value);
+                rows.add(new Row(serno, t, value));
+            }
+        }
+        mLog.commit(false);
+        return rows;
+    }
+
+    private List<Row> read(Long serno, long from, long to) throws IOException {
+        List<Row> rows = new ArrayList<>();
+        SampleLog.Reader r = mLog.reader(serno, from, to);
+        while (r.next())
+            rows.add(new Row(r.getSerno(), r.getTimestamp(), r.getValue()));
+        return rows;
+    }
+
+    private static List<Row> select(List<Row> rows, Long serno, long from, long to) {
+        List<Row> selected = new ArrayList<>();
+        for (Row r : rows) {
+            if ((serno == null || r.serno == serno) && r.timestamp >= from && r.timestamp < to)
+                selected.add(r);
+        }
+        return selected;
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        List<Row> rows = append(0, 10 * SPAN);
+        assertEquals(10, mLog.segmentStarts().length);
+        for (long serno : SERNOS)
+            assertEquals(select(rows, serno, 0, Long.MAX_VALUE), read(serno, 0, Long.MAX_VALUE));
+        assertEquals(rows.size(), read(null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void readsRanges() throws IOException {
+        List<Row> rows = append(0, 10 * SPAN);
+        assertEquals(select(rows, SERNOS[1], 2500, 7250), read(SERNOS[1], 2500, 7250));
+        assertEquals(select(rows, SERNOS[2], 3000, 4000), read(SERNOS[2], 3000, 4000));
+        assertTrue(read(null, 20 * SPAN, 30 * SPAN).isEmpty());
+    }
+
+    @Test
+    public void onlySeesCommittedSamples() throws IOException {
+        append(0, SPAN / 2);
+        int committed = read(null, 0, Long.MAX_VALUE).size();
+        mLog.append(SERNOS[0], SPAN / 2 + 10, 1);
+        assertEquals(committed, read(null, 0, Long.MAX_VALUE).size());
+        mLog.commit(false);
+        assertEquals(committed + 1, read(null, 0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void carriesOnAColumnAfterReopening() throws IOException {
+        List<Row> rows = append(0, SPAN / 2);
+        mLog.close();
+        mLog = new SampleLog(mDirectory, SPAN);
+        rows.addAll(append(SPAN / 2, 3 * SPAN));
+        assertEquals(select(rows, SERNOS[0], 0, Long.MAX_VALUE), read(SERNOS[0], 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void dropsATornRecord() throws IOException {
+        List<Row> rows = append(0, SPAN / 2);
+        mLog.close();
+        // Half a varint, as a crash mid-write would leave
+        try (FileOutputStream out = new FileOutputStream(mLog.columnFile(0, SERNOS[0]), true)) {
+            out.write(0x80);
+        }
+        assertEquals(select(rows, SERNOS[0], 0, Long.MAX_VALUE), read(SERNOS[0], 0, Long.MAX_VALUE));
+
+        mLog = new SampleLog(mDirectory, SPAN);
+        mLog.append(SERNOS[0], SPAN - 1, 30);
+        mLog.commit(false);
+        List<Row> read = read(SERNOS[0], 0, Long.MAX_VALUE);
+        assertEquals(new Row(SERNOS[0], SPAN - 1, 30), read.get(read.size() - 1));
+    }
+
+    @Test
+    public void archivesExpiredSamples() throws IOException {
+        // Archive blocks are 24 segments
+        long day = SPAN * SampleLog.ARCHIVE_BLOCK_SEGMENTS;
+        List<Row> rows = append(0, 3 * day);
+        SampleLog.Retention retention = serno -> serno == SERNOS[0] ? 3 * day : SPAN;
+        mLog.expire(3 * day, retention);
+
+        assertTrue(mLog.getArchiveSize() > 0);
+        // The sensor with the short retention has gone from the old segments
+        assertFalse(mLog.columnFile(0, SERNOS[1]).exists());
+        assertTrue(mLog.columnFile(0, SERNOS[0]).exists());
+        for (long serno : SERNOS)
+            assertEquals(select(rows, serno, 0, Long.MAX_VALUE), read(serno, 0, Long.MAX_VALUE));
+        assertEquals(select(rows, SERNOS[2], day / 2, day + 100), read(SERNOS[2], day / 2, day + 100));
+        assertEquals(rows.size(), read(null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+
+        // Sweeping again doesn't archive anything twice
+        mLog.expire(3 * day + 1, serno -> 1);
+        assertEquals(rows.size(), read(null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void migratesRowsWithDecimalCommas() throws IOException {
+        File legacy = new File(mDirectory, "samples.csv");
+        try (FileOutputStream out = new FileOutputStream(legacy)) {
+            // Newest first, as the old code wrote them, some in a decimal comma locale
+            out.write(("28,300,21,5000\n"
+                    + "28,200,-1.25000\n"
+                    + "FF00000000000028,100,19,0625\n"
+                    + "not,a,row\n"
+                    + "28,150\n"
+                    + "\n").getBytes("UTF-8"));
+        }
+        assertEquals(3, mLog.migrate(legacy));
+        assertEquals(2, mLog.getMigrationRejects());
+        assertFalse(legacy.exists());
+        List<Row> expected = new ArrayList<>();
+        expected.add(new Row(SERNOS[2], 100, 19.0625));
+        expected.add(new Row(0x28L, 200, -1.25));
+        expected.add(new Row(0x28L, 300, 21.5));
+        List<Row> read = read(null, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(new HashSet<>(expected), new HashSet<>(read));
+        assertEquals(-1, mLog.migrate(legacy));
+    }
+
+    @Test
+    public void exportsCSVWithADecimalPointInAnyLocale() throws IOException {
+        List<Row> rows = append(0, 2 * SPAN);
+        Locale locale = Locale.getDefault();
+        StringWriter out = new StringWriter();
+        try {
+            Locale.setDefault(Locale.GERMANY);
+            mLog.exportCSV(out, 0, Long.MAX_VALUE);
+        } finally {
+            Locale.setDefault(locale);
+        }
+        List<Row> exported = new ArrayList<>();
+        for (String line : out.toString().split("\n")) {
+            String[] cols = line.split(",");
+            assertEquals(line, 3, cols.length);
+            exported.add(new Row(SampleLog.parseSerno(cols[0]), Long.parseLong(cols[1]),
+                    Double.parseDouble(cols[2])));
+        }
+        assertEquals(new HashSet<>(rows), new HashSet<>(exported));
+    }
+
+    @Test
+    public void readsSensorsInUnsignedOrder() throws IOException {
+        append(0, SPAN);
+        List<Long> order = new ArrayList<>();
+        SampleLog.Reader r = mLog.reader(null, 0, SPAN);
+        while (r.next()) {
+            if (order.isEmpty() || order.get(order.size() - 1) != r.getSerno())
+                order.add(r.getSerno());
+        }
+        List<Long> expected = new ArrayList<>();
+        for (long serno : SERNOS)
+            expected.add(serno);
+        assertEquals(expected, order);
+    }
+
+    @Test
+    public void readsEverySampleOnceWhileColumnsAreArchived() throws IOException {
+        long day = SPAN * SampleLog.ARCHIVE_BLOCK_SEGMENTS;
+        List<Row> rows = append(0, 3 * day);
+        SampleLog.Reader all = mLog.reader(null, Long.MIN_VALUE, Long.MAX_VALUE);
+        SampleLog.Reader one = mLog.reader(SERNOS[1], Long.MIN_VALUE, Long.MAX_VALUE);
+        List<Row> readAll = new ArrayList<>(), readOne = new ArrayList<>();
+        // Start both readers in the hot segments, then archive the first two days under them
+        assertTrue(all.next());
+        readAll.add(new Row(all.getSerno(), all.getTimestamp(), all.getValue()));
+        assertTrue(one.next());
+        readOne.add(new Row(one.getSerno(), one.getTimestamp(), one.getValue()));
+        mLog.expire(3 * day, serno -> SPAN);
+        assertTrue(mLog.getArchiveSize() > 0);
+        assertFalse(mLog.columnFile(SPAN, SERNOS[1]).exists());
+
+        while (all.next())
+            readAll.add(new Row(all.getSerno(), all.getTimestamp(), all.getValue()));
+        while (one.next())
+            readOne.add(new Row(one.getSerno(), one.getTimestamp(), one.getValue()));
+        assertEquals(rows.size(), readAll.size());
+        assertEquals(new HashSet<>(rows), new HashSet<>(readAll));
+        assertEquals(select(rows, SERNOS[1], Long.MIN_VALUE, Long.MAX_VALUE), readOne);
+    }
+
+    @Test
+    public void readsAColumnLeftByAnInterruptedSweepOnce() throws IOException {
+        long day = SPAN * SampleLog.ARCHIVE_BLOCK_SEGMENTS;
+        List<Row> rows = append(0, 2 * day + SPAN);
+        // Keep a copy of the first day's columns, to put back as if they were never deleted
+        File saved = new File(mDirectory, "saved");
+        for (long start = 0; start < day; start += SPAN) {
+            File column = mLog.columnFile(start, SERNOS[2]);
+            File copy = new File(saved, start + "");
+            copy.getParentFile().mkdirs();
+            Files.copy(column.toPath(), copy.toPath());
+        }
+        mLog.expire(2 * day + SPAN, serno -> SPAN);
+        for (long start = 0; start < day; start += SPAN) {
+            File column = mLog.columnFile(start, SERNOS[2]);
+            column.getParentFile().mkdirs();
+            Files.copy(new File(saved, start + "").toPath(), column.toPath());
+        }
+        delete(saved);
+        assertEquals(rows.size(), read(null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(select(rows, SERNOS[2], 0, Long.MAX_VALUE), read(SERNOS[2], 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void prunesTheArchiveAFileAtATime() throws IOException {
+        long day = SPAN * SampleLog.ARCHIVE_BLOCK_SEGMENTS;
+        long file = day * SampleLog.ARCHIVE_FILE_BLOCKS;
+        List<Row> rows = append(0, 3 * day);
+        mLog.expire(3 * day, serno -> SPAN);
+        long archived = mLog.getArchiveSize();
+        assertTrue(archived > 0);
+
+        // Not all of the first file is old enough
+        mLog.pruneArchive(file - 1);
+        assertEquals(archived, mLog.getArchiveSize());
+        assertEquals(rows.size(), read(null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+
+        mLog.pruneArchive(file);
+        assertEquals(0, mLog.getArchiveSize());
+        // Only what was still in the segments is left
+        List<Row> left = read(null, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(select(rows, null, 2 * day, Long.MAX_VALUE).size(), left.size());
+        assertEquals(new HashSet<>(select(rows, null, 2 * day, Long.MAX_VALUE)), new HashSet<>(left));
+    }
+}
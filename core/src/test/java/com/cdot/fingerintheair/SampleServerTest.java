@@ -0,0 +1,194 @@
+package com.cdot.fingerintheair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SampleServerTest {
+
+    private static final long SPAN = 1000;
+    // Serial numbers that use the top bit, as real ROM ids can
+    private static final long[] SERNOS = {0x28L, 0x0123456789ABCD28L, 0xFF00000000000028L};
+    private static final Pattern SAMPLE = Pattern.compile(
+            "\\{\"serno\":\"([0-9A-F]+)\",\"timestamp\":(-?\\d+),\"value\":([-0-9.E]+)\\}");
+
+    private File mDirectory;
+    private SampleLog mLog;
+    private SampleServer mServer;
+    private final List<String> mErrors = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("sampleserver").toFile();
+        mLog = new SampleLog(mDirectory, SPAN);
+        mServer = new SampleServer(mLog, "127.0.0.1", 0, message -> {
+            synchronized (mErrors) {
+                mErrors.add(message);
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        mServer.join(5000);
+        mLog.close();
+        SampleLogTest.delete(mDirectory);
+    }
+
+    /**
+     * Log a sample a tenth of a span apart for every sensor, over ten spans
+     *
+     * @return the samples, as serno:timestamp
+     */
+    private Set<String> fill() throws IOException {
+        Set<String> written = new HashSet<>();
+        for (long t = 0; t < 10 * SPAN; t += SPAN / 10) {
+            for (long serno : SERNOS) {
+                mLog.append(serno, t, 20 + t / 1000.0);
+                written.add(String.format("%X:%d", serno, t));
+            }
+        }
+        mLog.commit(false);
+        return written;
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + mServer.getPort() + path)
+                .openConnection();
+        c.setConnectTimeout(5000);
+        c.setReadTimeout(5000);
+        return c;
+    }
+
+    private static String body(HttpURLConnection c) throws IOException {
+        InputStream in = c.getResponseCode() < 400 ? c.getInputStream() : c.getErrorStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void pagesCoverTheHistoryOnce() throws IOException {
+        Set<String> written = fill();
+        Set<String> seen = new HashSet<>();
+        String after = null;
+        int pages = 0;
+        do {
+            HttpURLConnection c = open("/history?limit=7" + (after != null ? "&after=" + after : ""));
+            assertEquals(200, c.getResponseCode());
+            String next = c.getHeaderField("X-Next-After");
+            String body = body(c);
+            Matcher m = SAMPLE.matcher(body);
+            int n = 0;
+            while (m.find()) {
+                assertTrue("Repeated " + m.group(), seen.add(m.group(1) + ":" + m.group(2)));
+                n++;
+            }
+            assertTrue(n <= 7);
+            if (next != null)
+                assertTrue(body.endsWith("\"next\":\"" + next + "\"}\n"));
+            else
+                assertTrue(body.endsWith("\"next\":null}\n"));
+            after = next;
+            pages++;
+        } while (after != null);
+        assertEquals(written, seen);
+        assertEquals((written.size() + 6) / 7, pages);
+    }
+
+    @Test
+    public void pagesOneSensorAsCSV() throws IOException {
+        fill();
+        String after = null;
+        long last = Long.MIN_VALUE;
+        int rows = 0;
+        do {
+            HttpURLConnection c = open("/history?format=csv&limit=30&from=2000&to=8000&serno="
+                    + Long.toHexString(SERNOS[2]) + (after != null ? "&after=" + after : ""));
+            assertEquals(200, c.getResponseCode());
+            assertTrue(c.getContentType().startsWith("text/csv"));
+            after = c.getHeaderField("X-Next-After");
+            for (String line : body(c).split("\n")) {
+                String[] cols = line.split(",");
+                assertEquals(3, cols.length);
+                assertEquals(SERNOS[2], SampleLog.parseSerno(cols[0]));
+                long t = Long.parseLong(cols[1]);
+                assertTrue(t > last && t >= 2000 && t < 8000);
+                assertEquals(20 + t / 1000.0, Double.parseDouble(cols[2]), 1.0 / 16);
+                last = t;
+                rows++;
+            }
+        } while (after != null);
+        assertEquals(60, rows);
+    }
+
+    @Test
+    public void rejectsBadRequests() throws IOException {
+        assertEquals(400, open("/history?serno=XYZ").getResponseCode());
+        assertEquals(400, open("/history?after=28").getResponseCode());
+        assertEquals(400, open("/history?from=yesterday").getResponseCode());
+        assertEquals(404, open("/nowhere").getResponseCode());
+    }
+
+    @Test
+    public void streamsLiveBatches() throws IOException {
+        HttpURLConnection c = open("/live");
+        assertEquals(200, c.getResponseCode());
+        assertTrue(c.getContentType().startsWith("text/event-stream"));
+        BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), "UTF-8"));
+
+        SampleBatch batch = new SampleBatch(SERNOS.length);
+        for (long serno : SERNOS)
+            batch.add(serno, 1234, 21.5);
+        mServer.publish(batch);
+        mServer.sensorLost(SERNOS[1]);
+
+        String data = null, id = null;
+        String line;
+        while ((line = in.readLine()) != null && !"event: lost".equals(line)) {
+            if (line.startsWith("data: ["))
+                data = line;
+            else if (line.startsWith("id: "))
+                id = line.substring(4);
+        }
+        assertNotNull(data);
+        assertEquals("1234", id);
+        Matcher m = SAMPLE.matcher(data);
+        for (long serno : SERNOS) {
+            assertTrue(m.find());
+            assertEquals(serno, SampleLog.parseSerno(m.group(1)));
+            assertEquals(21.5, Double.parseDouble(m.group(3)), 0);
+        }
+        assertEquals(String.format("data: {\"serno\":\"%X\"}", SERNOS[1]), in.readLine());
+        c.disconnect();
+        synchronized (mErrors) {
+            assertTrue(mErrors.toString(), mErrors.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.cdot.fingerintheair;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SampleSubscriptionTest {
+
+    /**
+     * An executor that holds everything until it is released, like a busy main thread
+     */
+    private static class BlockedExecutor implements Executor {
+        final List<Runnable> held = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable r) {
+            held.add(r);
+        }
+
+        void release() {
+            while (!held.isEmpty())
+                held.remove(0).run();
+        }
+    }
+
+    private final BlockedExecutor mExecutor = new BlockedExecutor();
+    private final List<SampleBatch> mDelivered = new ArrayList<>();
+
+    private SampleSubscription subscribe(int capacity, SampleSubscription.Overflow overflow) {
+        return new SampleSubscription(new SampleSubscription.Listener() {
+            @Override
+            public void onSamples(SampleBatch batch) {
+                mDelivered.add(batch);
+            }
+
+            @Override
+            public void onSensorLost(long serno) {
+            }
+        }, mExecutor, capacity, overflow);
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestBatches() {
+        SampleSubscription sub = subscribe(3, SampleSubscription.Overflow.DROP_OLDEST);
+        for (int t = 0; t < 10; t++) {
+            SampleBatch b = new SampleBatch(1);
+            b.add(0x28L, t, t);
+            sub.publish(b);
+        }
+        assertEquals(3, sub.getQueueDepth());
+        assertEquals(7, sub.getDropped());
+        assertTrue(mDelivered.isEmpty());
+
+        mExecutor.release();
+        assertEquals(3, mDelivered.size());
+        for (int i = 0; i < 3; i++)
+            assertEquals(7 + i, mDelivered.get(i).getTimestamp(0));
+        assertEquals(0, sub.getQueueDepth());
+    }
+
+    @Test
+    public void coalesceLatestKeepsOneLatestValuePerSensor() {
+        SampleSubscription sub = subscribe(1, SampleSubscription.Overflow.COALESCE_LATEST);
+        for (int t = 0; t < 20; t++) {
+            SampleBatch b = new SampleBatch(3);
+            b.add(0x28L, t, 20 + t);
+            b.add(0x128L, t, 40 + t);
+            // A sensor only in an early batch isn't lost in the merge
+            if (t == 2)
+                b.add(0x228L, t, 60);
+            sub.publish(b);
+        }
+        assertEquals(1, sub.getQueueDepth());
+        assertEquals(19, sub.getDropped());
+
+        mExecutor.release();
+        assertEquals(1, mDelivered.size());
+        SampleBatch b = mDelivered.get(0);
+        Map<Long, Integer> seen = new HashMap<>();
+        // Each sensor once
+        for (int i = 0; i < b.size(); i++)
+            assertTrue(seen.put(b.getSerno(i), i) == null);
+        assertEquals(3, seen.size());
+        int i = seen.get(0x28L);
+        assertEquals(19, b.getTimestamp(i));
+        assertEquals(39, b.getValue(i), 0);
+        i = seen.get(0x128L);
+        assertEquals(19, b.getTimestamp(i));
+        assertEquals(59, b.getValue(i), 0);
+        i = seen.get(0x228L);
+        assertEquals(2, b.getTimestamp(i));
+        assertEquals(60, b.getValue(i), 0);
+    }
+
+    @Test
+    public void deliversNothingOnceCancelled() {
+        SampleSubscription sub = subscribe(4, SampleSubscription.Overflow.DROP_OLDEST);
+        SampleBatch b = new SampleBatch(1);
+        b.add(0x28L, 1, 20);
+        sub.publish(b);
+        sub.cancel();
+        sub.publish(b);
+        mExecutor.release();
+        assertTrue(mDelivered.isEmpty());
+        assertEquals(0, sub.getQueueDepth());
+    }
+}
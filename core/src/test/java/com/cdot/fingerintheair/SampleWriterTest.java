@@ -0,0 +1,161 @@
+package com.cdot.fingerintheair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SampleWriterTest {
+
+    private static final long BAD_SERNO = 0xBADL;
+
+    /**
+     * A log that can't append one sensor, and counts syncs
+     */
+    private static class FaultyLog extends SampleLog {
+        volatile int syncs = 0;
+        // How long a sweep takes
+        volatile long sweep = 0;
+
+        FaultyLog(File directory) {
+            super(directory, 1000);
+        }
+
+        @Override
+        synchronized void append(long serno, long timestamp, double value) throws IOException {
+            if (serno == BAD_SERNO)
+                throw new IOException("No space left on device");
+            super.append(serno, timestamp, value);
+        }
+
+        @Override
+        synchronized void commit(boolean sync) throws IOException {
+            super.commit(sync);
+            if (sync)
+                syncs++;
+        }
+
+        @Override
+        synchronized boolean expire(long latest, Retention retention) throws IOException {
+            if (sweep == 0)
+                return super.expire(latest, retention);
+            try {
+                Thread.sleep(sweep);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+    }
+
+    private File mDirectory;
+    private FaultyLog mLog;
+    private SampleWriter mWriter;
+    private final List<String> mErrors = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("samplewriter").toFile();
+        mLog = new FaultyLog(mDirectory);
+        mWriter = new SampleWriter(mLog, message -> {
+            synchronized (mErrors) {
+                mErrors.add(message);
+            }
+        });
+        mWriter.setCommitWindow(10);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mWriter.close();
+        mWriter.join(5000);
+        SampleLogTest.delete(mDirectory);
+    }
+
+    private void awaitCommits(long commits) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (mWriter.getCommits() < commits && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        assertTrue(mWriter.getCommits() >= commits);
+    }
+
+    @Test
+    public void dropsOnlyTheSamplesThatFail() throws Exception {
+        mWriter.setDurability(SampleWriter.Durability.OS_BUFFERED, SampleWriter.DEFAULT_SYNC_INTERVAL);
+        mWriter.start();
+        SampleBatch batch = new SampleBatch(4);
+        batch.add(0x28L, 100, 20);
+        batch.add(BAD_SERNO, 100, 21);
+        batch.add(0x128L, 100, 22);
+        batch.add(BAD_SERNO, 200, 23);
+        mWriter.write(batch);
+        awaitCommits(1);
+
+        assertEquals(2, mWriter.getDropped());
+        assertEquals(0, mWriter.getQueueDepth());
+        synchronized (mErrors) {
+            assertEquals(1, mErrors.size());
+            assertTrue(mErrors.get(0), mErrors.get(0).contains("2 samples dropped"));
+        }
+        int n = 0;
+        SampleLog.Reader r = mLog.reader(null, 0, Long.MAX_VALUE);
+        while (r.next()) {
+            assertTrue(r.getSerno() != BAD_SERNO);
+            n++;
+        }
+        assertEquals(2, n);
+    }
+
+    @Test
+    public void syncsPeriodicallyWithoutAnotherCommit() throws Exception {
+        mWriter.setDurability(SampleWriter.Durability.SYNC_PERIODIC, 200);
+        mWriter.start();
+        SampleBatch batch = new SampleBatch(1);
+        batch.add(0x28L, 100, 20);
+        mWriter.write(batch);
+        awaitCommits(1);
+        // The first commit syncs, as none has been done yet
+        int synced = mLog.syncs;
+
+        batch = new SampleBatch(1);
+        batch.add(0x28L, 200, 20.5);
+        mWriter.write(batch);
+        awaitCommits(2);
+        assertEquals(synced, mLog.syncs);
+
+        Thread.sleep(600);
+        assertEquals(2, mWriter.getCommits());
+        assertEquals(synced + 1, mLog.syncs);
+    }
+
+    @Test
+    public void timesArchivingApartFromTheCommit() throws Exception {
+        mLog.sweep = 300;
+        mWriter.setCommitWindow(100);
+        mWriter.setRetention(serno -> 1);
+        mWriter.setDurability(SampleWriter.Durability.OS_BUFFERED, SampleWriter.DEFAULT_SYNC_INTERVAL);
+        mWriter.start();
+        SampleBatch batch = new SampleBatch(1);
+        batch.add(0x28L, 100, 20);
+        mWriter.write(batch);
+        awaitCommits(1);
+        long end = System.currentTimeMillis() + 5000;
+        while (mWriter.getArchiveLatency().getCount() == 0 && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+
+        assertEquals(1, mWriter.getArchiveLatency().getCount());
+        assertTrue(mWriter.getArchiveLatency().getMax() >= 300000000L);
+        assertTrue(mWriter.getCommitLatency().getMax() < 100000000L);
+        synchronized (mErrors) {
+            assertTrue(mErrors.toString(), mErrors.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.cdot.fingerintheair;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SamplingConfigTest {
+
+    private static final long SERNO = 0x28FF4A1B01160312L;
+
+    private final Map<String, Object> mPrefs = new HashMap<>();
+
+    private static boolean mentions(List<String> errors, String key) {
+        for (String e : errors) {
+            if (e.startsWith(key))
+                return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void usesTheDefaultsWhenNothingIsSet() {
+        SamplingConfig c = new SamplingConfig(mPrefs);
+        assertTrue(c.getErrors().isEmpty());
+        assertEquals(SamplingConfig.DEFAULT_SAMPLE_FREQUENCY * 1000L, c.getInterval());
+        assertEquals(SamplingConfig.DEFAULT_SAMPLE_LIFE * 1000L, c.getRetention(SERNO));
+        assertEquals(SamplingConfig.DEFAULT_HISTORY_SIZE, c.getHistorySize());
+        assertEquals(SamplingConfig.DEFAULT_DURABILITY, c.getDurability());
+        assertNull(c.getSampleFile());
+    }
+
+    @Test
+    public void readsPreferencesStoredAsStrings() {
+        // As EditTextPreference and ListPreference store them
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, " 30 ");
+        mPrefs.put(SamplingConfig.PREFERENCE_HISTORY_SIZE, "64");
+        mPrefs.put(SamplingConfig.PREFERENCE_DEADBAND, "0.25");
+        mPrefs.put(SamplingConfig.PREFERENCE_BROADCAST_SAMPLES, "true");
+        mPrefs.put(SamplingConfig.PREFERENCE_DURABILITY, "SYNC_EACH_COMMIT");
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FILE, " /sdcard/samples ");
+        SamplingConfig c = new SamplingConfig(mPrefs);
+        assertTrue(c.getErrors().toString(), c.getErrors().isEmpty());
+        assertEquals(30000, c.getInterval());
+        assertEquals(64, c.getHistorySize());
+        assertTrue(c.isBroadcast());
+        assertEquals(SampleWriter.Durability.SYNC_EACH_COMMIT, c.getDurability());
+        assertEquals("/sdcard/samples", c.getSampleFile());
+
+        // and the same from typed values
+        Map<String, Object> typed = new HashMap<>();
+        typed.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, 30);
+        typed.put(SamplingConfig.PREFERENCE_HISTORY_SIZE, 64L);
+        typed.put(SamplingConfig.PREFERENCE_DEADBAND, 0.25f);
+        typed.put(SamplingConfig.PREFERENCE_BROADCAST_SAMPLES, true);
+        typed.put(SamplingConfig.PREFERENCE_DURABILITY, "SYNC_EACH_COMMIT");
+        typed.put(SamplingConfig.PREFERENCE_SAMPLE_FILE, "/sdcard/samples");
+        assertEquals(c, new SamplingConfig(typed));
+    }
+
+    @Test
+    public void readsTheSampleLifeKey() {
+        mPrefs.put("sampleLife", "3600");
+        mPrefs.put("sampleCount", "7200");
+        SamplingConfig c = new SamplingConfig(mPrefs);
+        assertEquals(3600000, c.getRetention(SERNO));
+    }
+
+    @Test
+    public void clampsAndReportsBadValues() {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "0");
+        mPrefs.put(SamplingConfig.PREFERENCE_HISTORY_SIZE, "lots");
+        mPrefs.put(SamplingConfig.PREFERENCE_HTTP_PORT, 70000);
+        mPrefs.put(SamplingConfig.PREFERENCE_DEADBAND, "NaN");
+        mPrefs.put(SamplingConfig.PREFERENCE_RESOLUTION, "16");
+        mPrefs.put(SamplingConfig.PREFERENCE_DURABILITY, "ALWAYS");
+        SamplingConfig c = new SamplingConfig(mPrefs);
+        List<String> errors = c.getErrors();
+        assertEquals(errors.toString(), 6, errors.size());
+
+        assertEquals(1000, c.getInterval());
+        assertTrue(mentions(errors, SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY));
+        assertEquals(SamplingConfig.DEFAULT_HISTORY_SIZE, c.getHistorySize());
+        assertTrue(mentions(errors, SamplingConfig.PREFERENCE_HISTORY_SIZE));
+        assertEquals(65535, c.getHttpPort());
+        assertTrue(mentions(errors, SamplingConfig.PREFERENCE_HTTP_PORT));
+        assertTrue(mentions(errors, SamplingConfig.PREFERENCE_DEADBAND));
+        assertEquals(BusScheduler.MAX_RESOLUTION, c.getResolution(SERNO));
+        assertTrue(mentions(errors, SamplingConfig.PREFERENCE_RESOLUTION));
+        assertEquals(SamplingConfig.DEFAULT_DURABILITY, c.getDurability());
+        assertTrue(mentions(errors, SamplingConfig.PREFERENCE_DURABILITY));
+    }
+
+    @Test
+    public void parsesSensorOverrides() {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "20");
+        mPrefs.put(SamplingConfig.PREFERENCE_RESOLUTION, "10");
+        mPrefs.put(SamplingConfig.PREFERENCE_SENSOR_OVERRIDES,
+                "28ff4a1b01160312: interval=5, resolution=12, retention=604800;\n 128 : interval = 8 ;");
+        SamplingConfig c = new SamplingConfig(mPrefs);
+        assertTrue(c.getErrors().toString(), c.getErrors().isEmpty());
+        assertEquals(5000, c.getInterval(SERNO));
+        assertEquals(12, c.getResolution(SERNO));
+        assertEquals(604800000L, c.getRetention(SERNO));
+        assertEquals(8000, c.getInterval(0x128L));
+        assertEquals(10, c.getResolution(0x128L));
+        assertEquals(SamplingConfig.DEFAULT_SAMPLE_LIFE * 1000L, c.getRetention(0x128L));
+        // Sensors without an override
+        assertEquals(20000, c.getInterval(0x28L));
+        assertEquals(10, c.getResolution(0x28L));
+        assertEquals(12, c.getMaxResolution());
+        assertEquals(1000, c.getTick());
+    }
+
+    @Test
+    public void rejectsBadSensorOverrides() {
+        mPrefs.put(SamplingConfig.PREFERENCE_SENSOR_OVERRIDES,
+                "28 interval=5; XYZ: interval=5; 128: speed=3; 228: interval; 328: interval=0");
+        SamplingConfig c = new SamplingConfig(mPrefs);
+        List<String> errors = c.getErrors();
+        assertEquals(errors.toString(), 5, errors.size());
+        for (String e : errors)
+            assertTrue(e, e.startsWith(SamplingConfig.PREFERENCE_SENSOR_OVERRIDES) || e.startsWith("interval"));
+        assertEquals(c.getInterval(), c.getInterval(0x28L));
+        assertEquals(c.getInterval(), c.getInterval(0x128L));
+        assertEquals(c.getInterval(), c.getInterval(0x228L));
+        // Clamped
+        assertEquals(1000, c.getInterval(0x328L));
+    }
+
+    @Test
+    public void equalsComparesEverySetting() {
+        mPrefs.put(SamplingConfig.PREFERENCE_SAMPLE_FREQUENCY, "20");
+        mPrefs.put(SamplingConfig.PREFERENCE_SENSOR_OVERRIDES, "28: interval=5");
+        SamplingConfig a = new SamplingConfig(mPrefs);
+        SamplingConfig b = new SamplingConfig(new HashMap<>(mPrefs));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+
+        mPrefs.put(SamplingConfig.PREFERENCE_SENSOR_OVERRIDES, "28: interval=6");
+        assertFalse(a.equals(new SamplingConfig(mPrefs)));
+        mPrefs.put(SamplingConfig.PREFERENCE_SENSOR_OVERRIDES, "28: interval=5");
+        mPrefs.put(SamplingConfig.PREFERENCE_HTTP_ADDRESS, "192.168.1.4");
+        assertFalse(a.equals(new SamplingConfig(mPrefs)));
+        mPrefs.remove(SamplingConfig.PREFERENCE_HTTP_ADDRESS);
+        mPrefs.put(SamplingConfig.PREFERENCE_ARCHIVE_LIFE, "30");
+        assertFalse(a.equals(new SamplingConfig(mPrefs)));
+        mPrefs.remove(SamplingConfig.PREFERENCE_ARCHIVE_LIFE);
+        assertEquals(a, new SamplingConfig(mPrefs));
+    }
+}
@@ -0,0 +1,81 @@
+package com.cdot.fingerintheair;
+
+import com.cdot.onewire.OneWireError;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class Serial1WireDriverTest {
+
+    private final SimulatedSerialPort mPort = new SimulatedSerialPort(12, 0, 1);
+    private final Serial1WireDriver mDriver = new Serial1WireDriver(mPort);
+    private final byte[] mBlock = new byte[1 + 8 + 1 + BusScheduler.SCRATCHPAD_SIZE];
+    private final byte[] mRx = new byte[mBlock.length];
+
+    /**
+     * Read every scratchpad on the bus, one device at a time, as a sample tick does
+     *
+     * @return number of scratchpads that passed the CRC check
+     */
+    private int scan() {
+        int good = 0;
+        for (int d = 0; d < mPort.getDevices().size(); d++) {
+            long rom = mPort.getDevices().get(d).rom;
+            mBlock[0] = BusScheduler.MATCH_ROM;
+            for (int i = 0; i < 8; i++)
+                mBlock[1 + i] = (byte) (rom >> (8 * i));
+            mBlock[9] = BusScheduler.READ_SCRATCHPAD;
+            for (int i = 10; i < mBlock.length; i++)
+                mBlock[i] = (byte) 0xFF;
+            assertEquals(OneWireError.NO_ERROR_SET, mDriver.reset());
+            assertTrue(mDriver.touchBlock(mBlock, mBlock.length, mRx));
+            if (BusScheduler.crc8(mRx, 10, BusScheduler.SCRATCHPAD_SIZE) == 0)
+                good++;
+        }
+        // Skip ROM, Convert T, and poll for the end of the conversion
+        mDriver.reset();
+        mDriver.touchByte(BusScheduler.SKIP_ROM);
+        mDriver.touchByte(BusScheduler.CONVERT_T);
+        while (!mDriver.touchBit(true))
+            ;
+        return good;
+    }
+
+    @Test
+    public void scanAllocatesNothing() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        // Warm up, so the measurement isn't of class loading or compilation
+        for (int i = 0; i < 2000; i++)
+            assertEquals(12, scan());
+
+        // Allow for whatever asking for the count allocates
+        long overhead = threads.getThreadAllocatedBytes(thread);
+        overhead = threads.getThreadAllocatedBytes(thread) - overhead;
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100; i++)
+            scan();
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+        assertEquals("bytes allocated by 100 scans", 0, allocated);
+    }
+
+    @Test
+    public void configuresTheLineOnce() {
+        scan();
+        scan();
+        assertEquals(1, mPort.lineConfigurations);
+        // Into and out of reset timing once per reset, no more
+        int resets = 2 * (mPort.getDevices().size() + 1);
+        assertEquals(2 * resets, mPort.baudChanges);
+    }
+}
@@ -0,0 +1,392 @@
+package com.cdot.fingerintheair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A serial port with a simulated 1-wire bus on the end of it, for tests and benchmarks. It
+ * emulates the UART bit-slot protocol Serial1WireDriver relies on:
+ * <ul>
+ * <li>At 9600 baud, writing 0xF0 is a reset pulse. The echo is 0xF0 if nothing is on the bus,
+ * otherwise it is corrupted by the presence pulse.</li>
+ * <li>At any other baud rate each byte is one time slot. 0xFF is a write-1 or read slot, and
+ * the echo has bit 0 clear if any device pulled the line low. Anything else is a write-0 slot.</li>
+ * <li>Devices put into overdrive only see slots at 921600 baud, and take any byte at 115200
+ * as a reset pulse. Devices at standard speed don't see slots at 921600 at all.</li>
+ * </ul>
+ * The bus carries a configurable number of virtual DS18B20s, which support Search ROM, Alarm
+ * Search, Match ROM, Skip ROM, Read ROM, Convert T, Read Scratchpad, Write Scratchpad and
+ * Read Power Supply. A device's scratchpad holds the power-on 85C until its first conversion
+ * finishes.
+ * Real DS18B20s can't do overdrive, but virtual ones can be made to support Overdrive Skip ROM.
+ * <p>
+ * Every write incurs a configurable latency, to model USB round trips.
+ */
+class SimulatedSerialPort implements SerialPort {
+
+    static final int RESET_BAUD = 9600;
+    static final int OVERDRIVE_RESET_BAUD = 115200;
+    static final int OVERDRIVE_SLOT_BAUD = 921600;
+
+    // Echo of the reset pulse when devices respond
+    private static final byte PRESENCE = (byte) 0xE0;
+
+    private final List<Device> mDevices = new ArrayList<>();
+    private final long mLatency; // ns
+    private int mBaudRate = RESET_BAUD;
+    // Calls to configureLine and setBaudRate, to check the driver doesn't repeat them
+    int lineConfigurations = 0, baudChanges = 0;
+
+    // Echoes waiting to be read
+    private byte[] mEcho = new byte[256];
+    private int mEchoHead = 0, mEchoCount = 0;
+
+    /**
+     * A virtual DS18B20
+     */
+    static class Device {
+        final long rom;
+        double temperature = 20;
+        byte th = 0x7F, tl = (byte) 0x80, config = 0x7F;
+        // Time a conversion takes, in ns. 0 for instant.
+        long conversionTime = 0;
+        // Added to the temperature by every conversion
+        double drift = 0;
+        // Conversions done
+        int conversions = 0;
+        // Set to make the device parasite powered. It answers Read Power Supply with a 0, and
+        // can't hold the line low while converting.
+        boolean parasite = false;
+        // Set to make the device lose power during its next conversion, which leaves the
+        // power-on 85C in its scratchpad
+        boolean brownout = false;
+        // Set to make the device support Overdrive Skip ROM
+        boolean overdriveCapable = false;
+        boolean overdrive = false;
+
+        private static final int ROM_CMD = 0, MATCH = 1, SEARCH = 2, FUNC_CMD = 3, READ = 4,
+                WRITE = 5, CONVERTING = 6, POWER = 7, IDLE = 8;
+        private int state = IDLE;
+        private int bit; // bit counter within the current state
+        private int shift; // bits being assembled
+        private int searchPhase;
+        private final byte[] data = new byte[9];
+        private int dataLength;
+        private long conversionEnd;
+        // Temperature in the scratchpad, and the one the conversion under way will put there
+        private double converted = 85, converting;
+        private boolean pending = false;
+
+        Device(long rom) {
+            this.rom = rom;
+        }
+
+        boolean isAlarmed() {
+            int t = (int) Math.floor(temperature);
+            return t >= th || t <= tl;
+        }
+
+        void reset() {
+            state = ROM_CMD;
+            bit = shift = 0;
+        }
+
+        private boolean romBit(int i) {
+            return ((rom >> i) & 1) != 0;
+        }
+
+        /**
+         * Value this device drives onto the line during the next slot
+         */
+        boolean drive() {
+            switch (state) {
+                case SEARCH:
+                    if (searchPhase == 0)
+                        return romBit(bit);
+                    if (searchPhase == 1)
+                        return !romBit(bit);
+                    return true;
+                case READ:
+                    return ((data[bit >> 3] >> (bit & 7)) & 1) != 0;
+                case CONVERTING:
+                    return parasite || System.nanoTime() >= conversionEnd;
+                case POWER:
+                    return !parasite;
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * Sample the line at the end of a slot
+         */
+        void receive(boolean line) {
+            switch (state) {
+                case ROM_CMD:
+                    if (collect(line, 8))
+                        romCommand(shift);
+                    break;
+                case MATCH:
+                    if (line != romBit(bit))
+                        state = IDLE;
+                    else if (++bit == 64) {
+                        state = FUNC_CMD;
+                        bit = shift = 0;
+                    }
+                    break;
+                case SEARCH:
+                    if (searchPhase < 2)
+                        searchPhase++;
+                    else if (line != romBit(bit))
+                        state = IDLE;
+                    else {
+                        searchPhase = 0;
+                        if (++bit == 64)
+                            state = IDLE;
+                    }
+                    break;
+                case FUNC_CMD:
+                    if (collect(line, 8))
+                        functionCommand(shift);
+                    break;
+                case READ:
+                    if (++bit == dataLength * 8)
+                        state = IDLE;
+                    break;
+                case POWER:
+                    state = IDLE;
+                    break;
+                case WRITE:
+                    if (collect(line, 24)) {
+                        th = (byte) shift;
+                        tl = (byte) (shift >> 8);
+                        config = (byte) ((shift >> 16) | 0x1F);
+                        state = IDLE;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private boolean collect(boolean line, int bits) {
+            if (line)
+                shift |= 1 << bit;
+            return ++bit == bits;
+        }
+
+        private void romCommand(int cmd) {
+            bit = shift = 0;
+            searchPhase = 0;
+            switch (cmd) {
+                case 0xF0: // Search ROM
+                    state = SEARCH;
+                    break;
+                case 0xEC: // Alarm Search
+                    state = isAlarmed() ? SEARCH : IDLE;
+                    break;
+                case 0x55: // Match ROM
+                    state = MATCH;
+                    break;
+                case 0xCC: // Skip ROM
+                    state = FUNC_CMD;
+                    break;
+                case 0x3C: // Overdrive Skip ROM
+                    if (overdriveCapable) {
+                        overdrive = true;
+                        state = FUNC_CMD;
+                    } else
+                        state = IDLE;
+                    break;
+                case 0x33: // Read ROM
+                    for (int i = 0; i < 8; i++)
+                        data[i] = (byte) (rom >> (8 * i));
+                    dataLength = 8;
+                    state = READ;
+                    break;
+                default:
+                    state = IDLE;
+            }
+        }
+
+        private void functionCommand(int cmd) {
+            bit = shift = 0;
+            switch (cmd) {
+                case 0x44: // Convert T
+                    long time = conversionTime >> (3 - ((config >> 5) & 3));
+                    conversionEnd = System.nanoTime() + time;
+                    temperature += drift;
+                    converting = brownout ? 85 : temperature;
+                    brownout = false;
+                    pending = true;
+                    conversions++;
+                    state = CONVERTING;
+                    break;
+                case 0xBE: // Read Scratchpad
+                    if (pending && System.nanoTime() >= conversionEnd) {
+                        converted = converting;
+                        pending = false;
+                    }
+                    int raw = (int) Math.round(converted * 16);
+                    raw &= ~((1 << (3 - ((config >> 5) & 3))) - 1);
+                    data[0] = (byte) raw;
+                    data[1] = (byte) (raw >> 8);
+                    data[2] = th;
+                    data[3] = tl;
+                    data[4] = config;
+                    data[5] = (byte) 0xFF;
+                    data[6] = 0;
+                    data[7] = 0x10;
+                    data[8] = crc8(data, 8);
+                    dataLength = 9;
+                    state = READ;
+                    break;
+                case 0x4E: // Write Scratchpad
+                    state = WRITE;
+                    break;
+                case 0xB4: // Read Power Supply
+                    state = POWER;
+                    break;
+                default:
+                    state = IDLE;
+            }
+        }
+    }
+
+    /**
+     * Dallas/Maxim CRC8
+     */
+    static byte crc8(byte[] data, int len) {
+        int crc = 0;
+        for (int i = 0; i < len; i++) {
+            int b = data[i];
+            for (int j = 0; j < 8; j++) {
+                int mix = (crc ^ b) & 1;
+                crc >>= 1;
+                if (mix != 0)
+                    crc ^= 0x8C;
+                b >>= 1;
+            }
+        }
+        return (byte) crc;
+    }
+
+    /**
+     * @param nDevices number of DS18B20s on the bus
+     * @param latency  time each write takes, in microseconds
+     * @param seed     for generating ROM ids and temperatures
+     */
+    SimulatedSerialPort(int nDevices, long latency, long seed) {
+        mLatency = latency * 1000;
+        Random r = new Random(seed);
+        byte[] rom = new byte[8];
+        for (int i = 0; i < nDevices; i++) {
+            rom[0] = 0x28;
+            for (int j = 1; j < 7; j++)
+                rom[j] = (byte) r.nextInt(256);
+            rom[7] = crc8(rom, 7);
+            long id = 0;
+            for (int j = 7; j >= 0; j--)
+                id = (id << 8) | (rom[j] & 0xFF);
+            Device d = new Device(id);
+            d.temperature = 15 + r.nextInt(160) / 16.0;
+            mDevices.add(d);
+        }
+    }
+
+    List<Device> getDevices() {
+        return mDevices;
+    }
+
+    public void configureLine() {
+        lineConfigurations++;
+    }
+
+    public void setBaudRate(int baud) {
+        baudChanges++;
+        mBaudRate = baud;
+    }
+
+    private void echo(byte b) {
+        if (mEchoCount == mEcho.length) {
+            byte[] bigger = new byte[mEcho.length * 2];
+            for (int i = 0; i < mEchoCount; i++)
+                bigger[i] = mEcho[(mEchoHead + i) % mEcho.length];
+            mEcho = bigger;
+            mEchoHead = 0;
+        }
+        mEcho[(mEchoHead + mEchoCount++) % mEcho.length] = b;
+    }
+
+    /**
+     * Check whether a device sees the current byte as a slot at its speed
+     */
+    private boolean inSlot(Device d) {
+        return mBaudRate == (d.overdrive ? OVERDRIVE_SLOT_BAUD : OVERDRIVE_RESET_BAUD);
+    }
+
+    private byte slot(byte tx) {
+        if (mBaudRate == RESET_BAUD) {
+            for (int i = 0; i < mDevices.size(); i++) {
+                Device d = mDevices.get(i);
+                d.overdrive = false;
+                d.reset();
+            }
+            return mDevices.isEmpty() ? tx : PRESENCE;
+        }
+        if (mBaudRate == OVERDRIVE_RESET_BAUD) {
+            boolean present = false;
+            for (int i = 0; i < mDevices.size(); i++) {
+                Device d = mDevices.get(i);
+                if (d.overdrive) {
+                    d.reset();
+                    present = true;
+                }
+            }
+            // The presence pulse pulls down the last data bits
+            if (present)
+                return (byte) (tx & 0x7F);
+        }
+        boolean line = tx == (byte) 0xFF;
+        // Indexed, so the simulator doesn't allocate where the driver mustn't
+        for (int i = 0; i < mDevices.size(); i++) {
+            if (inSlot(mDevices.get(i)))
+                line &= mDevices.get(i).drive();
+        }
+        for (int i = 0; i < mDevices.size(); i++) {
+            if (inSlot(mDevices.get(i)))
+                mDevices.get(i).receive(line);
+        }
+        return line ? tx : (byte) (tx & 0xFE);
+    }
+
+    public int write(byte[] buffer, int offset, int length, int timeout) {
+        if (mLatency > 0) {
+            long end = System.nanoTime() + mLatency;
+            while (System.nanoTime() < end)
+                ; // spin, sleeps are far too coarse
+
+        }
+        for (int i = 0; i < length; i++)
+            echo(slot(buffer[offset + i]));
+        return length;
+    }
+
+    public int read(byte[] buffer, int offset, int length, int timeout) {
+        int n = Math.min(length, mEchoCount);
+        for (int i = 0; i < n; i++) {
+            buffer[offset + i] = mEcho[mEchoHead];
+            mEchoHead = (mEchoHead + 1) % mEcho.length;
+        }
+        mEchoCount -= n;
+        return n;
+    }
+
+    public String getPortName() {
+        return "simulated";
+    }
+
+    public void close() {
+    }
+}